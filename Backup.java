@@ -0,0 +1,45 @@
+import java.io.*;
+import eu.godfroy.dbm.*;
+
+public class Backup
+{
+	public static void main(String[] args)
+	throws IOException,
+	       DBException
+	{
+		if (args.length == 3 && args[0].equals("-r"))
+		{
+			InputStream input = new FileInputStream(args[1]);
+			try
+			{
+				long pages = Dbm.restore(input, args[2]);
+				System.out.println(pages + " pages restored");
+			}
+			finally
+			{
+				input.close();
+			}
+			return;
+		}
+
+		if (args.length != 2)
+		{
+			System.err.println("Usage: Backup database archive");
+			System.err.println("       Backup -r archive database");
+			System.exit(1);
+		}
+
+		Dbm dbm = new Dbm(args[0], "r");
+		OutputStream output = new FileOutputStream(args[1]);
+		try
+		{
+			long pages = dbm.backup(output);
+			System.out.println(pages + " pages saved");
+		}
+		finally
+		{
+			output.close();
+			dbm.close();
+		}
+	}
+}
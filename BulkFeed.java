@@ -0,0 +1,31 @@
+import java.io.*;
+import eu.godfroy.dbm.*;
+
+public class BulkFeed
+{
+	public static void main(String[] args)
+	throws IOException,
+	       DBException
+	{
+		if (args.length < 1)
+		{
+			System.err.println("Usage: BulkFeed database");
+			System.exit(1);
+		}
+
+		DbmBuilder builder = new DbmBuilder(args[0]);
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+		String line;
+		int linesRead = 0;
+		while ((line = reader.readLine()) != null)
+		{
+			String[] keyval = line.split("\t");
+			builder.add(keyval[0].getBytes(), keyval[1].getBytes());
+			linesRead++;
+		}
+
+		builder.build();
+		System.out.println(linesRead + " lines read");
+	}
+}
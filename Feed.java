@@ -37,5 +37,7 @@ public class Feed
 		}
 		if (unfinishedLineInfo)
 			System.out.println("");
+
+		dataBase.close();
 	}
 }
@@ -14,10 +14,7 @@ public class GetAll
 
 		Dbm dataBase = new Dbm(args[0], "r");
 
-		for (byte[] key : dataBase.allKeys())
-		{
-			byte[] value = dataBase.get(key);
-			System.out.println(new String(key) + "\t" + new String(value));
-		}
+		for (java.util.Map.Entry<byte[],byte[]> entry : dataBase.allEntries())
+			System.out.println(new String(entry.getKey()) + "\t" + new String(entry.getValue()));
 	}
 }
@@ -0,0 +1,141 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.nio.channels.*;
+
+/**
+ * Builds the databases read by the benchmarks.
+ *
+ * A fixture holds the keys of the indexes from 0 to its size, as given by
+ * {@link Workload}. It is written with {@link DbmBuilder}, so that even
+ * databases of 10^8 keys are built in minutes, and the files are sparse
+ * like the ones of a database filled by insertions. Fixtures are kept in
+ * the directory given by the <code>dbm.fixtures</code> system property,
+ * by default <code>dbm-fixtures</code> in the temporary directory, and
+ * are only built the first time they are needed.
+ * <p>
+ * The fixtures can also be built ahead of the benchmarks:
+ * <pre>
+ * java -cp benchmarks.jar eu.godfroy.dbm.FixtureGenerator keys sizes
+ * </pre>
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+public class FixtureGenerator
+{
+	private FixtureGenerator()
+	{
+	}
+
+	private static File fixtureDirectory()
+	{
+		String directory = System.getProperty("dbm.fixtures");
+		if (directory != null)
+			return new File(directory);
+
+		return new File(System.getProperty("java.io.tmpdir"), "dbm-fixtures");
+	}
+
+	/**
+	 * Obtain a fixture, building it if needed.
+	 *
+	 * @return The name of the database, to be given to {@link Dbm}.
+	 */
+	public static synchronized String fixture(long keys, Workload.EntrySizes sizes)
+	throws IOException,
+	       DBException
+	{
+		File directory = fixtureDirectory();
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+
+		String database = new File(directory, "fixture-" + keys + "-" + sizes.name().toLowerCase()).getPath();
+		File pagF = new File(database + Dbm.PAG_EXT);
+		File dirF = new File(database + Dbm.DIR_EXT);
+		if (pagF.exists() && dirF.exists())
+			return database;
+
+		/* built under another name, so that an interrupted build is not used */
+		String partial = database + ".partial";
+		DbmBuilder builder = new DbmBuilder(partial);
+		builder.setTemporaryDirectory(directory);
+		for (long i = 0; i < keys; i++)
+			builder.add(Workload.key(i, sizes), Workload.value(i, sizes));
+		builder.build();
+
+		if (!new File(partial + Dbm.PAG_EXT).renameTo(pagF) || !new File(partial + Dbm.DIR_EXT).renameTo(dirF))
+			throw new IOException("Cannot rename " + partial);
+
+		return database;
+	}
+
+	/**
+	 * Copy a database, for the benchmarks which modify it.
+	 *
+	 * @return The name of the copy, in the temporary directory.
+	 */
+	public static String copy(String database)
+	throws IOException
+	{
+		File copyPag = File.createTempFile("dbm", Dbm.PAG_EXT);
+		String copy = copyPag.getPath().substring(0, copyPag.getPath().length() - Dbm.PAG_EXT.length());
+		copyFile(new File(database + Dbm.PAG_EXT), copyPag);
+		copyFile(new File(database + Dbm.DIR_EXT), new File(copy + Dbm.DIR_EXT));
+
+		return copy;
+	}
+
+	private static void copyFile(File source, File destination)
+	throws IOException
+	{
+		FileChannel input = new FileInputStream(source).getChannel();
+		try
+		{
+			FileChannel output = new FileOutputStream(destination).getChannel();
+			try
+			{
+				long position = 0;
+				long size = input.size();
+				while (position < size)
+					position += input.transferTo(position, size - position, output);
+			}
+			finally
+			{
+				output.close();
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	/**
+	 * Delete the files of a database.
+	 */
+	public static void delete(String database)
+	{
+		new File(database + Dbm.PAG_EXT).delete();
+		new File(database + Dbm.DIR_EXT).delete();
+		new File(database + Dbm.FILTER_EXT).delete();
+		new File(database + Dbm.LOG_EXT).delete();
+	}
+
+	public static void main(String[] args)
+	throws IOException,
+	       DBException
+	{
+		if (args.length < 2)
+		{
+			System.err.println("Usage: FixtureGenerator keys SMALL|MEDIUM|LARGE|MIXED");
+			System.exit(1);
+		}
+
+		long keys = Long.parseLong(args[0]);
+		Workload.EntrySizes sizes = Workload.EntrySizes.valueOf(args[1]);
+
+		long start = System.nanoTime();
+		String database = fixture(keys, sizes);
+		System.out.println(database + " ready in " + (System.nanoTime() - start) / 1000000 + "ms");
+	}
+}
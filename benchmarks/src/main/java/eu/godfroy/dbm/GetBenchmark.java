@@ -0,0 +1,142 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Lookups of keys, present or not, in databases of various sizes.
+ *
+ * The default sizes are 10^4 and 10^6 keys. Bigger fixtures are selected
+ * with <code>-p keys=100000000</code>, and take a few minutes to build
+ * the first time. <code>-p keyFilter=true</code> opens the databases with
+ * a key filter, which mostly matters for the lookups of missing keys.
+ * <p>
+ * The lookups into a caller buffer are meant to allocate nothing on warm
+ * caches, which is checked by running them with <code>-prof gc</code>:
+ * <code>gc.alloc.rate.norm</code> must stay at about 0 B/op.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetBenchmark
+{
+	private static final int LOOKUPS = 1 << 16;
+
+	@State(Scope.Benchmark)
+	public static class Database
+	{
+		@Param({"10000", "1000000"})
+		long keys;
+
+		@Param({"SMALL", "MEDIUM", "LARGE", "MIXED"})
+		Workload.EntrySizes sizes;
+
+		@Param({"1.0", "0.5", "0.0"})
+		double hitRatio;
+
+		@Param({"WARM", "COLD"})
+		Workload.CacheState cache;
+
+		@Param({"false"})
+		boolean keyFilter;
+
+		Dbm dbm;
+		byte[][] lookups;
+		/* the same keys, in direct buffers */
+		ByteBuffer[] lookupBuffers;
+
+		@Setup(Level.Trial)
+		public void open()
+		throws IOException,
+		       DBException
+		{
+			String database = FixtureGenerator.fixture(keys, sizes);
+			if (keyFilter)
+				dbm = new Dbm(database, "r", Dbm.Endianness.LITTLE_ENDIAN, Dbm.OpenOption.KEY_FILTER);
+			else
+				dbm = new Dbm(database, "r");
+			lookups = Workload.lookups(LOOKUPS, keys, hitRatio, sizes, 42);
+			lookupBuffers = new ByteBuffer[lookups.length];
+			for (int i = 0; i < lookups.length; i++)
+			{
+				lookupBuffers[i] = ByteBuffer.allocateDirect(lookups[i].length);
+				lookupBuffers[i].put(lookups[i]);
+				lookupBuffers[i].flip();
+			}
+
+			if (cache == Workload.CacheState.COLD)
+				dbm.setCacheSize(1);
+			else
+			{
+				long pages = new File(database + Dbm.PAG_EXT).length() / Dbm.PAGFILE_PGSZ;
+				dbm.setCacheSize((int) Math.min(Math.max(pages, 1), 1 << 20));
+				for (byte[] key : lookups)
+					dbm.get(key);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void close()
+		throws DBException
+		{
+			dbm.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor
+	{
+		int next;
+		final ByteBuffer out = ByteBuffer.allocate(Dbm.PAGFILE_PGSZ);
+
+		byte[] nextKey(byte[][] lookups)
+		{
+			byte[] key = lookups[next];
+			next = (next + 1) & (lookups.length - 1);
+			return key;
+		}
+
+		ByteBuffer nextKey(ByteBuffer[] lookupBuffers)
+		{
+			ByteBuffer key = lookupBuffers[next];
+			next = (next + 1) & (lookupBuffers.length - 1);
+			return key;
+		}
+	}
+
+	@Benchmark
+	public byte[] get(Database database, Cursor cursor)
+	throws DBException
+	{
+		return database.dbm.get(cursor.nextKey(database.lookups));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public byte[] getConcurrent(Database database, Cursor cursor)
+	throws DBException
+	{
+		return database.dbm.get(cursor.nextKey(database.lookups));
+	}
+
+	@Benchmark
+	public int getIntoBuffer(Database database, Cursor cursor)
+	throws DBException
+	{
+		cursor.out.clear();
+		return database.dbm.get(cursor.nextKey(database.lookupBuffers), cursor.out);
+	}
+
+	@Benchmark
+	public boolean containsKey(Database database, Cursor cursor)
+	throws DBException
+	{
+		return database.dbm.containsKey(cursor.nextKey(database.lookupBuffers));
+	}
+}
@@ -0,0 +1,43 @@
+package eu.godfroy.dbm;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Hashing of keys, done by every lookup and by every split for each key
+ * moved.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashBenchmark
+{
+	@Param({"8", "32", "128", "512"})
+	int keyLength;
+
+	private byte[][] keys;
+	private int next;
+
+	@Setup
+	public void prepare()
+	{
+		Random random = new Random(42);
+		keys = new byte[1024][keyLength];
+		for (byte[] key : keys)
+			random.nextBytes(key);
+	}
+
+	@Benchmark
+	public int computeHash()
+	{
+		byte[] key = keys[next];
+		next = (next + 1) & (keys.length - 1);
+		return Dbm.computeHash(key);
+	}
+}
@@ -0,0 +1,190 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Insertions in new databases, which exercise the splitting of pages, and
+ * modifications of existing databases.
+ *
+ * The modifications are made without log by default, and with a
+ * write-ahead log, synced by each modification, with
+ * <code>-p writeAheadLog=true</code>.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PutBenchmark
+{
+	@State(Scope.Thread)
+	public static class NewDatabase
+	{
+		@Param({"10000", "100000"})
+		int keys;
+
+		@Param({"SMALL", "MEDIUM", "LARGE", "MIXED"})
+		Workload.EntrySizes sizes;
+
+		@Param({"SEQUENTIAL", "RANDOM"})
+		Workload.InsertOrder order;
+
+		byte[][] insertedKeys;
+		byte[][] insertedValues;
+		String database;
+
+		@Setup(Level.Trial)
+		public void prepare()
+		{
+			int[] indexes = Workload.insertOrder(keys, order, 42);
+			insertedKeys = new byte[keys][];
+			insertedValues = new byte[keys][];
+			for (int i = 0; i < keys; i++)
+			{
+				insertedKeys[i] = Workload.key(indexes[i], sizes);
+				insertedValues[i] = Workload.value(indexes[i], sizes);
+			}
+		}
+
+		@Setup(Level.Invocation)
+		public void create()
+		throws IOException
+		{
+			File pagF = File.createTempFile("dbm", Dbm.PAG_EXT);
+			database = pagF.getPath().substring(0, pagF.getPath().length() - Dbm.PAG_EXT.length());
+		}
+
+		@TearDown(Level.Invocation)
+		public void delete()
+		{
+			FixtureGenerator.delete(database);
+		}
+	}
+
+	/**
+	 * Fill a new database one key at a time.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void insert(NewDatabase state)
+	throws IOException,
+	       DBException
+	{
+		Dbm dbm = new Dbm(state.database);
+		for (int i = 0; i < state.insertedKeys.length; i++)
+			dbm.put(state.insertedKeys[i], state.insertedValues[i]);
+		dbm.close();
+	}
+
+	/**
+	 * Fill a new database as a single batch.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void insertBatch(NewDatabase state)
+	throws IOException,
+	       DBException
+	{
+		Dbm dbm = new Dbm(state.database);
+		Dbm.WriteBatch batch = dbm.beginBatch();
+		for (int i = 0; i < state.insertedKeys.length; i++)
+			batch.put(state.insertedKeys[i], state.insertedValues[i]);
+		batch.commit();
+		dbm.close();
+	}
+
+	/**
+	 * Write the same database with {@link DbmBuilder}.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void build(NewDatabase state)
+	throws DBException
+	{
+		DbmBuilder builder = new DbmBuilder(state.database);
+		for (int i = 0; i < state.insertedKeys.length; i++)
+			builder.add(state.insertedKeys[i], state.insertedValues[i]);
+		builder.build();
+	}
+
+	@State(Scope.Thread)
+	public static class ExistingDatabase
+	{
+		@Param({"10000", "1000000"})
+		long keys;
+
+		@Param({"SMALL", "MEDIUM", "LARGE", "MIXED"})
+		Workload.EntrySizes sizes;
+
+		@Param({"false"})
+		boolean writeAheadLog;
+
+		String database;
+		Dbm dbm;
+		byte[][] lookups;
+		int next;
+
+		@Setup(Level.Trial)
+		public void open()
+		throws IOException,
+		       DBException
+		{
+			database = FixtureGenerator.copy(FixtureGenerator.fixture(keys, sizes));
+			if (writeAheadLog)
+				dbm = new Dbm(database, "rw", Dbm.Endianness.LITTLE_ENDIAN, Dbm.OpenOption.WRITE_AHEAD_LOG);
+			else
+				dbm = new Dbm(database);
+			lookups = Workload.lookups(1 << 16, keys, 1.0, sizes, 42);
+		}
+
+		@TearDown(Level.Trial)
+		public void close()
+		throws DBException
+		{
+			dbm.close();
+			FixtureGenerator.delete(database);
+		}
+
+		byte[] nextKey()
+		{
+			byte[] key = lookups[next];
+			next = (next + 1) & (lookups.length - 1);
+			return key;
+		}
+	}
+
+	/**
+	 * Replace the value of a key by one of the same size.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void update(ExistingDatabase state)
+	throws DBException
+	{
+		byte[] key = state.nextKey();
+		byte[] value = state.dbm.get(key);
+		if (value.length > 0)
+			value[0]++;
+		state.dbm.put(key, value);
+	}
+
+	/**
+	 * Remove a key and insert it back, leaving the database unchanged.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void removeAndPut(ExistingDatabase state)
+	throws DBException
+	{
+		byte[] key = state.nextKey();
+		byte[] value = state.dbm.remove(key);
+		state.dbm.put(key, value);
+	}
+}
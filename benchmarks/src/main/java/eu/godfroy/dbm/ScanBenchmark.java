@@ -0,0 +1,93 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Traversals of whole databases.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark
+{
+	@State(Scope.Benchmark)
+	public static class Database
+	{
+		@Param({"10000", "1000000"})
+		long keys;
+
+		@Param({"SMALL", "MEDIUM", "MIXED"})
+		Workload.EntrySizes sizes;
+
+		@Param({"WARM", "COLD"})
+		Workload.CacheState cache;
+
+		Dbm dbm;
+
+		@Setup(Level.Trial)
+		public void open()
+		throws IOException,
+		       DBException
+		{
+			String database = FixtureGenerator.fixture(keys, sizes);
+			dbm = new Dbm(database, "r");
+
+			if (cache == Workload.CacheState.COLD)
+				dbm.setCacheSize(1);
+			else
+			{
+				long pages = new File(database + Dbm.PAG_EXT).length() / Dbm.PAGFILE_PGSZ;
+				dbm.setCacheSize((int) Math.min(Math.max(pages, 1), 1 << 20));
+				for (byte[] key : dbm.allKeys())
+					;
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void close()
+		throws DBException
+		{
+			dbm.close();
+		}
+	}
+
+	@Benchmark
+	public void allKeys(Database database, Blackhole blackhole)
+	{
+		for (byte[] key : database.dbm.allKeys())
+			blackhole.consume(key);
+	}
+
+	@Benchmark
+	public void allEntries(Database database, Blackhole blackhole)
+	{
+		for (Map.Entry<byte[],byte[]> entry : database.dbm.allEntries())
+			blackhole.consume(entry);
+	}
+
+	/**
+	 * The traversal of the original API, followed by a lookup of each key.
+	 */
+	@Benchmark
+	public void nextKeyAndGet(Database database, Blackhole blackhole)
+	throws DBException
+	{
+		Dbm dbm = database.dbm;
+		for (byte[] key = dbm.firstKey(); key != null; key = dbm.nextKey(key))
+			blackhole.consume(dbm.get(key));
+	}
+
+	@Benchmark
+	public long parallelEntries(Database database)
+	{
+		return database.dbm.entries().parallel().count();
+	}
+}
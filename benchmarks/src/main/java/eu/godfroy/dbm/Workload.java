@@ -0,0 +1,161 @@
+package eu.godfroy.dbm;
+
+import java.util.*;
+
+/**
+ * Keys and values used by the benchmarks.
+ *
+ * The key and value of each index are derived from the index alone, so
+ * that a benchmark can look up the keys of a fixture built earlier, or in
+ * another process, without storing them. Two different indexes always
+ * give different keys.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+public class Workload
+{
+	/* indexes of keys never inserted, far above any fixture size */
+	private static final long MISS_BASE = 1l << 62;
+
+	/**
+	 * Distributions of the lengths of keys and values, uniform between
+	 * bounds.
+	 */
+	public static enum EntrySizes
+	{
+		SMALL(8, 8, 8, 16),
+		MEDIUM(8, 32, 16, 128),
+		LARGE(16, 64, 100, 400),
+		MIXED(8, 64, 0, 400);
+
+		private final int minKey;
+		private final int maxKey;
+		private final int minValue;
+		private final int maxValue;
+
+		EntrySizes(int minKey, int maxKey, int minValue, int maxValue)
+		{
+			this.minKey = minKey;
+			this.maxKey = maxKey;
+			this.minValue = minValue;
+			this.maxValue = maxValue;
+		}
+	}
+
+	/**
+	 * State of the page cache of the database when it is read.
+	 */
+	public static enum CacheState
+	{
+		/** All the pages read are kept, and read before measuring. */
+		WARM,
+		/** A single page is kept, so that nearly every access reads the file. */
+		COLD
+	}
+
+	/**
+	 * Order of the keys inserted in a new database.
+	 */
+	public static enum InsertOrder
+	{
+		SEQUENTIAL,
+		RANDOM
+	}
+
+	private Workload()
+	{
+	}
+
+	/* splitmix64 finalizer, a bijection of the longs */
+	private static long mix(long value)
+	{
+		value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9l;
+		value = (value ^ (value >>> 27)) * 0x94d049bb133111ebl;
+		return value ^ (value >>> 31);
+	}
+
+	private static int length(long seed, int min, int max)
+	{
+		return min + (int) ((mix(seed) >>> 1) % (max - min + 1));
+	}
+
+	private static void fill(byte[] data, int from, long seed)
+	{
+		long random = seed;
+		for (int i = from; i < data.length; i++)
+		{
+			if ((i - from) % 8 == 0)
+				random = mix(random + i);
+			data[i] = (byte) (random >>> (8 * ((i - from) % 8)));
+		}
+	}
+
+	/**
+	 * The key of an index. The first 8 octets are a bijection of the
+	 * index, which makes the keys unique.
+	 */
+	public static byte[] key(long index, EntrySizes sizes)
+	{
+		byte[] key = new byte[length(~index, sizes.minKey, sizes.maxKey)];
+		long unique = mix(index);
+		for (int i = 0; i < 8; i++)
+			key[i] = (byte) (unique >>> (8 * i));
+		fill(key, 8, unique);
+
+		return key;
+	}
+
+	public static byte[] value(long index, EntrySizes sizes)
+	{
+		byte[] value = new byte[length(index * 31 + 7, sizes.minValue, sizes.maxValue)];
+		fill(value, 0, mix(index + 1));
+
+		return value;
+	}
+
+	/**
+	 * Keys to look up in a database of the first <code>keys</code>
+	 * indexes, in random order.
+	 *
+	 * @param hitRatio The fraction of the keys present in the database.
+	 */
+	public static byte[][] lookups(int count, long keys, double hitRatio, EntrySizes sizes, long seed)
+	{
+		Random random = new Random(seed);
+		byte[][] lookups = new byte[count][];
+		for (int i = 0; i < count; i++)
+		{
+			long index = (long) (random.nextDouble() * keys);
+			if (random.nextDouble() < hitRatio)
+				lookups[i] = key(index, sizes);
+			else
+				lookups[i] = key(MISS_BASE + index, sizes);
+		}
+
+		return lookups;
+	}
+
+	/**
+	 * The indexes from 0 to <code>keys</code>, in the given order.
+	 */
+	public static int[] insertOrder(int keys, InsertOrder order, long seed)
+	{
+		int[] indexes = new int[keys];
+		for (int i = 0; i < keys; i++)
+			indexes[i] = i;
+
+		if (order == InsertOrder.RANDOM)
+		{
+			Random random = new Random(seed);
+			for (int i = keys - 1; i > 0; i--)
+			{
+				int other = random.nextInt(i + 1);
+				int swap = indexes[i];
+				indexes[i] = indexes[other];
+				indexes[other] = swap;
+			}
+		}
+
+		return indexes;
+	}
+}
@@ -0,0 +1,82 @@
+package eu.godfroy.dbm;
+
+import java.util.*;
+import java.util.stream.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * The partitions of {@link Dbm#entries(int, int)}, whatever the depth of
+ * the trie compared to the one of the partitions.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+public class EntriesTest
+{
+	private static Dbm filled(int keys)
+	throws DBException
+	{
+		Dbm dbm = Dbm.createInMemory(Dbm.Endianness.LITTLE_ENDIAN);
+		for (int i = 0; i < keys; i++)
+			dbm.put(("key" + i).getBytes(), ("value" + i).getBytes());
+
+		return dbm;
+	}
+
+	/* every partition of every depth holds exactly its keys, and all of them */
+	private static void checkPartitions(Dbm dbm, int keys, int maxDepth, boolean parallel)
+	{
+		for (int depth = 0; depth <= maxDepth; depth++)
+		{
+			int mask = (1 << depth) - 1;
+			Set<String> seen = new HashSet<String>();
+			for (int prefix = 0; prefix <= mask; prefix++)
+			{
+				Stream<Map.Entry<byte[],byte[]>> entries = dbm.entries(prefix, depth);
+				if (parallel)
+					entries = entries.parallel();
+
+				for (Map.Entry<byte[],byte[]> entry : entries.collect(Collectors.<Map.Entry<byte[],byte[]>>toList()))
+				{
+					String key = new String(entry.getKey());
+					assertEquals("partition of " + key, prefix, Dbm.computeHash(entry.getKey()) & mask);
+					assertEquals("value" + key.substring(3), new String(entry.getValue()));
+					assertTrue(key + " in two partitions", seen.add(key));
+				}
+			}
+			assertEquals("keys at depth " + depth, keys, seen.size());
+		}
+	}
+
+	@Test
+	public void partitionsDeeperThanTheTrie()
+	throws DBException
+	{
+		/* a single page */
+		Dbm dbm = filled(20);
+		assertEquals(0, dbm.getStatistics().getMaxDepth());
+		checkPartitions(dbm, 20, 5, false);
+		dbm.close();
+	}
+
+	@Test
+	public void partitionsAcrossUnevenTrie()
+	throws DBException
+	{
+		Dbm dbm = filled(5000);
+		assertTrue(dbm.getStatistics().getMaxDepth() > 3);
+		checkPartitions(dbm, 5000, dbm.getStatistics().getMaxDepth() + 2, false);
+		dbm.close();
+	}
+
+	@Test
+	public void parallelPartitions()
+	throws DBException
+	{
+		Dbm dbm = filled(5000);
+		checkPartitions(dbm, 5000, 4, true);
+		assertEquals(5000, dbm.entries().parallel().count());
+		dbm.close();
+	}
+}
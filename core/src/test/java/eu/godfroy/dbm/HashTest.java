@@ -0,0 +1,105 @@
+package eu.godfroy.dbm;
+
+import java.nio.*;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * The hash decides where every key lies in the files, so it must stay
+ * the one of ndbm whatever the way it is computed.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+public class HashTest
+{
+	/* the tables and the loop of ndbm, kept apart from the ones in use */
+	private static final byte[] HITAB = new byte[] {
+		61, 57, 53, 49, 45, 41, 37, 33,
+		29, 25, 21, 17, 13, 9, 5, 1
+	};
+
+	private static final int[] HLTAB = new int[] {
+		0x3100d2bf, 0x3118e3de, 0x34ab1372, 0x2807a847,
+		0x1633f566, 0x2143b359, 0x26d56488, 0x3b9e6f59,
+		0x37755656, 0x3089ca7b, 0x18e92d85, 0x0cd0e9d8,
+		0x1a9e3b54, 0x3eaa902f, 0x0d9bfaae, 0x2f32b45b,
+		0x31ed6102, 0x3d3c8398, 0x146660e3, 0x0f8d4b76,
+		0x02c77a5f, 0x146c8799, 0x1c47f51f, 0x249f8f36,
+		0x24772043, 0x1fbc1e4d, 0x1e86b3fa, 0x37df36a6,
+		0x16ed30e4, 0x02c3148e, 0x216e5929, 0x0636b34e,
+		0x317f9f56, 0x15f09d70, 0x131026fb, 0x38c784b1,
+		0x29ac3305, 0x2b485dc5, 0x3c049ddc, 0x35a9fbcd,
+		0x31d5373b, 0x2b246799, 0x0a2923d3, 0x08a96e9d,
+		0x30031a9f, 0x08f525b5, 0x33611c06, 0x2409db98,
+		0x0ca4feb2, 0x1000b71e, 0x30566e32, 0x39447d31,
+		0x194e3752, 0x08233a95, 0x0f38fe36, 0x29c7cd57,
+		0x0f7b3a39, 0x328e8a16, 0x1e7d1388, 0x0fba78f5,
+		0x274c7e7c, 0x1e8be65c, 0x2fa0b0bb, 0x1eb6c371
+	};
+
+	private static int nibbleHash(byte[] key)
+	{
+		byte hashi = 0;
+		int hashl = 0;
+		for (byte elem : key)
+		{
+			for (int i = 0; i < 2; i++)
+			{
+				hashi += HITAB[elem & (HITAB.length - 1)];
+				hashl += HLTAB[hashi & (HLTAB.length - 1)];
+				elem >>= 4;
+			}
+		}
+
+		return hashl;
+	}
+
+	@Test
+	public void sameHashAsNibbleLoop()
+	{
+		Random random = new Random(42);
+		for (int i = 0; i < 2000000; i++)
+		{
+			byte[] key = new byte[random.nextInt(64)];
+			random.nextBytes(key);
+
+			int expected = nibbleHash(key);
+			assertEquals(expected, Dbm.computeHash(key));
+			assertEquals(expected, Dbm.computeHash(ByteBuffer.wrap(key)));
+		}
+	}
+
+	@Test
+	public void bufferHashIsTheOneOfItsRemaining()
+	{
+		Random random = new Random(43);
+		for (int i = 0; i < 10000; i++)
+		{
+			byte[] content = new byte[random.nextInt(64) + 2];
+			random.nextBytes(content);
+			int start = random.nextInt(content.length / 2);
+			int end = start + random.nextInt(content.length - start);
+
+			ByteBuffer buffer = ByteBuffer.wrap(content);
+			buffer.position(start);
+			buffer.limit(end);
+			assertEquals(nibbleHash(Arrays.copyOfRange(content, start, end)), Dbm.computeHash(buffer));
+		}
+	}
+
+	@Test
+	public void everyPairOfOctets()
+	{
+		/* every octet, after every single octet */
+		for (int first = 0; first < 256; first++)
+		{
+			for (int second = 0; second < 256; second++)
+			{
+				byte[] key = new byte[] { (byte) first, (byte) second };
+				assertEquals(nibbleHash(key), Dbm.computeHash(key));
+			}
+		}
+	}
+}
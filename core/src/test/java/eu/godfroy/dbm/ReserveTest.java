@@ -0,0 +1,105 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * The pages split in advance by {@link Dbm#reserve(long, int)}.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+public class ReserveTest
+{
+	private File directory;
+	private String database;
+
+	@Before
+	public void createDirectory()
+	throws IOException
+	{
+		directory = java.nio.file.Files.createTempDirectory("dbm").toFile();
+		database = new File(directory, "db").getPath();
+	}
+
+	@After
+	public void deleteDirectory()
+	{
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void depthOfTheExpectedKeys()
+	throws IOException, DBException
+	{
+		Dbm dbm = new Dbm(database);
+		dbm.reserve(0, 40);
+		assertEquals(0, dbm.getStatistics().getMaxDepth());
+		/* 44 octets each, in pages filled to 70%: about 123,000 pages */
+		dbm.reserve(2000000, 40);
+		assertEquals(17, dbm.getStatistics().getMaxDepth());
+
+		/* the pages of an empty database are neither read nor split */
+		Statistics statistics = dbm.getStatistics();
+		assertEquals(0, statistics.getPagReads());
+		assertEquals(0, statistics.getCacheStatistics().getMisses());
+		assertEquals(0, statistics.getSplits());
+		dbm.close();
+
+		/* the bits are in the .dir file */
+		Dbm reopened = new Dbm(database, "r");
+		assertEquals(17, reopened.getStatistics().getMaxDepth());
+		assertNull(reopened.get("key".getBytes()));
+		reopened.close();
+	}
+
+	@Test
+	public void secondReservationSplitsNothing()
+	throws IOException, DBException
+	{
+		Dbm dbm = new Dbm(database);
+		for (int i = 0; i < 500; i++)
+			dbm.put(("key" + i).getBytes(), ("value" + i).getBytes());
+		dbm.reserve(100000, 16);
+
+		Statistics before = dbm.getStatistics();
+		dbm.reserve(100000, 16);
+		Statistics after = dbm.getStatistics();
+		assertEquals(before.getSplits(), after.getSplits());
+		assertEquals(before.getDirWrites(), after.getDirWrites());
+		assertEquals(before.getPagWrites(), after.getPagWrites());
+		assertEquals(before.getMaxDepth(), after.getMaxDepth());
+		dbm.close();
+	}
+
+	@Test
+	public void keysReadableAfterSplits()
+	throws IOException, DBException
+	{
+		Dbm dbm = new Dbm(database);
+		for (int i = 0; i < 500; i++)
+			dbm.put(("key" + i).getBytes(), ("value" + i).getBytes());
+		int depth = dbm.getStatistics().getMaxDepth();
+		dbm.reserve(100000, 16);
+		assertTrue(dbm.getStatistics().getMaxDepth() > depth);
+
+		for (int i = 0; i < 500; i++)
+			assertArrayEquals(("value" + i).getBytes(), dbm.get(("key" + i).getBytes()));
+		for (int i = 500; i < 20000; i++)
+			dbm.put(("key" + i).getBytes(), ("value" + i).getBytes());
+		dbm.close();
+
+		Dbm reopened = new Dbm(database, "r");
+		Set<String> keys = new HashSet<String>();
+		for (byte[] key : reopened.allKeys())
+			assertTrue(keys.add(new String(key)));
+		assertEquals(20000, keys.size());
+		for (int i = 0; i < 20000; i++)
+			assertArrayEquals(("value" + i).getBytes(), reopened.get(("key" + i).getBytes()));
+		reopened.close();
+	}
+}
@@ -0,0 +1,100 @@
+package eu.godfroy.dbm;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * A snapshot keeps the content of the database when it was taken,
+ * whatever the puts, splits and removes since.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+public class SnapshotTest
+{
+	private static Map<String,String> content(Iterable<Map.Entry<byte[],byte[]>> entries)
+	{
+		Map<String,String> content = new HashMap<String,String>();
+		for (Map.Entry<byte[],byte[]> entry : entries)
+			assertNull("key produced twice", content.put(new String(entry.getKey()), new String(entry.getValue())));
+
+		return content;
+	}
+
+	private static void checkSnapshot(Dbm.Snapshot snapshot, Map<String,String> expected, int keys)
+	throws DBException
+	{
+		for (int i = 0; i < keys; i++)
+		{
+			String key = "key" + i;
+			String value = snapshot.get(key.getBytes()) == null ? null : new String(snapshot.get(key.getBytes()));
+			assertEquals(key, expected.get(key), value);
+		}
+		assertEquals(expected, content(snapshot.allEntries()));
+	}
+
+	@Test
+	public void unchangedAcrossModifications()
+	throws DBException
+	{
+		Dbm dbm = Dbm.createInMemory(Dbm.Endianness.LITTLE_ENDIAN);
+		Map<String,String> expected = new HashMap<String,String>();
+		for (int i = 0; i < 200; i++)
+		{
+			dbm.put(("key" + i).getBytes(), ("value" + i).getBytes());
+			expected.put("key" + i, "value" + i);
+		}
+		int depth = dbm.getStatistics().getMaxDepth();
+		Dbm.Snapshot snapshot = dbm.snapshot();
+
+		/* new keys, splitting most of the pages several times */
+		for (int i = 200; i < 5000; i++)
+			dbm.put(("key" + i).getBytes(), ("value" + i).getBytes());
+		assertTrue(dbm.getStatistics().getMaxDepth() > depth + 2);
+		checkSnapshot(snapshot, expected, 5000);
+
+		Map<String,String> middle = content(dbm.allEntries());
+		Dbm.Snapshot later = dbm.snapshot();
+
+		/* replaced and removed keys, old and new */
+		for (int i = 0; i < 5000; i += 3)
+			dbm.put(("key" + i).getBytes(), ("other" + i).getBytes());
+		for (int i = 1; i < 5000; i += 3)
+			dbm.remove(("key" + i).getBytes());
+		checkSnapshot(snapshot, expected, 5000);
+		checkSnapshot(later, middle, 5000);
+
+		snapshot.close();
+		checkSnapshot(later, middle, 5000);
+		later.close();
+
+		assertEquals("other0", new String(dbm.get("key0".getBytes())));
+		assertNull(dbm.get("key1".getBytes()));
+		assertEquals("value2", new String(dbm.get("key2".getBytes())));
+		dbm.close();
+	}
+
+	@Test
+	public void closedSnapshot()
+	throws DBException
+	{
+		Dbm dbm = Dbm.createInMemory(Dbm.Endianness.LITTLE_ENDIAN);
+		dbm.put("key".getBytes(), "value".getBytes());
+		Dbm.Snapshot snapshot = dbm.snapshot();
+		snapshot.close();
+		/* closing twice has no effect */
+		snapshot.close();
+		try
+		{
+			snapshot.get("key".getBytes());
+			fail("read from a closed snapshot");
+		}
+		catch (IllegalStateException exception)
+		{
+			;
+		}
+		assertEquals("value", new String(dbm.get("key".getBytes())));
+		dbm.close();
+	}
+}
@@ -0,0 +1,121 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Collection of the garbage of the value log.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+public class ValueLogTest
+{
+	private File directory;
+	private String database;
+
+	@Before
+	public void createDirectory()
+	throws IOException
+	{
+		directory = java.nio.file.Files.createTempDirectory("dbm").toFile();
+		database = new File(directory, "db").getPath();
+	}
+
+	@After
+	public void deleteDirectory()
+	{
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	static byte[] value(int key, int generation)
+	{
+		byte[] value = new byte[300];
+		new Random(31l * key + generation).nextBytes(value);
+		return value;
+	}
+
+	/* the octets of the files of the value log */
+	static long logLength(File directory)
+	{
+		long length = 0;
+		for (File file : directory.listFiles())
+		{
+			if (file.getName().startsWith("db.vlg."))
+				length += file.length();
+		}
+
+		return length;
+	}
+
+	@Test(timeout = 60000)
+	public void collectionOnCallingThread()
+	throws IOException, DBException
+	{
+		Dbm dbm = new Dbm(database, "rw", Dbm.Endianness.LITTLE_ENDIAN, Dbm.OpenOption.VALUE_LOG);
+		/* runs the collection within the modification submitting it */
+		dbm.setExecutor(new Executor()
+		{
+			public void execute(Runnable task)
+			{
+				task.run();
+			}
+		});
+		dbm.setValueLogSegmentSize(4096);
+
+		for (int generation = 0; generation < 20; generation++)
+		{
+			for (int key = 0; key < 40; key++)
+				dbm.put(("key" + key).getBytes(), value(key, generation));
+		}
+
+		for (int key = 0; key < 40; key++)
+			assertArrayEquals(value(key, 19), dbm.get(("key" + key).getBytes()));
+		/* 20 generations written, about the last one kept */
+		assertTrue("log of " + logLength(directory) + " octets", logLength(directory) < 5 * 40 * 320);
+		dbm.close();
+	}
+
+	@Test(timeout = 60000)
+	public void collectionWithSnapshotOpen()
+	throws IOException, DBException
+	{
+		Dbm dbm = new Dbm(database, "rw", Dbm.Endianness.LITTLE_ENDIAN, Dbm.OpenOption.VALUE_LOG);
+		dbm.setExecutor(new Executor()
+		{
+			public void execute(Runnable task)
+			{
+				task.run();
+			}
+		});
+		dbm.setValueLogSegmentSize(1000);
+
+		for (int key = 0; key < 40; key++)
+			dbm.put(("key" + key).getBytes(), value(key, 0));
+		Dbm.Snapshot snapshot = dbm.snapshot();
+		/* every file of the first generation turns into garbage, which the snapshot still reads */
+		for (int key = 0; key < 40; key++)
+			dbm.put(("key" + key).getBytes(), value(key, 1));
+
+		for (int key = 0; key < 40; key++)
+		{
+			assertArrayEquals(value(key, 0), snapshot.get(("key" + key).getBytes()));
+			assertArrayEquals(value(key, 1), dbm.get(("key" + key).getBytes()));
+		}
+
+		long length = logLength(directory);
+		assertTrue("log of " + length + " octets", length >= 2 * 40 * 300);
+		/* the last snapshot closed collects the garbage left meanwhile */
+		snapshot.close();
+		assertTrue("log of " + logLength(directory) + " octets", logLength(directory) < length);
+
+		for (int key = 0; key < 40; key++)
+			assertArrayEquals(value(key, 1), dbm.get(("key" + key).getBytes()));
+		dbm.close();
+	}
+}
@@ -0,0 +1,124 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Replay of the write-ahead log, after a crash left its last frame
+ * incomplete.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+public class WriteAheadLogTest
+{
+	private File logFile;
+
+	@Before
+	public void createLog()
+	throws IOException
+	{
+		logFile = File.createTempFile("dbm", ".wal");
+	}
+
+	@After
+	public void deleteLog()
+	{
+		logFile.delete();
+	}
+
+	static byte[] image(int page)
+	{
+		byte[] image = new byte[1024];
+		new Random(page).nextBytes(image);
+		return image;
+	}
+
+	/* one frame per page, the page images written at their place */
+	private void writeFrames(int pages)
+	throws IOException
+	{
+		WriteAheadLog log = new WriteAheadLog(logFile);
+		for (int page = 0; page < pages; page++)
+		{
+			WriteAheadLog.Frame frame = new WriteAheadLog.Frame();
+			frame.addPagImage(page * 1024l, image(page));
+			log.append(frame);
+		}
+		log.sync();
+		log.close();
+	}
+
+	private static byte[] read(PageStorage storage, int page)
+	throws IOException
+	{
+		byte[] content = new byte[1024];
+		storage.read(ByteBuffer.wrap(content), page * 1024l);
+		return content;
+	}
+
+	@Test
+	public void replayWholeLog()
+	throws IOException
+	{
+		writeFrames(3);
+
+		PageStorage pagStorage = new MemoryStorage();
+		WriteAheadLog log = new WriteAheadLog(logFile);
+		assertEquals(3, log.recover(pagStorage, new MemoryStorage()));
+		log.close();
+
+		for (int page = 0; page < 3; page++)
+			assertArrayEquals(image(page), read(pagStorage, page));
+		assertEquals(0, logFile.length());
+	}
+
+	@Test
+	public void replayLogCutMidFrame()
+	throws IOException
+	{
+		writeFrames(3);
+		/* the crash happened while the last frame was being written */
+		RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+		file.setLength(file.length() - 100);
+		file.close();
+
+		PageStorage pagStorage = new MemoryStorage();
+		WriteAheadLog log = new WriteAheadLog(logFile);
+		assertEquals(2, log.recover(pagStorage, new MemoryStorage()));
+		log.close();
+
+		assertArrayEquals(image(0), read(pagStorage, 0));
+		assertArrayEquals(image(1), read(pagStorage, 1));
+		assertEquals(2 * 1024, pagStorage.length());
+		assertEquals(0, logFile.length());
+
+		/* replaying the emptied log again does nothing */
+		log = new WriteAheadLog(logFile);
+		assertEquals(0, log.recover(pagStorage, new MemoryStorage()));
+		log.close();
+	}
+
+	@Test
+	public void replayLogCutMidHeader()
+	throws IOException
+	{
+		writeFrames(2);
+		RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+		/* a single frame and a few octets of the header of the next one */
+		file.setLength(file.length() / 2 + 5);
+		file.close();
+
+		PageStorage pagStorage = new MemoryStorage();
+		WriteAheadLog log = new WriteAheadLog(logFile);
+		assertEquals(1, log.recover(pagStorage, new MemoryStorage()));
+		log.close();
+
+		assertArrayEquals(image(0), read(pagStorage, 0));
+		assertEquals(1024, pagStorage.length());
+		assertEquals(0, logFile.length());
+	}
+}
@@ -0,0 +1,201 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.*;
+
+/**
+ * Compact copy of the files of a database, written as a stream.
+ *
+ * An archive holds runs of consecutive pages of either file, each
+ * preceded by its kind, the number of its first page and its length in
+ * pages. Pages which are not in the archive are holes, read as zeroes,
+ * so that only the pages in use need to be written. The files of the
+ * value log, if any, are copied whole. The archive ends with a CRC32 of
+ * all its content, checked once it is restored.
+ * <p>
+ * Pages are copied as they are in the files, whatever the endianness of
+ * the database.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class BackupArchive
+{
+	private static final int MAGIC = 0x44424d42;
+	private static final int VERSION = 1;
+
+	private static final byte END = 0;
+	static final byte DIR_PAGES = 1;
+	static final byte PAG_PAGES = 2;
+	private static final byte VALUE_SEGMENT = 3;
+
+	private final OutputStream stream;
+	private final CheckedOutputStream checkedStream;
+	private final DataOutputStream output;
+	private final WritableByteChannel channel;
+
+	/**
+	 * Start an archive, by writing its header.
+	 */
+	BackupArchive(OutputStream archive)
+	throws IOException
+	{
+		stream = new BufferedOutputStream(archive, 1 << 16);
+		checkedStream = new CheckedOutputStream(stream, new CRC32());
+		output = new DataOutputStream(checkedStream);
+		channel = Channels.newChannel(output);
+
+		output.writeInt(MAGIC);
+		output.writeInt(VERSION);
+		output.writeInt(Dbm.PAGFILE_PGSZ);
+		output.writeInt(Directory.DIRFILE_PGSZ);
+	}
+
+	/**
+	 * Append a run of consecutive pages read from a storage.
+	 *
+	 * @param kind Either {@link #DIR_PAGES} or {@link #PAG_PAGES}.
+	 */
+	void writePages(byte kind, long firstPage, int pageCount, PageStorage storage)
+	throws IOException
+	{
+		int pageSize = pageSize(kind);
+		output.writeByte(kind);
+		output.writeLong(firstPage);
+		output.writeInt(pageCount);
+
+		long count = (long) pageCount * pageSize;
+		if (storage.transferTo(firstPage * pageSize, count, channel) != count)
+			throw new IOException("File truncated while copying it!");
+	}
+
+	/**
+	 * Append the beginning of a file of the value log.
+	 */
+	void writeSegment(int number, long length, ValueLog valueLog)
+	throws IOException
+	{
+		output.writeByte(VALUE_SEGMENT);
+		output.writeInt(number);
+		output.writeLong(length);
+
+		if (valueLog.transferTo(number, length, channel) != length)
+			throw new IOException("Value log truncated while copying it!");
+	}
+
+	/**
+	 * End the archive, by writing its checksum, and flush it. The
+	 * underlying stream is left open.
+	 */
+	void finish()
+	throws IOException
+	{
+		output.writeByte(END);
+		output.flush();
+
+		/* the checksum itself is not checksummed */
+		new DataOutputStream(stream).writeLong(checkedStream.getChecksum().getValue());
+		stream.flush();
+	}
+
+	private static int pageSize(byte kind)
+	throws IOException
+	{
+		if (kind == DIR_PAGES)
+			return Directory.DIRFILE_PGSZ;
+		else if (kind == PAG_PAGES)
+			return Dbm.PAGFILE_PGSZ;
+		else
+			throw new IOException("Unknown pages in the archive!");
+	}
+
+	/**
+	 * Write the pages of an archive to the storages of a database, and
+	 * its value log to the files of the database. The storages are
+	 * expected to be empty.
+	 *
+	 * @return The number of pages of the <code>.pag</code> file written.
+	 * @throws IOException if the archive is truncated, not an archive, or
+	 * does not match its checksum. The storages are then left partly
+	 * written.
+	 */
+	static long restore(InputStream archive, PageStorage pagStorage, PageStorage dirStorage, String database)
+	throws IOException
+	{
+		InputStream stream = new BufferedInputStream(archive, 1 << 16);
+		CheckedInputStream checkedStream = new CheckedInputStream(stream, new CRC32());
+		DataInputStream input = new DataInputStream(checkedStream);
+
+		if (input.readInt() != MAGIC || input.readInt() != VERSION)
+			throw new IOException("Not a database archive!");
+		if (input.readInt() != Dbm.PAGFILE_PGSZ || input.readInt() != Directory.DIRFILE_PGSZ)
+			throw new IOException("Archive of pages of another size!");
+
+		long pagPages = 0;
+		byte[] content = new byte[1 << 16];
+		while (true)
+		{
+			byte kind = input.readByte();
+			if (kind == END)
+				break;
+			if (kind == VALUE_SEGMENT)
+			{
+				restoreSegment(input, content, database);
+				continue;
+			}
+
+			int pageSize = pageSize(kind);
+			long firstPage = input.readLong();
+			int pageCount = input.readInt();
+			if (firstPage < 0 || pageCount < 0)
+				throw new IOException("Not a database archive!");
+
+			PageStorage storage = (kind == PAG_PAGES) ? pagStorage : dirStorage;
+			long position = firstPage * pageSize;
+			long remaining = (long) pageCount * pageSize;
+			while (remaining > 0)
+			{
+				int count = (int) Math.min(content.length, remaining);
+				input.readFully(content, 0, count);
+				storage.write(ByteBuffer.wrap(content, 0, count), position);
+				position += count;
+				remaining -= count;
+			}
+			if (kind == PAG_PAGES)
+				pagPages += pageCount;
+		}
+
+		long checksum = checkedStream.getChecksum().getValue();
+		if (new DataInputStream(stream).readLong() != checksum)
+			throw new IOException("The archive does not match its checksum!");
+
+		return pagPages;
+	}
+
+	private static void restoreSegment(DataInputStream input, byte[] content, String database)
+	throws IOException
+	{
+		int number = input.readInt();
+		long remaining = input.readLong();
+		if (number < 0 || remaining < 0)
+			throw new IOException("Not a database archive!");
+
+		FileOutputStream output = new FileOutputStream(new File(database + ValueLog.SEGMENT_EXT + number));
+		try
+		{
+			while (remaining > 0)
+			{
+				int count = (int) Math.min(content.length, remaining);
+				input.readFully(content, 0, count);
+				output.write(content, 0, count);
+				remaining -= count;
+			}
+			output.getFD().sync();
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+}
@@ -1,9 +1,18 @@
 package eu.godfroy.dbm;
 
-import java.lang.ref.*;
 import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.*;
 import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.stream.*;
+import javax.management.*;
 
 /**
  * A public domain reimplementation of the DBM package from Unix v7.
@@ -15,7 +24,8 @@ import java.util.*;
  * This class allows to insert arbitrary pairs of key, value represented as
  * <code>byte[]</code>, of combined length no more than 1018 octets. It has
  * no provision for overflow pages, and keys that hash together must fit in
- * a single page.
+ * a single page. Longer values can be kept out of the pages, in a value
+ * log, see {@link OpenOption#VALUE_LOG}.
  * <p>
  * A database is comprised of two files: <code>database.pag</code> which
  * contains the pages with the key, values inserted, and
@@ -24,14 +34,41 @@ import java.util.*;
  * The produced files are sparse, and care must be taken when copying them
  * using traditional Unix tools. While not detrimental to the database
  * integrity, a dumb copy can provoke a large increase in the effective size
- * taken by the files on the filesystem.
+ * taken by the files on the filesystem. {@link #backup(String)} and
+ * {@link #backup(OutputStream)} copy only the pages in use instead.
+ * <p>
+ * An instance can be shared between threads. Lookups and traversals only
+ * take a shared lock on the page they read, and modifications an exclusive
+ * lock on the pages they modify, so that operations on different pages
+ * proceed concurrently.
  *
  * @author Quentin Godfroy <quentin@godfroy.eu>
  */
 public class Dbm
 {
-	private static final String PAG_EXT = ".pag";
-	private static final String DIR_EXT = ".dir";
+	static final String PAG_EXT = ".pag";
+	static final String DIR_EXT = ".dir";
+	static final String FILTER_EXT = ".flt";
+	static final String LOG_EXT = ".wal";
+
+	static final int PAGFILE_PGSZ = 1024;
+
+	private static final int DEFAULT_CACHE_SIZE = 1024;
+	private static final int PAG_LOCK_STRIPE_BITS = 8;
+	/* dirty ranges of a page closer than this are written at once */
+	private static final int DIRTY_RANGE_GAP = 128;
+	private static final long DEFAULT_CHECKPOINT_SIZE = 64l << 20;
+	private static final int DEFAULT_VALUE_LOG_THRESHOLD = 128;
+	private static final long DEFAULT_VALUE_LOG_SEGMENT_SIZE = 64l << 20;
+	/* share of garbage past which a file of the value log is collected */
+	private static final double VALUE_LOG_GARBAGE_RATIO = 0.5;
+	/* records of the value log moved under one sync */
+	private static final int VALUE_LOG_RELOCATION_BATCH = 256;
+	/* average filling of the pages laid out by reserve() */
+	private static final double RESERVED_PAGE_FILL = 0.7;
+	private static final int MAX_RESERVED_DEPTH = 30;
+	/* keys of a page, for the size of a key filter built at open time */
+	private static final int FILTER_KEYS_PER_PAGE = 16;
 
 	/**
 	 * Enum which represents the two endianness.
@@ -48,20 +85,197 @@ public class Dbm
 			this.order = order;
 		}
 
-		private ByteOrder getEndianness()
+		ByteOrder getEndianness()
 		{
 			return order;
 		}
 	}
 
-	private final RandomAccessFile pagFile;
-	private final RandomAccessFile dirFile;
+	/**
+	 * Options which can be specified when connecting to a database.
+	 */
+	public static enum OpenOption
+	{
+		/**
+		 * Map the <code>.pag</code> file in memory instead of reading it
+		 * page by page. The pages are then read straight from the
+		 * operating system page cache without being copied. This option is only
+		 * allowed for databases opened read-only, that is with the
+		 * <code>"r"</code> mode.
+		 */
+		MEMORY_MAPPED,
+		/**
+		 * Keep in memory a Bloom filter of the hashes of the keys, so
+		 * that most lookups of keys which do not exist return without
+		 * reading any page. The filter is built by reading the whole
+		 * database when it is opened, and takes about 10 bits per key.
+		 */
+		KEY_FILTER,
+		/**
+		 * As {@link #KEY_FILTER}, and save the filter in the file
+		 * <code>database + ".flt"</code> when the database is closed, to
+		 * load it instead of reading the whole database the next time.
+		 * The file is only used if the <code>.pag</code> and
+		 * <code>.dir</code> files have the same length and modification
+		 * time as when it was written, so that databases modified by
+		 * other implementations are read again. It is removed while a
+		 * database opened for writing is in use.
+		 */
+		PERSISTENT_KEY_FILTER,
+		/**
+		 * Log the pages modified in the file <code>database +
+		 * ".wal"</code> before writing them, so that a crash never leaves
+		 * the database half modified, as by a split whose pages are only
+		 * partly written. Each insertion or removal returns once it is
+		 * logged and synced, concurrent ones sharing the same sync, and a
+		 * batch is synced once. The pages themselves are written later,
+		 * at the latest by a checkpoint, after which the
+		 * <code>.pag</code> and <code>.dir</code> files are the ones of
+		 * any database.
+		 * <p>
+		 * A log left by a crash is replayed when the database is opened
+		 * again with this option. Until then, the database cannot be
+		 * opened without it. This option is only allowed for databases
+		 * opened for writing.
+		 */
+		WRITE_AHEAD_LOG,
+		/**
+		 * Keep the values longer than a threshold, 128 octets by default,
+		 * out of the pages, in the files <code>database + ".vlg." +
+		 * n</code>, to which they are appended. The page only holds a
+		 * pointer of 20 octets to the value, so that pages hold more
+		 * pairs and are split less often, and that values of any length
+		 * can be inserted. Reading such a value takes one more positional
+		 * read.
+		 * <p>
+		 * Values replaced or removed leave garbage in the log, which is
+		 * collected in the background by the executor of the asynchronous
+		 * operations, one file at a time: the values still in use are
+		 * appended again, and the file deleted, while the other operations
+		 * proceed. Once values are logged, the database cannot be opened
+		 * without this option.
+		 */
+		VALUE_LOG
+	}
+
+	/* all the I/O is positional, so that no lock is held while waiting for it */
+	private final PageStorage pagStorage;
+	private final PageStorage dirStorage;
 
 	private final ByteOrder endianness;
 
-	/* also hold a PhantomReference to clear the mapping */
-	private final Map<Long,Reference<PagPage>> pagPages;
-	private final Map<Long,Reference<DirPage>> dirPages;
+	private final PageLocks pagLocks;
+	private final PageCache<PagPage> pagPages;
+	private final Directory directory;
+	private final PageVersions versions;
+
+	private volatile TraversalHint traversalHint;
+	/* pages read in advance by the traversals, 0 for none */
+	private volatile int readAhead;
+
+	/* null unless the database is opened with a write-ahead log */
+	private final WriteAheadLog log;
+	/*
+	 * taken for reading by the operations modifying pages, and for writing
+	 * by checkpoints and backups, which need the files to be left whole
+	 */
+	private final ReadWriteLock modificationLock;
+	private volatile long checkpointSize;
+
+	/* set while opening a database with a value log, never changed afterwards */
+	private ValueLog valueLog;
+	private volatile int valueLogThreshold;
+	/* held while the value log is collected, set once for the collection to stop */
+	private final Lock collectionLock;
+	private final AtomicBoolean collectionScheduled;
+	/* a file of the value log crossed the ratio of garbage during an operation */
+	private final AtomicBoolean collectionWanted;
+	private volatile boolean closing;
+
+	/* set while opening a database with a key filter, never changed afterwards */
+	private KeyFilter keyFilter;
+	/* where the key filter is saved on close, null if it is not */
+	private File keyFilterFile;
+	private File pagFile;
+	private File dirFile;
+
+	private final Metrics metrics;
+	/* name under which the MXBean is registered, guarded by this */
+	private ObjectName mBeanName;
+
+	/* runs the asynchronous operations, created on first use unless set */
+	private Executor executor;
+	/* the executor created by default, shut down on close, guarded by this */
+	private ExecutorService defaultExecutor;
+
+	/**
+	 * Counters of the page cache of a database.
+	 *
+	 * The values are the ones at the time this object was obtained by
+	 * {@link Dbm#getCacheStatistics()}.
+	 */
+	public static class CacheStatistics
+	{
+		private final long hits;
+		private final long misses;
+		private final long evictions;
+		private final int size;
+		private final int capacity;
+
+		CacheStatistics(long hits, long misses, long evictions, int size, int capacity)
+		{
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.size = size;
+			this.capacity = capacity;
+		}
+
+		/**
+		 * Number of page requests served from memory.
+		 */
+		public long getHits()
+		{
+			return hits;
+		}
+
+		/**
+		 * Number of page requests which needed the page to be read.
+		 */
+		public long getMisses()
+		{
+			return misses;
+		}
+
+		/**
+		 * Number of pages dropped from memory to make room for others.
+		 */
+		public long getEvictions()
+		{
+			return evictions;
+		}
+
+		/**
+		 * Number of pages currently held in memory.
+		 */
+		public int getSize()
+		{
+			return size;
+		}
+
+		/**
+		 * Maximum number of pages held in memory.
+		 */
+		public int getCapacity()
+		{
+			return capacity;
+		}
+
+		public String toString()
+		{
+			return "hits=" + hits + " misses=" + misses + " evictions=" + evictions + " size=" + size + "/" + capacity;
+		}
+	}
 
 	private static class Datum
 	implements Comparable<Datum>
@@ -101,137 +315,516 @@ public class Dbm
 		}
 	};
 
-	private class PagPage
+	/*
+	 * Stands for the Datum of the key held by a buffer, from its position
+	 * to its limit, when looking it up in a decoded page, so that no array
+	 * is allocated. Its hash code is the one of the Datum it stands for,
+	 * and it equals that Datum, but not the other way round: it is only
+	 * ever given to Map.get(), which compares the key it is given to the
+	 * ones of the map. Each thread reuses its own.
+	 */
+	private static class DatumProbe
+	{
+		private ByteBuffer key;
+
+		private DatumProbe wrap(ByteBuffer key)
+		{
+			this.key = key;
+			return this;
+		}
+
+		public boolean equals(Object otherObject)
+		{
+			if (!(otherObject instanceof Datum))
+				return false;
+
+			byte[] otherContent = ((Datum) otherObject).content;
+			int keyStart = key.position();
+			if (key.remaining() != otherContent.length)
+				return false;
+
+			for (int i = 0; i < otherContent.length; i++)
+			{
+				if (key.get(keyStart + i) != otherContent[i])
+					return false;
+			}
+
+			return true;
+		}
+
+		/* the same as Arrays.hashCode() of the key */
+		public int hashCode()
+		{
+			int hashCode = 1;
+			for (int i = key.position(); i < key.limit(); i++)
+				hashCode = 31 * hashCode + key.get(i);
+
+			return hashCode;
+		}
+	}
+
+	private static final ThreadLocal<DatumProbe> DATUM_PROBES = new ThreadLocal<DatumProbe>()
 	{
-		private static final int PAGFILE_PGSZ = 1024;
+		protected DatumProbe initialValue()
+		{
+			return new DatumProbe();
+		}
+	};
 
+	private class PagPage
+	implements PageCache.Page
+	{
 		private final long pagNum;
 		/* in octets : 2 + Sum_entries( 4 + key.length + data.length ) */
 		private int totalSize;
 		private boolean isDirty;
-		private final Map<Datum,Datum> keyMap;
+		/*
+		 * the page as read from disk, until it is decoded into keyMap.
+		 * keyMap is set before content is cleared, so that readers not
+		 * finding content can use keyMap.
+		 */
+		private volatile ByteBuffer content;
+		private volatile Map<Datum,Datum> keyMap;
+		/*
+		 * the page as it is to be written, kept from the decoding on and
+		 * edited in place as the original implementation does: pairs are
+		 * appended to the free space, and removals only move the pairs
+		 * after the one removed. Guarded by the exclusive lock of the page.
+		 */
+		private ByteBuffer image;
+		/* the ranges of image modified since it was written: [0, frontDirtyEnd) and [backDirtyStart, backDirtyEnd) */
+		private int frontDirtyEnd;
+		private int backDirtyStart;
+		private int backDirtyEnd;
+		/*
+		 * the keys in the order of the traversal by nextKey(), built on
+		 * demand and dropped when a key is added or removed
+		 */
+		private volatile Datum[] sortedKeys;
+		/* index in sortedKeys following the last key returned by getNextKey() */
+		private volatile int nextKeyHint;
+		/* end of the last frame of the log holding the page, if there is a log */
+		private long logPosition;
+		/*
+		 * serializes the decoding by concurrent readers. Not a monitor, since
+		 * reading a mapped page may block on I/O.
+		 */
+		private final Lock pageLock;
 
 		private PagPage(long pagNum)
 		throws DBException
+		{
+			this(pagNum, null);
+		}
+
+		/* a page read from an image rather than from the file, if image is not null */
+		private PagPage(long pagNum, byte[] savedImage)
+		throws DBException
 		{
 			this.pagNum = pagNum;
 			totalSize = 2;
 			isDirty = false;
-			keyMap = new HashMap<Datum,Datum>();
+			if (savedImage != null)
+			{
+				content = ByteBuffer.wrap(savedImage);
+				content.order(endianness);
+			}
+			else
+				content = readContent();
+			keyMap = null;
+			image = null;
+			frontDirtyEnd = 0;
+			backDirtyStart = PAGFILE_PGSZ;
+			backDirtyEnd = 0;
+			sortedKeys = null;
+			nextKeyHint = 0;
+			pageLock = new ReentrantLock();
+		}
+
+		private ByteBuffer readContent()
+		throws DBException
+		{
+			ByteBuffer contentBuf;
+			try
+			{
+				contentBuf = pagStorage.readPage(pagNum, PAGFILE_PGSZ, metrics);
+			}
+			catch (IOException exception)
+			{
+				throw new IODBException(exception);
+			}
+
+			contentBuf.order(endianness);
+			return contentBuf;
+		}
+
+		/*
+		 * turn the raw page into keyMap, needed before any modification.
+		 * Locked since concurrent readers may need it.
+		 */
+		private void decode()
+		throws DBException
+		{
+			if (keyMap != null)
+				return;
 
-			byte[] content = new byte[PAGFILE_PGSZ];
+			pageLock.lock();
 			try
 			{
-				pagFile.seek(pagNum * PAGFILE_PGSZ);
+				if (keyMap != null)
+					return;
+
+				Map<Datum,Datum> decodedMap = new HashMap<Datum,Datum>();
+				int decodedSize = 2;
 				try
 				{
-					pagFile.readFully(content);
-					ByteBuffer contentBuf = ByteBuffer.wrap(content);
-					contentBuf.order(endianness);
-
-					int elements = contentBuf.getShort();
+					int elements = content.getShort(0);
 					int lastPosition = PAGFILE_PGSZ;
 					byte[] currentKey = null;
 					for (int i = 0; i < elements; i++)
 					{
-						int nextPosition =  contentBuf.getShort();
+						int nextPosition = content.getShort(2 + 2 * i);
+						if (nextPosition > lastPosition)
+							throw new IndexOutOfBoundsException("Offset " + nextPosition + " past " + lastPosition);
+
 						byte[] data = new byte[lastPosition-nextPosition];
-						System.arraycopy(content, nextPosition, data, 0, data.length);
+						ByteBuffer dataBuf = content.duplicate();
+						dataBuf.position(nextPosition);
+						dataBuf.get(data);
 
 						if (i % 2 == 0)
 							currentKey = data;
 						else
-							keyMap.put(new Datum(currentKey),new Datum(data));
+							decodedMap.put(new Datum(currentKey),new Datum(data));
 
 						lastPosition = nextPosition;
-						totalSize += data.length + 2;
+						decodedSize += data.length + 2;
 					}
+					/* else pairs could not be edited in place */
+					if (elements % 2 != 0 || lastPosition < 2 + 2 * elements)
+						throw new IndexOutOfBoundsException("Offset table of " + elements + " entries past " + lastPosition);
 				}
-				catch (EOFException exception)
-				{
-					;
-				}
-				catch (IndexOutOfBoundsException exception)
+				catch (RuntimeException exception)
 				{
-					keyMap.clear();
-					totalSize = 2;
+					/* out of bounds offsets or offset table */
 					throw new CorruptedDBException("Corrupted page " + pagNum, exception);
 				}
+
+				byte[] imageContent = new byte[PAGFILE_PGSZ];
+				content.duplicate().get(imageContent);
+				image = ByteBuffer.wrap(imageContent);
+				image.order(endianness);
+
+				keyMap = decodedMap;
+				totalSize = decodedSize;
+				content = null;
 			}
-			catch (IOException exception)
+			finally
 			{
-				throw new IODBException(exception);
+				pageLock.unlock();
 			}
 		}
 
-		private void writePage()
+		/*
+		 * Look the key, from its position to its limit, up in the offset
+		 * table of the raw page, comparing it in place. Returns the
+		 * position of the value in the page in the high half, and its
+		 * length in the low half, or -1 if the key is not in the page.
+		 */
+		private long locateValue(ByteBuffer content, ByteBuffer key)
 		throws DBException
 		{
-			if (isDirty)
+			try
 			{
-				byte[] content = new byte[PAGFILE_PGSZ];
-				ByteBuffer contentBuf = ByteBuffer.wrap(content);
-				contentBuf.order(endianness);
-
-				contentBuf.putShort((short) (keyMap.size() * 2));
+				int keyLength = key.remaining();
+				int elements = content.getShort(0);
 				int lastPosition = PAGFILE_PGSZ;
-				for (Map.Entry<Datum,Datum> pair : keyMap.entrySet())
+				for (int i = 0; i + 1 < elements; i += 2)
 				{
-					for (int i = 0; i < 2; i++)
-					{
-						byte[] data;
-
-						if (i % 2 == 0)
-							data = pair.getKey().content;
-						else
-							data = pair.getValue().content;
+					int keyPosition = content.getShort(2 + 2 * i);
+					int valuePosition = content.getShort(4 + 2 * i);
+					if (keyPosition > lastPosition || valuePosition > keyPosition)
+						throw new IndexOutOfBoundsException("Offset " + keyPosition + " past " + lastPosition);
 
-						int nextPosition = lastPosition - data.length;
-						System.arraycopy(data, 0, content, nextPosition, data.length);
-						contentBuf.putShort((short) nextPosition);
+					if (lastPosition - keyPosition == keyLength && matchesAt(content, keyPosition, key))
+						return ((long) valuePosition << 32) | (keyPosition - valuePosition);
 
-						lastPosition = nextPosition;
-					}
+					lastPosition = valuePosition;
 				}
+			}
+			catch (RuntimeException exception)
+			{
+				/* out of bounds offsets or offset table */
+				throw new CorruptedDBException("Corrupted page " + pagNum, exception);
+			}
+
+			return -1;
+		}
+
+		private boolean matchesAt(ByteBuffer content, int position, ByteBuffer key)
+		{
+			int keyStart = key.position();
+			int keyLength = key.remaining();
+			for (int i = 0; i < keyLength; i++)
+			{
+				if (content.get(position + i) != key.get(keyStart + i))
+					return false;
+			}
+
+			return true;
+		}
+
+		/* before the page is first modified since the last snapshot was taken */
+		private void preserve()
+		throws DBException
+		{
+			if (versions.mustSave(pagNum))
+				versions.save(pagNum, encode());
+		}
+
+		/* the page as written to the file */
+		private byte[] encode()
+		throws DBException
+		{
+			decode();
+			return Arrays.copyOf(image.array(), PAGFILE_PGSZ);
+		}
+
+		/* only the ranges modified, in one write if they are close */
+		public void writePage()
+		throws DBException
+		{
+			if (isDirty)
+			{
+				int written = 0;
 				try
 				{
-					synchronized(pagFile)
+					/* the image of the page must reach the log before the file */
+					if (log != null)
+						log.sync(logPosition);
+
+					if (backDirtyStart - frontDirtyEnd <= DIRTY_RANGE_GAP)
+						written += writeRange(0, Math.max(frontDirtyEnd, backDirtyEnd));
+					else
 					{
-						pagFile.seek(pagNum * PAGFILE_PGSZ);
-						pagFile.write(content);
+						written += writeRange(0, frontDirtyEnd);
+						written += writeRange(backDirtyStart, backDirtyEnd);
 					}
 				}
 				catch (IOException exception)
 				{
 					throw new IODBException(exception);
 				}
+				metrics.pagWritten(written);
+				frontDirtyEnd = 0;
+				backDirtyStart = PAGFILE_PGSZ;
+				backDirtyEnd = 0;
 				isDirty = false;
 			}
 		}
 
-		protected void finalize()
-		throws Throwable
+		private int writeRange(int start, int end)
+		throws IOException
+		{
+			if (end <= start)
+				return 0;
+
+			pagStorage.write(ByteBuffer.wrap(image.array(), start, end - start), pagNum * PAGFILE_PGSZ + start);
+			return end - start;
+		}
+
+		private void markFront(int end)
+		{
+			frontDirtyEnd = Math.max(frontDirtyEnd, end);
+		}
+
+		private void markBack(int start, int end)
+		{
+			backDirtyStart = Math.min(backDirtyStart, start);
+			backDirtyEnd = Math.max(backDirtyEnd, end);
+		}
+
+		/* offset of the pair data closest to the offset table, where the free space ends */
+		private int dataStart()
+		{
+			int elements = image.getShort(0);
+			return (elements == 0) ? PAGFILE_PGSZ : image.getShort(2 * elements);
+		}
+
+		/*
+		 * index in the offset table of the key of a pair of the image, or -1
+		 * if it is not there. The key of the pair at index i ends where the
+		 * value of the previous pair begins.
+		 */
+		private int findPair(byte[] key)
+		{
+			int elements = image.getShort(0);
+			int lastPosition = PAGFILE_PGSZ;
+			for (int i = 0; i + 1 < elements; i += 2)
+			{
+				int keyPosition = image.getShort(2 + 2 * i);
+				if (lastPosition - keyPosition == key.length && matchesAt(image, keyPosition, ByteBuffer.wrap(key)))
+					return i;
+
+				lastPosition = image.getShort(4 + 2 * i);
+			}
+
+			return -1;
+		}
+
+		private int pairEnd(int i)
+		{
+			return (i == 0) ? PAGFILE_PGSZ : image.getShort(2 * i);
+		}
+
+		/* in the free space, which must be big enough */
+		private void appendPair(byte[] key, byte[] value)
+		{
+			int elements = image.getShort(0);
+			int keyPosition = dataStart() - key.length;
+			int valuePosition = keyPosition - value.length;
+
+			System.arraycopy(key, 0, image.array(), keyPosition, key.length);
+			System.arraycopy(value, 0, image.array(), valuePosition, value.length);
+			image.putShort(2 + 2 * elements, (short) keyPosition);
+			image.putShort(4 + 2 * elements, (short) valuePosition);
+			image.putShort(0, (short) (elements + 2));
+
+			markFront(6 + 2 * elements);
+			markBack(valuePosition, keyPosition + key.length);
+		}
+
+		/* the data of the following pairs is moved over the pair, and their offsets shifted */
+		private void removePair(int i)
+		{
+			int elements = image.getShort(0);
+			int end = pairEnd(i);
+			int valuePosition = image.getShort(4 + 2 * i);
+			int size = end - valuePosition;
+			int start = dataStart();
+
+			byte[] imageContent = image.array();
+			System.arraycopy(imageContent, start, imageContent, start + size, valuePosition - start);
+			for (int j = i + 2; j < elements; j++)
+				image.putShort(2 * j - 2, (short) (image.getShort(2 + 2 * j) + size));
+			image.putShort(0, (short) (elements - 2));
+
+			markFront(2 * elements - 2);
+			markBack(start + size, end);
+		}
+
+		/* a value of the same length is written over the previous one */
+		private void replaceValue(int i, byte[] value)
 		{
-			writePage();
-			super.finalize();
+			int valuePosition = image.getShort(4 + 2 * i);
+			int keyPosition = image.getShort(2 + 2 * i);
+			if (keyPosition - valuePosition == value.length)
+			{
+				System.arraycopy(value, 0, image.array(), valuePosition, value.length);
+				markBack(valuePosition, keyPosition);
+				return;
+			}
+
+			byte[] key = Arrays.copyOfRange(image.array(), keyPosition, pairEnd(i));
+			removePair(i);
+			appendPair(key, value);
 		}
 
 		private byte[] fetchKey(byte[] key)
+		throws DBException
 		{
+			ByteBuffer rawContent = content;
+			if (rawContent != null)
+			{
+				/* only the value of the matching key is copied */
+				long located = locateValue(rawContent, ByteBuffer.wrap(key));
+				if (located < 0)
+					return null;
+
+				byte[] value = new byte[(int) located];
+				ByteBuffer valueBuf = rawContent.duplicate();
+				valueBuf.position((int) (located >>> 32));
+				valueBuf.get(value);
+				return value;
+			}
+
 			Datum value = keyMap.get(new Datum(key));
 			return (value != null) ? value.content : null;
 		}
 
+		/*
+		 * Look the key up without allocating anything, and copy its value
+		 * to out, unless out is null. Returns the length of the value, or
+		 * -1 if the key is not in the page.
+		 */
+		private int fetchKey(ByteBuffer key, ByteBuffer out)
+		throws DBException
+		{
+			ByteBuffer rawContent = content;
+			if (rawContent != null)
+			{
+				long located = locateValue(rawContent, key);
+				if (located < 0)
+					return -1;
+
+				int valuePosition = (int) (located >>> 32);
+				int length = (int) located;
+				if (out != null)
+				{
+					if (out.remaining() < length)
+						throw new BufferOverflowException();
+					if (rawContent.hasArray())
+						out.put(rawContent.array(), rawContent.arrayOffset() + valuePosition, length);
+					else
+					{
+						for (int i = 0; i < length; i++)
+							out.put(rawContent.get(valuePosition + i));
+					}
+				}
+				return length;
+			}
+
+			DatumProbe probe = DATUM_PROBES.get();
+			Datum value;
+			try
+			{
+				value = keyMap.get(probe.wrap(key));
+			}
+			finally
+			{
+				probe.wrap(null);
+			}
+			if (value == null)
+				return -1;
+
+			if (out != null)
+			{
+				if (out.remaining() < value.content.length)
+					throw new BufferOverflowException();
+				out.put(value.content);
+			}
+			return value.content.length;
+		}
+
 		private boolean writeKey(byte[] key, byte[] value)
+		throws DBException
 		{
 			if (key.length + value.length + 6 > PAGFILE_PGSZ)
 				throw new IllegalArgumentException("Will never be able to insert: key+value too long!");
 
+			decode();
+			preserve();
+
 			Datum originalValue = keyMap.get(new Datum(key));
 			if (originalValue != null)
 			{
 				if (totalSize - originalValue.content.length + value.length <= PAGFILE_PGSZ)
 				{
+					int pair = findPair(key);
+					if (pair < 0)
+						throw new CorruptedDBException("Key missing from page " + pagNum);
+					replaceValue(pair, value);
+
 					keyMap.put(new Datum(key), new Datum(value));
 					totalSize += value.length - originalValue.content.length;
 					isDirty = true;
@@ -242,9 +835,12 @@ public class Dbm
 			{
 				if (totalSize + 4 + key.length + value.length <= PAGFILE_PGSZ)
 				{
+					appendPair(key, value);
+
 					keyMap.put(new Datum(key), new Datum(value));
 					totalSize += 4 + key.length + value.length;
 					isDirty = true;
+					sortedKeys = null;
 					return true;
 				}
 			}
@@ -254,161 +850,183 @@ public class Dbm
 		}
 
 		private byte[] removeKey(byte[] key)
+		throws DBException
 		{
+			decode();
 			Datum datum = new Datum(key);
 
 			byte[] value = null;
 			if (keyMap.containsKey(datum))
 			{
+				preserve();
+				int pair = findPair(key);
+				if (pair < 0)
+					throw new CorruptedDBException("Key missing from page " + pagNum);
+				removePair(pair);
+
 				value = keyMap.remove(datum).content;
 				totalSize -= 4 + key.length + value.length;
 				isDirty = true;
+				sortedKeys = null;
 			}
 
 			return value;
 		}
 
-		private Iterable<byte[]> getAllKeys()
+		/* a copy, so that it can be used once the page is unlocked */
+		private List<byte[]> getAllKeys()
+		throws DBException
 		{
-			Set<Datum> keySet = keyMap.keySet();
-			final Iterator<Datum> internalIterator = keySet.iterator();
-
-			return new Iterable<byte[]>()
-			{
-				public Iterator<byte[]> iterator()
-				{
-					return new Iterator<byte[]>()
-					{
-						public boolean hasNext()
-						{
-							return internalIterator.hasNext();
-						}
-
-						public byte[] next()
-						{
-							return internalIterator.next().content;
-						}
+			decode();
+			List<byte[]> keys = new ArrayList<byte[]>(keyMap.size());
+			for (Datum key : keyMap.keySet())
+				keys.add(key.content);
 
-						public void remove()
-						{
-							throw new UnsupportedOperationException("Cannot remove a key this way!");
-						}
-					};
-				}
-			};
+			return Collections.unmodifiableList(keys);
 		}
 
-		private byte[] getNextKey(byte[] previousKey)
+		/*
+		 * copies of the keys and values, read in one pass over the raw
+		 * page when it is not decoded
+		 */
+		private List<Map.Entry<byte[],byte[]>> getAllEntries()
+		throws DBException
 		{
-			Datum previousKeyDatum = (previousKey != null) ? new Datum(previousKey) : null;
+			List<Map.Entry<byte[],byte[]>> entries = new ArrayList<Map.Entry<byte[],byte[]>>();
 
-			Datum selectedNextDatum = null;
-			for (Datum otherKeyDatum : keyMap.keySet())
+			ByteBuffer rawContent = content;
+			if (rawContent == null)
 			{
-				if ((previousKeyDatum == null || otherKeyDatum.compareTo(previousKeyDatum) < 0) &&
-				    (selectedNextDatum == null || otherKeyDatum.compareTo(selectedNextDatum) > 0))
-					selectedNextDatum = otherKeyDatum;
+				for (Map.Entry<Datum,Datum> pair : keyMap.entrySet())
+					entries.add(new AbstractMap.SimpleImmutableEntry<byte[],byte[]>(pair.getKey().content, pair.getValue().content));
+
+				return Collections.unmodifiableList(entries);
 			}
 
-			if (selectedNextDatum != null)
-				return selectedNextDatum.content;
+			try
+			{
+				int elements = rawContent.getShort(0);
+				int lastPosition = PAGFILE_PGSZ;
+				for (int i = 0; i + 1 < elements; i += 2)
+				{
+					int keyPosition = rawContent.getShort(2 + 2 * i);
+					int valuePosition = rawContent.getShort(4 + 2 * i);
+					if (keyPosition > lastPosition || valuePosition > keyPosition)
+						throw new IndexOutOfBoundsException("Offset " + keyPosition + " past " + lastPosition);
 
-			return null;
-		}
+					byte[] key = new byte[lastPosition - keyPosition];
+					byte[] value = new byte[keyPosition - valuePosition];
+					ByteBuffer dataBuf = rawContent.duplicate();
+					dataBuf.position(valuePosition);
+					dataBuf.get(value);
+					dataBuf.get(key);
+					entries.add(new AbstractMap.SimpleImmutableEntry<byte[],byte[]>(key, value));
 
-		private void clear()
-		{
-			totalSize = 2;
-			keyMap.clear();
-			isDirty = true;
-		}
+					lastPosition = valuePosition;
+				}
+			}
+			catch (RuntimeException exception)
+			{
+				/* out of bounds offsets or offset table */
+				throw new CorruptedDBException("Corrupted page " + pagNum, exception);
+			}
 
-		private boolean isDirty()
-		{
-			return isDirty;
+			return Collections.unmodifiableList(entries);
 		}
-	}
-
-	private class DirPage
-	{
-		public static final int DIRFILE_PGSZ = 4096;
 
-		private final long pagNum;
-		private boolean isDirty;
-		private final byte[] data;
-
-		public DirPage(long pagNum)
+		/* the keys from the greatest to the smallest */
+		private Datum[] getSortedKeys()
 		throws DBException
 		{
-			this.pagNum = pagNum;
-			isDirty = false;
-
-			data = new byte[DIRFILE_PGSZ];
+			pageLock.lock();
 			try
 			{
-				dirFile.seek(pagNum * DIRFILE_PGSZ);
-				try
+				Datum[] keys = sortedKeys;
+				if (keys == null)
 				{
-					dirFile.readFully(data);
-				}
-				catch (EOFException exception)
-				{
-					;
+					decode();
+					keys = keyMap.keySet().toArray(new Datum[keyMap.size()]);
+					Arrays.sort(keys, Collections.reverseOrder());
+					sortedKeys = keys;
 				}
+
+				return keys;
 			}
-			catch (IOException exception)
+			finally
 			{
-				throw new IODBException(exception);
+				pageLock.unlock();
 			}
 		}
 
-		public void writePage()
+		/*
+		 * The greatest key smaller than previousKey. When previousKey is the
+		 * last key returned, as in a traversal, its successor is given by
+		 * the hint, otherwise it is searched for.
+		 */
+		private byte[] getNextKey(byte[] previousKey)
 		throws DBException
 		{
-			if (isDirty)
-			{
-				try
-				{
-					synchronized(dirFile)
-					{
-						dirFile.seek(pagNum * DIRFILE_PGSZ);
-						dirFile.write(data);
-					}
-				}
-				catch (IOException exception)
-				{
-					throw new IODBException(exception);
-				}
-			}
-		}
+			Datum[] keys = sortedKeys;
+			if (keys == null)
+				keys = getSortedKeys();
 
-		protected void finalize()
-		throws Throwable
-		{
-			writePage();
-			super.finalize();
+			int index;
+			int hint = nextKeyHint;
+			if (previousKey == null)
+				index = 0;
+			else if (hint > 0 && hint <= keys.length && Arrays.equals(keys[hint - 1].content, previousKey))
+				index = hint;
+			else
+				index = firstSmallerKey(keys, new Datum(previousKey));
+
+			if (index >= keys.length)
+				return null;
+
+			nextKeyHint = index + 1;
+			return keys[index].content;
 		}
 
-		public boolean getBit(long bitNum)
+		private int firstSmallerKey(Datum[] keys, Datum key)
 		{
-			long localBit = bitNum - pagNum * DIRFILE_PGSZ * 8;
-
-			if (localBit < 0 || localBit >= DIRFILE_PGSZ * 8)
-				throw new IllegalArgumentException("Wrong DirPage!");
+			int low = 0;
+			int high = keys.length;
+			while (low < high)
+			{
+				int middle = (low + high) >>> 1;
+				if (keys[middle].compareTo(key) < 0)
+					high = middle;
+				else
+					low = middle + 1;
+			}
 
-			return ((((data[(int) localBit/8])>>(localBit%8))&1) == 1);
+			return low;
 		}
 
-		public void setBit(long bitNum)
+		private boolean isEmpty()
 		{
-			long localBit = bitNum - pagNum * DIRFILE_PGSZ * 8;
+			ByteBuffer rawContent = content;
+			if (rawContent != null)
+				return rawContent.getShort(0) == 0;
 
-			 if (localBit < 0 || localBit >= DIRFILE_PGSZ * 8)
-				throw new IllegalArgumentException("Wrong DirPage!");
-
-			data[(int) localBit/8] |= (1 << (localBit % 8));
+			return keyMap.isEmpty();
+		}
 
+		private void clear()
+		throws DBException
+		{
+			decode();
+			preserve();
+			image.putShort(0, (short) 0);
+			markFront(2);
+			totalSize = 2;
+			keyMap.clear();
 			isDirty = true;
+			sortedKeys = null;
+		}
+
+		public boolean isDirty()
+		{
+			return isDirty;
 		}
 	}
 
@@ -431,16 +1049,236 @@ public class Dbm
 	public Dbm(String database, String fileOptions, Endianness endianness)
 	throws IOException
 	{
-		File pagF = new File(database + PAG_EXT);
-		File dirF = new File(database + DIR_EXT);
+		this(database, fileOptions, endianness, new OpenOption[0]);
+	}
+
+	/**
+	 * Connect to the database with the specified file options, endianness
+	 * and open options.
+	 *
+	 * This constructor behaves as {@link #Dbm(String, String, Endianness)},
+	 * with the additional behaviours requested in <code>options</code>.
+	 *
+	 * @param database The files <code>database + ".pag"</code> and
+	 * <code>database + ".dir"</code> will be attempted to be opened.
+	 * @param fileOptions Mode of opening, as specified by the
+	 * <code>mode</code> of {@link java.io.RandomAccessFile}.
+	 * @param endianness Either {@link Endianness#LITTLE_ENDIAN}
+	 * or {@link Endianness#BIG_ENDIAN}.
+	 * @param options Any combination of {@link OpenOption}.
+	 * @throws IllegalArgumentException if {@link OpenOption#MEMORY_MAPPED}
+	 * is requested and <code>fileOptions</code> is not <code>"r"</code>.
+	 */
+	public Dbm(String database, String fileOptions, Endianness endianness, OpenOption... options)
+	throws IOException
+	{
+		this(openLog(database, fileOptions, options),
+		     openPagStorage(database, fileOptions, options),
+		     new FileStorage(new RandomAccessFile(new File(database + DIR_EXT), fileOptions)),
+		     endianness);
+
+		Set<OpenOption> optionSet = optionSet(options);
+		boolean persistentFilter = optionSet.contains(OpenOption.PERSISTENT_KEY_FILTER);
+		try
+		{
+			if (optionSet.contains(OpenOption.VALUE_LOG))
+				valueLog = new ValueLog(database, fileOptions, DEFAULT_VALUE_LOG_SEGMENT_SIZE);
+			else if (!ValueLog.segmentFiles(database).isEmpty())
+				throw new IOException("The values of " + database + " are in a value log, it must be opened with it!");
+
+			if (persistentFilter || optionSet.contains(OpenOption.KEY_FILTER))
+				openKeyFilter(database, !fileOptions.equals("r"), persistentFilter);
+		}
+		catch (IOException exception)
+		{
+			closeStorages();
+			throw exception;
+		}
+	}
+
+	private static Set<OpenOption> optionSet(OpenOption... options)
+	{
+		Set<OpenOption> optionSet = EnumSet.noneOf(OpenOption.class);
+		optionSet.addAll(Arrays.asList(options));
+		return optionSet;
+	}
+
+	private static WriteAheadLog openLog(String database, String fileOptions, OpenOption... options)
+	throws IOException
+	{
+		File logFile = new File(database + LOG_EXT);
+		if (!optionSet(options).contains(OpenOption.WRITE_AHEAD_LOG))
+		{
+			if (logFile.length() > 0)
+				throw new IOException("The log " + logFile + " must be replayed, by opening the database with a write-ahead log!");
+			return null;
+		}
+
+		if (fileOptions.equals("r"))
+			throw new IllegalArgumentException("Only databases opened for writing can have a write-ahead log!");
+
+		return new WriteAheadLog(logFile);
+	}
+
+	private static PageStorage openPagStorage(String database, String fileOptions, OpenOption... options)
+	throws IOException
+	{
+		Set<OpenOption> optionSet = optionSet(options);
+
+		boolean memoryMapped = optionSet.contains(OpenOption.MEMORY_MAPPED);
+		if (memoryMapped && !fileOptions.equals("r"))
+			throw new IllegalArgumentException("Only read-only databases can be memory mapped!");
+
+		RandomAccessFile pagFile = new RandomAccessFile(new File(database + PAG_EXT), fileOptions);
+		if (memoryMapped)
+			return new MappedStorage(pagFile);
+		else
+			return new FileStorage(pagFile);
+	}
+
+	private Dbm(WriteAheadLog log, PageStorage pagStorage, PageStorage dirStorage, Endianness endianness)
+	throws IOException
+	{
+		this.pagStorage = pagStorage;
+		this.dirStorage = dirStorage;
 
-		pagFile = new RandomAccessFile(pagF, fileOptions);
-		dirFile = new RandomAccessFile(dirF, fileOptions);
+		/* before anything is read from the files */
+		this.log = log;
+		if (log != null)
+			log.recover(pagStorage, dirStorage);
+		modificationLock = new ReentrantReadWriteLock();
+		checkpointSize = DEFAULT_CHECKPOINT_SIZE;
 
 		this.endianness = endianness.getEndianness();
 
-		pagPages = new TreeMap<Long,Reference<PagPage>>();
-		dirPages = new TreeMap<Long,Reference<DirPage>>();
+		metrics = new Metrics();
+		mBeanName = null;
+		executor = null;
+		defaultExecutor = null;
+
+		pagLocks = new PageLocks(PAG_LOCK_STRIPE_BITS);
+
+		pagPages = new PageCache<PagPage>(new PageCache.Loader<PagPage>()
+		{
+			public PagPage load(long pagNum)
+			throws DBException
+			{
+				return new PagPage(pagNum);
+			}
+		}, pagLocks, DEFAULT_CACHE_SIZE);
+		directory = new Directory(dirStorage, metrics);
+		versions = new PageVersions();
+		traversalHint = null;
+		readAhead = 0;
+		valueLog = null;
+		valueLogThreshold = DEFAULT_VALUE_LOG_THRESHOLD;
+		collectionLock = new ReentrantLock();
+		collectionScheduled = new AtomicBoolean();
+		collectionWanted = new AtomicBoolean();
+		closing = false;
+		keyFilter = null;
+		keyFilterFile = null;
+	}
+
+	/*
+	 * Load the saved key filter if it is up to date, else build it from
+	 * all the keys. A database opened for writing is modified without
+	 * updating the saved filter, which is removed until it is saved again
+	 * on close.
+	 */
+	private void openKeyFilter(String database, boolean writable, boolean persistent)
+	throws IOException
+	{
+		pagFile = new File(database + PAG_EXT);
+		dirFile = new File(database + DIR_EXT);
+
+		File savedFile = new File(database + FILTER_EXT);
+		KeyFilter filter = null;
+		if (persistent && savedFile.exists())
+		{
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(savedFile), 1 << 16));
+			try
+			{
+				filter = KeyFilter.readFrom(input, fileStamp());
+			}
+			catch (IOException exception)
+			{
+				/* truncated or not a filter, built again */
+				filter = null;
+			}
+			finally
+			{
+				input.close();
+			}
+			if (writable)
+				Files.deleteIfExists(savedFile.toPath());
+		}
+
+		if (filter == null)
+		{
+			try
+			{
+				/* sized from the file, the filter growing if it holds more keys */
+				filter = new KeyFilter(pagStorage.length() / PAGFILE_PGSZ * FILTER_KEYS_PER_PAGE);
+				for (byte[] key : allKeys())
+					filter.add(computeHash(key));
+			}
+			catch (RuntimeException exception)
+			{
+				if (exception.getCause() instanceof DBException)
+					throw new IOException("Cannot build the key filter!", exception.getCause());
+				throw exception;
+			}
+		}
+
+		keyFilter = filter;
+		keyFilterFile = (persistent && writable) ? savedFile : null;
+	}
+
+	/* tells whether the files were modified since the filter was saved */
+	private long[] fileStamp()
+	{
+		return new long[] { pagFile.length(), pagFile.lastModified(), dirFile.length(), dirFile.lastModified() };
+	}
+
+	/* once all the pages are written, and before the files are closed */
+	private void saveKeyFilter()
+	throws IOException
+	{
+		File temporaryFile = new File(keyFilterFile.getPath() + ".tmp");
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), 1 << 16));
+		try
+		{
+			keyFilter.writeTo(output, fileStamp());
+		}
+		finally
+		{
+			output.close();
+		}
+		Files.move(temporaryFile.toPath(), keyFilterFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Create a database held in memory.
+	 *
+	 * The database behaves as one backed by files, but its content is
+	 * lost once it is closed. Only the pages written take memory.
+	 *
+	 * @param endianness Either {@link Endianness#LITTLE_ENDIAN}
+	 * or {@link Endianness#BIG_ENDIAN}, which only matters for the
+	 * format of the pages in memory.
+	 */
+	public static Dbm createInMemory(Endianness endianness)
+	{
+		try
+		{
+			return new Dbm(null, new MemoryStorage(), new MemoryStorage(), endianness);
+		}
+		catch (IOException exception)
+		{
+			/* memory storages do not throw */
+			throw new IllegalStateException(exception);
+		}
 	}
 
 	/**
@@ -472,223 +1310,2132 @@ public class Dbm
 		this(database, "rw");
 	}
 
-	private static byte[] hitab = new byte[] {
-		61, 57, 53, 49, 45, 41, 37, 33,
-		29, 25, 21, 17, 13, 9, 5, 1
-	};
-
-	private static int[] hltab = new int[] {
-		0x3100d2bf, 0x3118e3de, 0x34ab1372, 0x2807a847,
-		0x1633f566, 0x2143b359, 0x26d56488, 0x3b9e6f59,
-		0x37755656, 0x3089ca7b, 0x18e92d85, 0x0cd0e9d8,
-		0x1a9e3b54, 0x3eaa902f, 0x0d9bfaae, 0x2f32b45b,
-		0x31ed6102, 0x3d3c8398, 0x146660e3, 0x0f8d4b76,
-		0x02c77a5f, 0x146c8799, 0x1c47f51f, 0x249f8f36,
-		0x24772043, 0x1fbc1e4d, 0x1e86b3fa, 0x37df36a6,
-		0x16ed30e4, 0x02c3148e, 0x216e5929, 0x0636b34e,
-		0x317f9f56, 0x15f09d70, 0x131026fb, 0x38c784b1,
-		0x29ac3305, 0x2b485dc5, 0x3c049ddc, 0x35a9fbcd,
-		0x31d5373b, 0x2b246799, 0x0a2923d3, 0x08a96e9d,
-		0x30031a9f, 0x08f525b5, 0x33611c06, 0x2409db98,
-		0x0ca4feb2, 0x1000b71e, 0x30566e32, 0x39447d31,
-		0x194e3752, 0x08233a95, 0x0f38fe36, 0x29c7cd57,
-		0x0f7b3a39, 0x328e8a16, 0x1e7d1388, 0x0fba78f5,
-		0x274c7e7c, 0x1e8be65c, 0x2fa0b0bb, 0x1eb6c371
-	};
-
-	private static int computeHash(byte[] key)
-	{
-		byte hashi = 0;
-		int hashl = 0;
-		for (byte elem : key)
-		{
-			for (int i = 0; i < 2; i++)
-			{
-				hashi += hitab[elem & (hitab.length - 1)];
-				hashl += hltab[hashi & (hltab.length - 1)];
-				elem >>= 4;
-			}
-		}
-
-		return hashl;
-	}
-
-	private PagPage getPagPage(long pagNum)
+	/**
+	 * Set the number of <code>.pag</code> pages kept in memory.
+	 *
+	 * Each page takes about 1KB of memory. When the cache is full, the
+	 * pages are evicted following the CLOCK algorithm, and written back
+	 * if they were modified.
+	 *
+	 * @param pages Maximum number of pages held, at least 1.
+	 * @throws IODBException if a modified page could not be written back
+	 * while shrinking the cache.
+	 */
+	public void setCacheSize(int pages)
 	throws DBException
 	{
-		PagPage page = null;
-		Reference<PagPage> ref = pagPages.get(pagNum);
-		if (ref != null)
-			page = ref.get();
-		if (page == null)
-		{
-			page = new PagPage(pagNum);
-			pagPages.put(pagNum, new SoftReference<PagPage>(page));
-		}
-
-		return page;
+		pagPages.setCapacity(pages);
 	}
 
-	private DirPage getDirPage(long pagNum)
-	throws DBException
+	/**
+	 * Set the number of pages read in advance by the traversals of
+	 * {@link #allKeys()} and {@link #allEntries()}. The default is 0.
+	 *
+	 * The order in which a traversal visits the pages is known from the
+	 * <code>.dir</code> file, so while the pairs of a page are consumed,
+	 * the next pages are read into the cache by the executor of the
+	 * database, see {@link #setExecutor(Executor)}, instead of one at a
+	 * time when the traversal reaches them. The pages read ahead take
+	 * room in the cache, so the depth should stay well below its size.
+	 *
+	 * @param pages Number of pages read ahead of the one being consumed.
+	 */
+	public void setReadAhead(int pages)
 	{
-		DirPage page = null;
-		Reference<DirPage> ref = dirPages.get(pagNum);
-		if (ref != null)
-			page = ref.get();
-		if (page == null)
-		{
-			page = new DirPage(pagNum);
-			dirPages.put(pagNum, new SoftReference<DirPage>(page));
-		}
+		if (pages < 0)
+			throw new IllegalArgumentException("The read-ahead cannot be negative!");
 
-		return page;
+		readAhead = pages;
 	}
 
-	private boolean isSplit(int mask, long pagNum)
-	throws DBException
+	/**
+	 * Obtain the counters of the <code>.pag</code> page cache.
+	 *
+	 * @return The hits, misses and evictions since the database was
+	 * opened, and the current occupancy of the cache.
+	 */
+	public CacheStatistics getCacheStatistics()
 	{
-		long bitNum = (mask & 0xffffffffl) + pagNum;
-		DirPage page = getDirPage(bitNum / (8 * DirPage.DIRFILE_PGSZ));
-		return page.getBit(bitNum);
+		return pagPages.getStatistics();
 	}
 
-	private void markSplit(int mask, long pagNum)
-	throws DBException
+	/**
+	 * Obtain the counters and latencies of the database.
+	 *
+	 * They are always maintained, at the cost of a few increments of
+	 * uncontended counters per operation.
+	 *
+	 * @return The numbers of reads and writes of both files, the
+	 * counters of the page cache and of splits, and the latency
+	 * histograms of the operations, since the database was opened.
+	 */
+	public Statistics getStatistics()
 	{
-		long bitNum = (mask & 0xffffffffl) + pagNum;
-		DirPage page = getDirPage(bitNum / (8 * DirPage.DIRFILE_PGSZ));
-		page.setBit(bitNum);
-		page.writePage();
+		return metrics.getStatistics(getCacheStatistics(), directory.maxDepth());
 	}
 
-	private void splitPage(int mask, long pagNum)
-	throws DBException
+	/**
+	 * Register a {@link DbmMXBean} of this database in the platform
+	 * MBean server.
+	 *
+	 * The MXBean is unregistered when the database is closed.
+	 *
+	 * @param name The value of the <code>name</code> key of the object
+	 * name, usually the name of the database.
+	 * @return The object name of the MXBean,
+	 * <code>eu.godfroy.dbm:type=Dbm,name=</code> followed by the quoted
+	 * name.
+	 * @throws IllegalStateException if an MXBean is already registered for
+	 * this database, or another one with the same name.
+	 */
+	public synchronized ObjectName registerMBean(String name)
 	{
-		if (mask == -1)
-			throw new InsertImpossibleDBException("Cannot split anymore!");
-
-		PagPage pagPage = getPagPage(pagNum);
-		long newPagNum = pagNum | ((mask + 1) & 0xffffffffl);
-		PagPage newPagPage = getPagPage(newPagNum);
-		if (newPagPage.totalSize != 2)
-			throw new CorruptedDBException("Page " + newPagNum + " is not empty!");
+		if (mBeanName != null)
+			throw new IllegalStateException("Already registered as " + mBeanName + "!");
 
-		List<byte[]> keys = new ArrayList<byte[]>();
-		List<byte[]> values = new ArrayList<byte[]>();
-		for (byte[] key : pagPage.getAllKeys())
+		try
 		{
-			byte[] value = pagPage.fetchKey(key);
-			keys.add(key);
-			values.add(value);
+			ObjectName objectName = new ObjectName("eu.godfroy.dbm:type=Dbm,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new DbmMonitor(this), objectName);
+			mBeanName = objectName;
+			return objectName;
 		}
-		pagPage.clear();
+		catch (JMException exception)
+		{
+			throw new IllegalStateException("Cannot register " + name + "!", exception);
+		}
+	}
 
-		int newMask = (mask << 1) + 1;
+	private synchronized void unregisterMBean()
+	{
+		if (mBeanName == null)
+			return;
 
-		for (int i = 0; i < keys.size(); i++)
+		try
 		{
-			byte[] key = keys.get(i);
-			byte[] value = values.get(i);
-
-			int hash = computeHash(key);
-			long page = (hash & newMask) & 0xffffffffl;
-			if (page != pagNum && page != newPagNum)
-				throw new CorruptedDBException("Content pair from page " + pagNum + " is not in right page!");
-			if (page == pagNum)
-				pagPage.writeKey(key, value);
-			else
-				newPagPage.writeKey(key, value);
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mBeanName);
 		}
-
-		newPagPage.writePage();
-		markSplit(mask, pagNum);
-		pagPage.writePage();
+		catch (JMException exception)
+		{
+			/* already unregistered by someone else */
+			;
+		}
+		mBeanName = null;
 	}
 
 	/**
-	 * Get the value associated with key.
+	 * Write back all the modified pages held in memory.
 	 *
-	 * @param key Key to be searched for.
-	 * @return Value associated with key if key exists, else
-	 * <code>null</code>.
-	 * @throws CorruptedDBException if the database is corrupted or
-	 * opened with the wrong endianness.
-	 * @throws IODBException in case the reads on either backing file
-	 * produces an {@link java.io.IOException}.
+	 * With a write-ahead log, this is a checkpoint: the files are synced
+	 * as well, and the log emptied.
+	 *
+	 * @throws IODBException in case one of the writes produces an
+	 * {@link java.io.IOException}.
 	 */
-	public byte[] get(byte[] key)
+	public void flush()
 	throws DBException
 	{
-		int mask = 0;
-		int hash = computeHash(key);
-		while (isSplit(mask, hash & mask))
-			mask = (mask << 1) + 1;
-		PagPage pagPage = getPagPage(hash & mask);
-		return pagPage.fetchKey(key);
+		if (log != null)
+			checkpoint();
+		else
+			pagPages.flush();
 	}
 
 	/**
-	 * Insert a key, value pair into the database.
-	 *
-	 * @param key Key to be inserted.
-	 * @param value Value to be inserted.
+	 * Set the size of the write-ahead log past which a checkpoint is made.
+	 * The default is 64MB.
 	 *
-	 * @throws CorruptedDBException if the database is corrupted or
-	 * opened with the wrong endianness.
-	 * @throws IODBException in case one of the reads or write on either
+	 * Bigger logs let pages modified several times be written once, but
+	 * take longer to replay after a crash. This has no effect on a
+	 * database opened without a log.
+	 */
+	public void setCheckpointSize(long bytes)
+	{
+		if (bytes < 1)
+			throw new IllegalArgumentException("The checkpoint size must be positive!");
+
+		checkpointSize = bytes;
+	}
+
+	/**
+	 * Set the length past which values are kept in the value log rather
+	 * than in the pages. The default is 128 octets. This has no effect on
+	 * a database opened without a value log.
+	 *
+	 * @param octets Threshold, at least the 20 octets of a pointer to the
+	 * log.
+	 */
+	public void setValueLogThreshold(int octets)
+	{
+		if (octets < ValueLog.POINTER_LENGTH)
+			throw new IllegalArgumentException("The threshold must be at least " + ValueLog.POINTER_LENGTH + " octets!");
+
+		valueLogThreshold = octets;
+	}
+
+	/**
+	 * Set the size past which a new file of the value log is started. The
+	 * default is 64MB.
+	 *
+	 * Garbage is collected a file at a time, so smaller files are
+	 * collected sooner, but there are more of them. This has no effect on
+	 * a database opened without a value log.
+	 */
+	public void setValueLogSegmentSize(long bytes)
+	{
+		if (bytes < 1)
+			throw new IllegalArgumentException("The segment size must be positive!");
+
+		if (valueLog != null)
+			valueLog.setSegmentSize(bytes);
+	}
+
+	/**
+	 * Collect all the garbage of the value log, rather than only the files
+	 * holding the most of it. The values still in use are appended again
+	 * to the log, a few at a time, and the files they were in are
+	 * deleted. Other operations proceed meanwhile.
+	 *
+	 * This has no effect on a database opened without a value log, nor
+	 * while snapshots are open, since they might still read any file.
+	 *
+	 * @throws IODBException in case one of the reads or writes produces
+	 * an {@link java.io.IOException}.
+	 */
+	public void compactValueLog()
+	throws DBException
+	{
+		if (valueLog == null)
+			return;
+
+		collectionLock.lock();
+		try
+		{
+			for (int segment : valueLog.sealedSegments())
+			{
+				if (closing || versions.hasOpen())
+					return;
+				collectSegment(segment);
+			}
+		}
+		finally
+		{
+			collectionLock.unlock();
+		}
+	}
+
+	/*
+	 * Collect the files of the value log holding the most garbage, on the
+	 * executor, unless a collection is already scheduled. Nothing is
+	 * collected while snapshots are open; the last one closed schedules
+	 * the collection again.
+	 */
+	private void scheduleCollection()
+	{
+		if (!collectionScheduled.compareAndSet(false, true))
+			return;
+
+		Runnable collection = new Runnable()
+		{
+			public void run()
+			{
+				collectionLock.lock();
+				try
+				{
+					int segment;
+					while (!closing && !versions.hasOpen() && (segment = valueLog.mostGarbage(VALUE_LOG_GARBAGE_RATIO)) >= 0)
+						collectSegment(segment);
+				}
+				catch (DBException exception)
+				{
+					/* the file is left as it is, for the next collection */
+					;
+				}
+				finally
+				{
+					collectionScheduled.set(false);
+					collectionLock.unlock();
+				}
+			}
+		};
+
+		try
+		{
+			getExecutor().execute(collection);
+		}
+		catch (RejectedExecutionException exception)
+		{
+			/* the executor was shut down, the database is being closed */
+			collectionScheduled.set(false);
+		}
+	}
+
+	/*
+	 * Append again the records of a file of the value log which pages
+	 * still point to, and delete the file. collectionLock must be held.
+	 */
+	private void collectSegment(int segment)
+	throws DBException
+	{
+		try
+		{
+			ValueLog.Record record = valueLog.readRecord(segment, 0);
+			while (record != null)
+			{
+				if (closing)
+					return;
+
+				PendingWrites pending = new PendingWrites();
+				beginWrite();
+				try
+				{
+					/* the file could not be deleted, its records would be appended for nothing */
+					if (versions.hasOpen())
+						return;
+
+					for (int i = 0; i < VALUE_LOG_RELOCATION_BATCH && record != null; i++)
+					{
+						relocate(record, pending);
+						record = valueLog.readRecord(segment, record.next);
+					}
+				}
+				finally
+				{
+					try
+					{
+						pending.write();
+					}
+					finally
+					{
+						endWrite();
+					}
+				}
+			}
+
+			/* the pages must point to the new records on stable storage before the old ones go */
+			valueLog.sync();
+			flush();
+			pagStorage.sync();
+
+			/* not while a backup copies the files, nor while a snapshot might point to them */
+			modificationLock.writeLock().lock();
+			try
+			{
+				if (!versions.hasOpen())
+					valueLog.drop(segment);
+			}
+			finally
+			{
+				modificationLock.writeLock().unlock();
+			}
+		}
+		catch (IOException exception)
+		{
+			throw new IODBException(exception);
+		}
+	}
+
+	/* move a record of the value log, unless its key was replaced or removed since */
+	private void relocate(ValueLog.Record record, PendingWrites pending)
+	throws DBException, IOException
+	{
+		int hash = computeHash(record.key);
+		int mask = lockPage(hash, directory.startMask(), true);
+		try
+		{
+			PagPage pagPage = getPagPage(hash & mask);
+			byte[] stored = pagPage.fetchKey(record.key);
+			if (stored == null || !Arrays.equals(stored, record.pointer))
+				return;
+
+			/* a pointer replacing a pointer always fits */
+			if (!pagPage.writeKey(record.key, valueLog.append(record.key, record.value)))
+				throw new CorruptedDBException("Page " + pagPage.pagNum + " cannot hold a pointer it held!");
+			writeBack(pagPage, pending);
+			release(record.pointer);
+		}
+		finally
+		{
+			unlockPage(hash, mask, true);
+		}
+	}
+
+	/* what is stored in the page for a value, which is logged if it is long */
+	private byte[] storedValue(byte[] key, byte[] value)
+	throws DBException
+	{
+		if (valueLog == null || (value.length <= valueLogThreshold && !ValueLog.isPointer(value)))
+			return value;
+
+		try
+		{
+			return valueLog.append(key, value);
+		}
+		catch (IOException exception)
+		{
+			throw new IODBException(exception);
+		}
+	}
+
+	private int storedLength(byte[] value)
+	{
+		if (valueLog == null || (value.length <= valueLogThreshold && !ValueLog.isPointer(value)))
+			return value.length;
+
+		return ValueLog.POINTER_LENGTH;
+	}
+
+	/* the value stored in a page, read from the log if needed, while the page is locked */
+	private byte[] resolve(byte[] stored)
+	throws DBException
+	{
+		if (stored == null || valueLog == null || !ValueLog.isPointer(stored))
+			return stored;
+
+		try
+		{
+			return valueLog.read(stored);
+		}
+		catch (IOException exception)
+		{
+			throw new IODBException(exception);
+		}
+	}
+
+	/*
+	 * once a value stored in a page is replaced or removed. The collection
+	 * is scheduled by endWrite(), since it takes modificationLock for
+	 * writing.
+	 */
+	private void release(byte[] stored)
+	{
+		if (stored != null && valueLog != null && ValueLog.isPointer(stored) && valueLog.release(stored, VALUE_LOG_GARBAGE_RATIO) >= 0)
+			collectionWanted.set(true);
+	}
+
+	/**
+	 * Write back the modified pages and close the backing files.
+	 *
+	 * The database must not be used anymore after this call.
+	 *
+	 * @throws IODBException in case one of the writes or the closing of
+	 * the files produces an {@link java.io.IOException}.
+	 */
+	public void close()
+	throws DBException
+	{
+		/* waits for a collection of the value log to stop */
+		closing = true;
+		collectionLock.lock();
+		collectionLock.unlock();
+
+		try
+		{
+			flush();
+			try
+			{
+				if (keyFilterFile != null)
+					saveKeyFilter();
+				/* only once everything is checkpointed, else kept to be replayed */
+				if (log != null)
+					log.discard();
+			}
+			catch (IOException exception)
+			{
+				throw new IODBException(exception);
+			}
+		}
+		finally
+		{
+			unregisterMBean();
+			shutdownDefaultExecutor();
+			try
+			{
+				closeStorages();
+			}
+			catch (IOException exception)
+			{
+				throw new IODBException(exception);
+			}
+		}
+	}
+
+	private void closeStorages()
+	throws IOException
+	{
+		try
+		{
+			pagStorage.close();
+		}
+		finally
+		{
+			try
+			{
+				dirStorage.close();
+			}
+			finally
+			{
+				try
+				{
+					if (log != null)
+						log.close();
+				}
+				finally
+				{
+					if (valueLog != null)
+						valueLog.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a copy of the database to a stream, as an archive holding only
+	 * the pages which contain pairs, and the pages of the directory with
+	 * bits set.
+	 *
+	 * The pages are found from the directory, as by the traversals, so
+	 * that neither the holes of the sparse <code>.pag</code> file nor the
+	 * pages emptied by removals are read: the time and size of the copy
+	 * depend on the pairs in the database, not on the apparent size of
+	 * its files. The archive is restored by
+	 * {@link #restore(InputStream, String)}.
+	 * <p>
+	 * The modified pages are written first, as by {@link #flush()}.
+	 * Modifications wait until the copy is written, while lookups and
+	 * traversals proceed.
+	 *
+	 * @param archive Stream to which the archive is written. It is
+	 * flushed, but not closed.
+	 * @return The number of pages of the <code>.pag</code> file copied.
+	 * @throws IODBException in case one of the reads or the writes to the
+	 * stream produces an {@link java.io.IOException}.
+	 */
+	public long backup(OutputStream archive)
+	throws DBException
+	{
+		modificationLock.writeLock().lock();
+		try
+		{
+			flush();
+
+			BackupArchive writer = new BackupArchive(archive);
+			long[] dirPages = directory.usedPages();
+			for (int i = 0, count; i < dirPages.length; i += count)
+			{
+				count = runLength(dirPages, i);
+				writer.writePages(BackupArchive.DIR_PAGES, dirPages[i], count, dirStorage);
+			}
+			long[] pages = livePages();
+			for (int i = 0, count; i < pages.length; i += count)
+			{
+				count = runLength(pages, i);
+				writer.writePages(BackupArchive.PAG_PAGES, pages[i], count, pagStorage);
+			}
+			if (valueLog != null)
+			{
+				for (int segment : valueLog.segments())
+					writer.writeSegment(segment, valueLog.segmentLength(segment), valueLog);
+			}
+			writer.finish();
+
+			return pages.length;
+		}
+		catch (IOException exception)
+		{
+			throw new IODBException(exception);
+		}
+		finally
+		{
+			modificationLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Copy the database to the files <code>database + ".pag"</code> and
+	 * <code>database + ".dir"</code>, replacing them if they exist.
+	 *
+	 * As {@link #backup(OutputStream)}, only the pages in use are copied,
+	 * and the copy is sparse: the other pages are left as holes. The
+	 * runs of consecutive pages are copied by the operating system,
+	 * without going through the heap. The copy must not be made over the
+	 * files of the database itself.
+	 *
+	 * @return The number of pages of the <code>.pag</code> file copied.
+	 * @throws IODBException in case one of the reads or the writes
+	 * produces an {@link java.io.IOException}.
+	 */
+	public long backup(String database)
+	throws DBException
+	{
+		modificationLock.writeLock().lock();
+		try
+		{
+			flush();
+
+			deleteCompanionFiles(database);
+			RandomAccessFile pagCopy = new RandomAccessFile(new File(database + PAG_EXT), "rw");
+			try
+			{
+				RandomAccessFile dirCopy = new RandomAccessFile(new File(database + DIR_EXT), "rw");
+				try
+				{
+					dirCopy.setLength(0);
+					copyPages(directory.usedPages(), Directory.DIRFILE_PGSZ, dirStorage, dirCopy.getChannel());
+					dirCopy.getChannel().force(false);
+				}
+				finally
+				{
+					dirCopy.close();
+				}
+
+				long[] pages = livePages();
+				pagCopy.setLength(0);
+				copyPages(pages, PAGFILE_PGSZ, pagStorage, pagCopy.getChannel());
+				pagCopy.getChannel().force(false);
+
+				if (valueLog != null)
+				{
+					for (int segment : valueLog.segments())
+						copySegment(segment, new File(database + ValueLog.SEGMENT_EXT + segment));
+				}
+
+				return pages.length;
+			}
+			finally
+			{
+				pagCopy.close();
+			}
+		}
+		catch (IOException exception)
+		{
+			throw new IODBException(exception);
+		}
+		finally
+		{
+			modificationLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Restore an archive written by {@link #backup(OutputStream)} to the
+	 * files <code>database + ".pag"</code> and <code>database +
+	 * ".dir"</code>, replacing them if they exist. The files are sparse,
+	 * with the pages missing from the archive left as holes.
+	 *
+	 * The database must not be open meanwhile. Its pages are restored as
+	 * they were written, so it is opened with the endianness of the
+	 * database copied.
+	 *
+	 * @param archive Stream from which the archive is read. It is not
+	 * closed.
+	 * @return The number of pages of the <code>.pag</code> file restored.
+	 * @throws IOException if the archive is truncated, not an archive, or
+	 * does not match its checksum, in which case the files are left
+	 * partly written.
+	 */
+	public static long restore(InputStream archive, String database)
+	throws IOException
+	{
+		deleteCompanionFiles(database);
+		RandomAccessFile pagFile = new RandomAccessFile(new File(database + PAG_EXT), "rw");
+		pagFile.setLength(0);
+		PageStorage pagStorage = new FileStorage(pagFile);
+		try
+		{
+			RandomAccessFile dirFile = new RandomAccessFile(new File(database + DIR_EXT), "rw");
+			dirFile.setLength(0);
+			PageStorage dirStorage = new FileStorage(dirFile);
+			try
+			{
+				long pages = BackupArchive.restore(archive, pagStorage, dirStorage, database);
+				pagStorage.sync();
+				dirStorage.sync();
+				return pages;
+			}
+			finally
+			{
+				dirStorage.close();
+			}
+		}
+		finally
+		{
+			pagStorage.close();
+		}
+	}
+
+	/* a saved filter, a log or a value log would not match the files replaced */
+	private static void deleteCompanionFiles(String database)
+	throws IOException
+	{
+		Files.deleteIfExists(Paths.get(database + FILTER_EXT));
+		Files.deleteIfExists(Paths.get(database + LOG_EXT));
+		for (File segmentFile : ValueLog.segmentFiles(database).values())
+			Files.delete(segmentFile.toPath());
+	}
+
+	private void copySegment(int segment, File copy)
+	throws IOException
+	{
+		long length = valueLog.segmentLength(segment);
+		FileOutputStream output = new FileOutputStream(copy);
+		try
+		{
+			if (valueLog.transferTo(segment, length, output.getChannel()) != length)
+				throw new IOException("Value log truncated while copying it!");
+			output.getChannel().force(false);
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+
+	/*
+	 * Numbers of the pages of the trie holding at least one pair, in
+	 * increasing order. The trie is walked as by the traversals, and only
+	 * the count of each of its pages is read.
+	 */
+	private long[] livePages()
+	throws IOException
+	{
+		long length = pagStorage.length();
+		ByteBuffer count = ByteBuffer.allocate(2);
+		long[] pages = new long[64];
+		int pageCount = 0;
+
+		Deque<int[]> nodes = new ArrayDeque<int[]>();
+		nodes.addFirst(new int[] { 0, 0 });
+		while (!nodes.isEmpty())
+		{
+			int[] node = nodes.removeFirst();
+			int prefix = node[0];
+			int depth = node[1];
+			int mask = (depth == 32) ? -1 : (1 << depth) - 1;
+			long pagNum = (prefix & mask) & 0xffffffffl;
+
+			if (depth < 32 && isSplit(mask, pagNum))
+			{
+				nodes.addFirst(new int[] { prefix | (1 << depth), depth + 1 });
+				nodes.addFirst(new int[] { prefix, depth + 1 });
+				continue;
+			}
+
+			/* a page partly past the end of the file is empty */
+			if ((pagNum + 1) * PAGFILE_PGSZ > length)
+				continue;
+			count.clear();
+			pagStorage.read(count, pagNum * PAGFILE_PGSZ);
+			if (count.getShort(0) == 0)
+				continue;
+
+			if (pageCount == pages.length)
+				pages = Arrays.copyOf(pages, 2 * pages.length);
+			pages[pageCount++] = pagNum;
+		}
+
+		Arrays.sort(pages, 0, pageCount);
+		return Arrays.copyOf(pages, pageCount);
+	}
+
+	/* number of consecutive pages starting at pages[start] */
+	private static int runLength(long[] pages, int start)
+	{
+		int end = start + 1;
+		while (end < pages.length && pages[end] == pages[end - 1] + 1)
+			end++;
+
+		return end - start;
+	}
+
+	private static void copyPages(long[] pages, int pageSize, PageStorage storage, FileChannel target)
+	throws IOException
+	{
+		for (int i = 0, count; i < pages.length; i += count)
+		{
+			count = runLength(pages, i);
+			long length = (long) count * pageSize;
+			target.position(pages[i] * pageSize);
+			if (storage.transferTo(pages[i] * pageSize, length, target) != length)
+				throw new IOException("File truncated while copying it!");
+		}
+	}
+
+	private static byte[] hitab = new byte[] {
+		61, 57, 53, 49, 45, 41, 37, 33,
+		29, 25, 21, 17, 13, 9, 5, 1
+	};
+
+	private static int[] hltab = new int[] {
+		0x3100d2bf, 0x3118e3de, 0x34ab1372, 0x2807a847,
+		0x1633f566, 0x2143b359, 0x26d56488, 0x3b9e6f59,
+		0x37755656, 0x3089ca7b, 0x18e92d85, 0x0cd0e9d8,
+		0x1a9e3b54, 0x3eaa902f, 0x0d9bfaae, 0x2f32b45b,
+		0x31ed6102, 0x3d3c8398, 0x146660e3, 0x0f8d4b76,
+		0x02c77a5f, 0x146c8799, 0x1c47f51f, 0x249f8f36,
+		0x24772043, 0x1fbc1e4d, 0x1e86b3fa, 0x37df36a6,
+		0x16ed30e4, 0x02c3148e, 0x216e5929, 0x0636b34e,
+		0x317f9f56, 0x15f09d70, 0x131026fb, 0x38c784b1,
+		0x29ac3305, 0x2b485dc5, 0x3c049ddc, 0x35a9fbcd,
+		0x31d5373b, 0x2b246799, 0x0a2923d3, 0x08a96e9d,
+		0x30031a9f, 0x08f525b5, 0x33611c06, 0x2409db98,
+		0x0ca4feb2, 0x1000b71e, 0x30566e32, 0x39447d31,
+		0x194e3752, 0x08233a95, 0x0f38fe36, 0x29c7cd57,
+		0x0f7b3a39, 0x328e8a16, 0x1e7d1388, 0x0fba78f5,
+		0x274c7e7c, 0x1e8be65c, 0x2fa0b0bb, 0x1eb6c371
+	};
+
+	/*
+	 * computeHash() handles the two nibbles of an octet in one step. Only
+	 * the low bits of hashi are ever used, to index hltab, and an octet
+	 * always adds HASH_PAIRS[octet] to hashi. So what an octet adds to
+	 * hashl only depends on the octet and on the low bits of hashi before
+	 * it, which HASH_INCREMENTS gives for each of their combinations.
+	 * hashi no longer waits for the table lookups, so the steps of
+	 * consecutive octets overlap.
+	 */
+	private static final byte[] HASH_PAIRS = new byte[256];
+	private static final int[] HASH_INCREMENTS = new int[hltab.length * 256];
+
+	static
+	{
+		for (int octet = 0; octet < 256; octet++)
+		{
+			HASH_PAIRS[octet] = (byte) (hitab[octet & (hitab.length - 1)] + hitab[(octet >> 4) & (hitab.length - 1)]);
+			for (int low = 0; low < hltab.length; low++)
+			{
+				byte hashi = (byte) low;
+				int hashl = 0;
+				byte elem = (byte) octet;
+				for (int i = 0; i < 2; i++)
+				{
+					hashi += hitab[elem & (hitab.length - 1)];
+					hashl += hltab[hashi & (hltab.length - 1)];
+					elem >>= 4;
+				}
+				HASH_INCREMENTS[(low << 8) | octet] = hashl;
+			}
+		}
+	}
+
+	static int computeHash(byte[] key)
+	{
+		int hashi = 0;
+		int hashl = 0;
+		for (byte elem : key)
+		{
+			int octet = elem & 0xff;
+			hashl += HASH_INCREMENTS[((hashi & (hltab.length - 1)) << 8) | octet];
+			hashi += HASH_PAIRS[octet];
+		}
+
+		return hashl;
+	}
+
+	/* the hash of the key held by a buffer, from its position to its limit */
+	static int computeHash(ByteBuffer key)
+	{
+		int hashi = 0;
+		int hashl = 0;
+		for (int position = key.position(); position < key.limit(); position++)
+		{
+			int octet = key.get(position) & 0xff;
+			hashl += HASH_INCREMENTS[((hashi & (hltab.length - 1)) << 8) | octet];
+			hashi += HASH_PAIRS[octet];
+		}
+
+		return hashl;
+	}
+
+	private PagPage getPagPage(long pagNum)
+	throws DBException
+	{
+		return pagPages.get(pagNum);
+	}
+
+	private boolean isSplit(int mask, long pagNum)
+	{
+		return directory.isSplit((mask & 0xffffffffl) + pagNum);
+	}
+
+	private void markSplit(int mask, long pagNum, PendingWrites pending)
+	throws DBException
+	{
+		long bitNum = (mask & 0xffffffffl) + pagNum;
+		versions.setSplit(bitNum);
+		if (pending == null)
+			directory.markSplit(bitNum);
+		else
+			pending.addDirPage(directory.setSplit(bitNum));
+	}
+
+	/*
+	 * Pages modified by a batch, written once when it is committed instead
+	 * of after each modification.
+	 */
+	private class PendingWrites
+	{
+		private final Map<Long,PagPage> pagPages = new TreeMap<Long,PagPage>();
+		private final Set<Long> dirPages = new TreeSet<Long>();
+
+		private void addPage(PagPage page)
+		{
+			pagPages.put(page.pagNum, page);
+		}
+
+		private void addDirPage(long dirPagNum)
+		{
+			dirPages.add(dirPagNum);
+		}
+
+		/* in increasing page numbers, the .pag file first */
+		private void write()
+		throws DBException
+		{
+			for (PagPage page : pagPages.values())
+			{
+				Lock lock = pagLocks.forPage(page.pagNum).writeLock();
+				lock.lock();
+				try
+				{
+					/* no-op if the page was written back by the cache */
+					page.writePage();
+				}
+				finally
+				{
+					lock.unlock();
+				}
+			}
+			pagPages.clear();
+
+			for (long dirPagNum : dirPages)
+				directory.writePage(dirPagNum);
+			dirPages.clear();
+		}
+	}
+
+	/*
+	 * write the page now, or with the batch if there is one. With a log,
+	 * the page is only logged, and written later.
+	 */
+	private void writeBack(PagPage page, PendingWrites pending)
+	throws DBException
+	{
+		if (log != null)
+			logPages(-1, page);
+		else if (pending == null)
+			page.writePage();
+		else
+			pending.addPage(page);
+	}
+
+	/*
+	 * Append the images of pages modified together, and of the directory
+	 * page unless it is -1, as one frame of the log. The pages stay dirty,
+	 * and their locks must be held.
+	 */
+	private void logPages(long dirPagNum, PagPage... pages)
+	throws DBException
+	{
+		WriteAheadLog.Frame frame = new WriteAheadLog.Frame();
+		for (PagPage page : pages)
+			frame.addPagImage(page.pagNum * PAGFILE_PGSZ, page.encode());
+		if (dirPagNum >= 0)
+		{
+			frame.addDirImage(dirPagNum * Directory.DIRFILE_PGSZ, directory.pageImage(dirPagNum));
+			directory.markDirty(dirPagNum);
+		}
+
+		long position = log.append(frame);
+		for (PagPage page : pages)
+			page.logPosition = position;
+	}
+
+	/* checkpoints and backups wait for the operations modifying pages */
+	private void beginWrite()
+	{
+		modificationLock.readLock().lock();
+	}
+
+	/*
+	 * With a log, wait until the frames of the operation are synced, along
+	 * with the ones of the concurrent operations, and checkpoint once the
+	 * log is big enough.
+	 */
+	private void endWrite()
+	throws DBException
+	{
+		if (log == null)
+		{
+			modificationLock.readLock().unlock();
+			scheduleWantedCollection();
+			return;
+		}
+
+		try
+		{
+			/* the values logged before the pages pointing to them */
+			if (valueLog != null)
+				valueLog.sync();
+			log.sync();
+		}
+		catch (IOException exception)
+		{
+			throw new IODBException(exception);
+		}
+		finally
+		{
+			modificationLock.readLock().unlock();
+		}
+		scheduleWantedCollection();
+
+		if (log.size() >= checkpointSize && modificationLock.writeLock().tryLock())
+		{
+			try
+			{
+				checkpoint();
+			}
+			finally
+			{
+				modificationLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/* once modificationLock is released, which the collection takes */
+	private void scheduleWantedCollection()
+	{
+		if (collectionWanted.compareAndSet(true, false))
+			scheduleCollection();
+	}
+
+	/*
+	 * Write all the pages modified, sync the files and empty the log, while
+	 * no operation modifies pages.
+	 */
+	private void checkpoint()
+	throws DBException
+	{
+		modificationLock.writeLock().lock();
+		try
+		{
+			if (valueLog != null)
+				valueLog.sync();
+			pagPages.flush();
+			directory.writeDirtyPages();
+			pagStorage.sync();
+			dirStorage.sync();
+			log.checkpoint();
+		}
+		catch (IOException exception)
+		{
+			throw new IODBException(exception);
+		}
+		finally
+		{
+			modificationLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Find the page of hash, starting from the depth given by mask, and
+	 * lock it. The split bit of the page is checked again once the lock
+	 * is held, since the page might have been split meanwhile. Returns the
+	 * mask of the locked page.
+	 */
+	private int lockPage(int hash, int mask, boolean exclusive)
+	{
+		while (true)
+		{
+			while (isSplit(mask, hash & mask))
+				mask = (mask << 1) + 1;
+
+			ReadWriteLock pageLock = pagLocks.forPage(hash & mask);
+			Lock lock = exclusive ? pageLock.writeLock() : pageLock.readLock();
+			lock.lock();
+			if (!isSplit(mask, hash & mask))
+				return mask;
+
+			lock.unlock();
+			mask = (mask << 1) + 1;
+		}
+	}
+
+	private void unlockPage(int hash, int mask, boolean exclusive)
+	{
+		ReadWriteLock pageLock = pagLocks.forPage(hash & mask);
+		Lock lock = exclusive ? pageLock.writeLock() : pageLock.readLock();
+		lock.unlock();
+	}
+
+	private void splitPage(int mask, long pagNum, PendingWrites pending)
+	throws DBException
+	{
+		if (mask == -1)
+		{
+			metrics.insertImpossible();
+			throw new InsertImpossibleDBException("Cannot split anymore!");
+		}
+
+		long newPagNum = pagNum | ((mask + 1) & 0xffffffffl);
+		pagLocks.lockPair(pagNum, newPagNum);
+		try
+		{
+			/* someone else split it while it was unlocked */
+			if (!isSplit(mask, pagNum))
+				splitLockedPage(mask, pagNum, newPagNum, pending);
+		}
+		finally
+		{
+			pagLocks.unlockPair(pagNum, newPagNum);
+		}
+	}
+
+	private void splitLockedPage(int mask, long pagNum, long newPagNum, PendingWrites pending)
+	throws DBException
+	{
+		PagPage pagPage = getPagPage(pagNum);
+		PagPage newPagPage = getPagPage(newPagNum);
+		if (!newPagPage.isEmpty())
+			throw new CorruptedDBException("Page " + newPagNum + " is not empty!");
+
+		List<byte[]> keys = new ArrayList<byte[]>();
+		List<byte[]> values = new ArrayList<byte[]>();
+		for (byte[] key : pagPage.getAllKeys())
+		{
+			byte[] value = pagPage.fetchKey(key);
+			keys.add(key);
+			values.add(value);
+		}
+		pagPage.clear();
+
+		int newMask = (mask << 1) + 1;
+
+		for (int i = 0; i < keys.size(); i++)
+		{
+			byte[] key = keys.get(i);
+			byte[] value = values.get(i);
+
+			int hash = computeHash(key);
+			long page = (hash & newMask) & 0xffffffffl;
+			if (page != pagNum && page != newPagNum)
+				throw new CorruptedDBException("Content pair from page " + pagNum + " is not in right page!");
+			if (page == pagNum)
+				pagPage.writeKey(key, value);
+			else
+				newPagPage.writeKey(key, value);
+		}
+
+		if (log != null)
+		{
+			/* both pages and the directory bit replayed together, or none */
+			versions.setSplit((mask & 0xffffffffl) + pagNum);
+			logPages(directory.setSplit((mask & 0xffffffffl) + pagNum), pagPage, newPagPage);
+		}
+		else
+		{
+			writeBack(newPagPage, pending);
+			markSplit(mask, pagNum, pending);
+			writeBack(pagPage, pending);
+		}
+		metrics.split();
+	}
+
+	/**
+	 * Get the value associated with key.
+	 *
+	 * @param key Key to be searched for.
+	 * @return Value associated with key if key exists, else
+	 * <code>null</code>.
+	 * @throws CorruptedDBException if the database is corrupted or
+	 * opened with the wrong endianness.
+	 * @throws IODBException in case the reads on either backing file
+	 * produces an {@link java.io.IOException}.
+	 */
+	public byte[] get(byte[] key)
+	throws DBException
+	{
+		long start = System.nanoTime();
+		try
+		{
+			return fetch(computeHash(key), key, null);
+		}
+		finally
+		{
+			metrics.record(Statistics.Operation.GET, start);
+		}
+	}
+
+	/**
+	 * Get the value associated with a prepared key.
+	 *
+	 * See {@link #get(byte[])}.
+	 */
+	public byte[] get(PreparedKey key)
+	throws DBException
+	{
+		long start = System.nanoTime();
+		try
+		{
+			return fetch(key.hash, key.key, key);
+		}
+		finally
+		{
+			metrics.record(Statistics.Operation.GET, start);
+		}
+	}
+
+	private byte[] fetch(int hash, byte[] key, PreparedKey prepared)
+	throws DBException
+	{
+		if (keyFilter != null && !keyFilter.mightContain(hash))
+			return null;
+
+		int mask = lockPage(hash, startMask(prepared), false);
+		try
+		{
+			return resolve(getPagPage(hash & mask).fetchKey(key));
+		}
+		finally
+		{
+			unlockPage(hash, mask, false);
+			resolved(prepared, mask);
+		}
+	}
+
+	/**
+	 * Get the value associated with key into a buffer supplied by the
+	 * caller.
+	 *
+	 * Once the pages are in the cache, nothing is allocated, so that
+	 * lookups in a loop do not produce garbage. Since a value is never
+	 * longer than 1018 octets, a buffer of 1024 octets can hold any of
+	 * them. This does not hold for a database opened with a value log,
+	 * whose values are read in a new array before being copied.
+	 *
+	 * @param key Key to be searched for, from its position to its limit.
+	 * Its position is left unchanged.
+	 * @param out Buffer where the value is put, from its position which
+	 * is advanced past the value. It is left unchanged if key does not
+	 * exist.
+	 * @return The length of the value if key exists, else -1.
+	 * @throws BufferOverflowException if the value does not fit in the
+	 * remaining of out, which is then left unchanged.
+	 * @throws CorruptedDBException if the database is corrupted or
+	 * opened with the wrong endianness.
+	 * @throws IODBException in case the reads on either backing file
+	 * produces an {@link java.io.IOException}.
+	 */
+	public int get(ByteBuffer key, ByteBuffer out)
+	throws DBException
+	{
+		if (out == null)
+			throw new NullPointerException();
+
+		long start = System.nanoTime();
+		try
+		{
+			return lookup(computeHash(key), key, out, null);
+		}
+		finally
+		{
+			metrics.record(Statistics.Operation.GET, start);
+		}
+	}
+
+	/**
+	 * Get the value associated with a prepared key into a buffer
+	 * supplied by the caller.
+	 *
+	 * See {@link #get(ByteBuffer, ByteBuffer)}.
+	 */
+	public int get(PreparedKey key, ByteBuffer out)
+	throws DBException
+	{
+		if (out == null)
+			throw new NullPointerException();
+
+		long start = System.nanoTime();
+		try
+		{
+			return lookup(key.hash, key.buffer, out, key);
+		}
+		finally
+		{
+			metrics.record(Statistics.Operation.GET, start);
+		}
+	}
+
+	/**
+	 * Tell whether a key exists, without copying its value.
+	 *
+	 * @param key Key to be searched for.
+	 * @throws CorruptedDBException if the database is corrupted or
+	 * opened with the wrong endianness.
+	 * @throws IODBException in case the reads on either backing file
+	 * produces an {@link java.io.IOException}.
+	 */
+	public boolean containsKey(byte[] key)
+	throws DBException
+	{
+		long start = System.nanoTime();
+		try
+		{
+			return lookup(computeHash(key), ByteBuffer.wrap(key), null, null) >= 0;
+		}
+		finally
+		{
+			metrics.record(Statistics.Operation.GET, start);
+		}
+	}
+
+	/**
+	 * Tell whether a key exists, without copying its value nor allocating
+	 * anything once the pages are in the cache.
+	 *
+	 * @param key Key to be searched for, from its position to its limit.
+	 * Its position is left unchanged.
+	 * @throws CorruptedDBException if the database is corrupted or
+	 * opened with the wrong endianness.
+	 * @throws IODBException in case the reads on either backing file
+	 * produces an {@link java.io.IOException}.
+	 */
+	public boolean containsKey(ByteBuffer key)
+	throws DBException
+	{
+		long start = System.nanoTime();
+		try
+		{
+			return lookup(computeHash(key), key, null, null) >= 0;
+		}
+		finally
+		{
+			metrics.record(Statistics.Operation.GET, start);
+		}
+	}
+
+	/**
+	 * Tell whether a prepared key exists, without copying its value.
+	 *
+	 * See {@link #containsKey(byte[])}.
+	 */
+	public boolean containsKey(PreparedKey key)
+	throws DBException
+	{
+		long start = System.nanoTime();
+		try
+		{
+			return lookup(key.hash, key.buffer, null, key) >= 0;
+		}
+		finally
+		{
+			metrics.record(Statistics.Operation.GET, start);
+		}
+	}
+
+	private int lookup(int hash, ByteBuffer key, ByteBuffer out, PreparedKey prepared)
+	throws DBException
+	{
+		if (keyFilter != null && !keyFilter.mightContain(hash))
+			return -1;
+
+		int mask = lockPage(hash, startMask(prepared), false);
+		try
+		{
+			if (valueLog == null)
+				return getPagPage(hash & mask).fetchKey(key, out);
+
+			/* the value might have to be read from the log */
+			byte[] value = resolve(getPagPage(hash & mask).fetchKey(toArray(key)));
+			if (value == null)
+				return -1;
+			if (out != null)
+			{
+				if (out.remaining() < value.length)
+					throw new BufferOverflowException();
+				out.put(value);
+			}
+			return value.length;
+		}
+		finally
+		{
+			unlockPage(hash, mask, false);
+			resolved(prepared, mask);
+		}
+	}
+
+	/**
+	 * Insert a key, value pair into the database.
+	 *
+	 * @param key Key to be inserted.
+	 * @param value Value to be inserted.
+	 *
+	 * @throws CorruptedDBException if the database is corrupted or
+	 * opened with the wrong endianness.
+	 * @throws IODBException in case one of the reads or write on either
 	 * backing files produce an {@link java.io.IOException}. In particular this happens
 	 * if the database has been opened read-only.
 	 * @throws InsertImpossibleDBException when the insert failed for a
 	 * reason inherent to the DBM format. For instance, if
-	 * <code>key.length + value.length &gt; 1018</code> or if the key
+	 * <code>key.length + value.length &gt; 1018</code>, unless the value
+	 * is kept in the value log, or if the key
 	 * hashes together with another different key already in database
 	 * and their combined length exceed the maximum admissible size.
 	 */
-	public void put(byte[] key, byte[] value)
-	throws DBException
+	public void put(byte[] key, byte[] value)
+	throws DBException
+	{
+		long start = System.nanoTime();
+		beginWrite();
+		try
+		{
+			putKey(computeHash(key), key, value, null, null);
+		}
+		finally
+		{
+			endWrite();
+			metrics.record(Statistics.Operation.PUT, start);
+		}
+	}
+
+	/**
+	 * Insert a value for a prepared key into the database.
+	 *
+	 * See {@link #put(byte[], byte[])}.
+	 */
+	public void put(PreparedKey key, byte[] value)
+	throws DBException
+	{
+		long start = System.nanoTime();
+		beginWrite();
+		try
+		{
+			putKey(key.hash, key.key, value, null, key);
+		}
+		finally
+		{
+			endWrite();
+			metrics.record(Statistics.Operation.PUT, start);
+		}
+	}
+
+	/**
+	 * Insert a key, value pair held by buffers into the database.
+	 *
+	 * The pages keep their own copy of the pairs, so the buffers can be
+	 * reused as soon as this returns. See {@link #put(byte[], byte[])}.
+	 *
+	 * @param key Key to be inserted, from its position to its limit.
+	 * @param value Value to be inserted, from its position to its limit.
+	 * The positions of both buffers are left unchanged.
+	 */
+	public void put(ByteBuffer key, ByteBuffer value)
+	throws DBException
+	{
+		put(toArray(key), toArray(value));
+	}
+
+	private static byte[] toArray(ByteBuffer buffer)
+	{
+		byte[] content = new byte[buffer.remaining()];
+		buffer.duplicate().get(content);
+		return content;
+	}
+
+	private void putKey(int hash, byte[] key, byte[] value, PendingWrites pending, PreparedKey prepared)
+	throws DBException
+	{
+		/* before the key can be found in its page */
+		if (keyFilter != null)
+			keyFilter.add(hash);
+		byte[] stored = storedValue(key, value);
+
+		int mask = startMask(prepared);
+		try
+		{
+			while (true)
+			{
+				mask = lockPage(hash, mask, true);
+				try
+				{
+					PagPage pagPage = getPagPage(hash & mask);
+					byte[] previous = (valueLog != null) ? pagPage.fetchKey(key) : null;
+					if (pagPage.writeKey(key, stored))
+					{
+						writeBack(pagPage, pending);
+						release(previous);
+						resolved(prepared, mask);
+						return;
+					}
+					if (mask == -1)
+					{
+						metrics.insertImpossible();
+						throw new InsertImpossibleDBException("Cannot insert key!");
+					}
+				}
+				finally
+				{
+					unlockPage(hash, mask, true);
+				}
+
+				/* the page is unlocked, since the split locks it along with the new page */
+				splitPage(mask, hash & mask, pending);
+			}
+		}
+		catch (InsertImpossibleDBException exception)
+		{
+			/* the value logged is never pointed to */
+			if (stored != value)
+				release(stored);
+			throw exception;
+		}
+	}
+
+	/**
+	 * Remove a key from the map.
+	 *
+	 * @param key Key to be removed.
+	 * @return The value associated with key if it exists.
+	 * <code>null</code> instead.
+	 * @throws CorruptedDBException if the database is corrupted or
+	 * opened with the wrong endianness.
+	 * @throws IODBException in case one of the reads or write on either
+	 * backing files produce an {@link java.io.IOException}. In particular this
+	 * happensif the database has been opened read-only.
+	 */
+	public byte[] remove(byte[] key)
+	throws DBException
+	{
+		long start = System.nanoTime();
+		beginWrite();
+		try
+		{
+			return removeKey(computeHash(key), key, null, null);
+		}
+		finally
+		{
+			endWrite();
+			metrics.record(Statistics.Operation.REMOVE, start);
+		}
+	}
+
+	/**
+	 * Remove a prepared key from the map.
+	 *
+	 * See {@link #remove(byte[])}.
+	 */
+	public byte[] remove(PreparedKey key)
+	throws DBException
+	{
+		long start = System.nanoTime();
+		beginWrite();
+		try
+		{
+			return removeKey(key.hash, key.key, null, key);
+		}
+		finally
+		{
+			endWrite();
+			metrics.record(Statistics.Operation.REMOVE, start);
+		}
+	}
+
+	private byte[] removeKey(int hash, byte[] key, PendingWrites pending, PreparedKey prepared)
+	throws DBException
+	{
+		if (keyFilter != null && !keyFilter.mightContain(hash))
+			return null;
+
+		int mask = lockPage(hash, startMask(prepared), true);
+		try
+		{
+			PagPage pagPage = getPagPage(hash & mask);
+			byte[] data = pagPage.removeKey(key);
+			if (data == null)
+				return null;
+
+			writeBack(pagPage, pending);
+			byte[] value = resolve(data);
+			release(data);
+			return value;
+		}
+		finally
+		{
+			unlockPage(hash, mask, true);
+			resolved(prepared, mask);
+		}
+	}
+
+	/**
+	 * Prepare a key for several operations, computing its hash once.
+	 *
+	 * @param key The key, which is not copied and must not be modified
+	 * afterwards.
+	 * @return A key which can be given to the operations of this
+	 * database, and of others though less efficiently.
+	 */
+	public PreparedKey prepare(byte[] key)
+	{
+		return new PreparedKey(this, key, computeHash(key));
+	}
+
+	/*
+	 * The mask from which to look for the page of a key. A prepared key
+	 * gives the one of the page where it was last found, unless the
+	 * directory tells that all the pages are split deeper.
+	 */
+	private int startMask(PreparedKey prepared)
+	{
+		int mask = directory.startMask();
+		if (prepared != null && prepared.owner == this)
+		{
+			int preparedMask = prepared.mask;
+			if (Integer.compareUnsigned(preparedMask, mask) > 0)
+				return preparedMask;
+		}
+
+		return mask;
+	}
+
+	private void resolved(PreparedKey prepared, int mask)
+	{
+		/* not written when unchanged, so that sharing threads do not contend */
+		if (prepared != null && prepared.owner == this && prepared.mask != mask)
+			prepared.mask = mask;
+	}
+
+	/**
+	 * Set the executor running the asynchronous operations.
+	 *
+	 * By default, they run on virtual threads, one per operation, when
+	 * the Java runtime provides them, or else on a fixed pool of daemon
+	 * threads, four per processor. The database never shuts down an executor set
+	 * this way.
+	 * <p>
+	 * The executor may run the tasks on the thread submitting them. The
+	 * collection of the value log, which modifications submit once they
+	 * released their locks, then runs on the thread of the modification
+	 * before it returns, as does the one submitted by
+	 * {@link Snapshot#close()}.
+	 *
+	 * @param executor The executor running subsequent asynchronous
+	 * operations.
+	 */
+	public synchronized void setExecutor(Executor executor)
+	{
+		if (executor == null)
+			throw new NullPointerException("No executor!");
+
+		this.executor = executor;
+	}
+
+	private synchronized Executor getExecutor()
+	{
+		if (executor == null)
+		{
+			defaultExecutor = newDefaultExecutor();
+			executor = defaultExecutor;
+		}
+
+		return executor;
+	}
+
+	private static ExecutorService newDefaultExecutor()
+	{
+		try
+		{
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}
+		catch (ReflectiveOperationException exception)
+		{
+			/* no virtual threads in this runtime, the operations are queued */
+			int threads = 4 * Runtime.getRuntime().availableProcessors();
+			return Executors.newFixedThreadPool(threads, new ThreadFactory()
+			{
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "dbm-async");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	private synchronized void shutdownDefaultExecutor()
+	{
+		if (defaultExecutor != null)
+			defaultExecutor.shutdown();
+	}
+
+	private interface AsyncOperation<T>
+	{
+		T run()
+		throws DBException;
+	}
+
+	/* completes with the DBException itself when the operation fails */
+	private <T> CompletableFuture<T> runAsync(final AsyncOperation<T> operation)
+	{
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try
+		{
+			getExecutor().execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						future.complete(operation.run());
+					}
+					catch (Throwable exception)
+					{
+						future.completeExceptionally(exception);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException exception)
+		{
+			future.completeExceptionally(exception);
+		}
+
+		return future;
+	}
+
+	/**
+	 * Get the value associated with key, without blocking the caller.
+	 *
+	 * The lookup is run by the executor of the database, see
+	 * {@link #setExecutor(Executor)}. No monitor is held during the reads
+	 * of the files, so that virtual threads are not pinned to their
+	 * carrier thread while waiting for them.
+	 *
+	 * @return A future completed as {@link #get(byte[])} would return, or
+	 * completed exceptionally with the {@link DBException} it would throw.
+	 */
+	public CompletableFuture<byte[]> getAsync(final byte[] key)
+	{
+		return runAsync(new AsyncOperation<byte[]>()
+		{
+			public byte[] run()
+			throws DBException
+			{
+				return get(key);
+			}
+		});
+	}
+
+	/**
+	 * Insert a key, value pair into the database, without blocking the
+	 * caller.
+	 *
+	 * See {@link #getAsync(byte[])} and {@link #put(byte[], byte[])}.
+	 */
+	public CompletableFuture<Void> putAsync(final byte[] key, final byte[] value)
+	{
+		return runAsync(new AsyncOperation<Void>()
+		{
+			public Void run()
+			throws DBException
+			{
+				put(key, value);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Remove a key from the database, without blocking the caller.
+	 *
+	 * See {@link #getAsync(byte[])} and {@link #remove(byte[])}.
+	 */
+	public CompletableFuture<byte[]> removeAsync(final byte[] key)
+	{
+		return runAsync(new AsyncOperation<byte[]>()
+		{
+			public byte[] run()
+			throws DBException
+			{
+				return remove(key);
+			}
+		});
+	}
+
+	/**
+	 * Get the value associated with a prepared key, without blocking the
+	 * caller.
+	 *
+	 * See {@link #getAsync(byte[])} and {@link #get(PreparedKey)}.
+	 */
+	public CompletableFuture<byte[]> getAsync(final PreparedKey key)
+	{
+		return runAsync(new AsyncOperation<byte[]>()
+		{
+			public byte[] run()
+			throws DBException
+			{
+				return get(key);
+			}
+		});
+	}
+
+	/**
+	 * Insert a value for a prepared key into the database, without
+	 * blocking the caller.
+	 *
+	 * See {@link #getAsync(byte[])} and {@link #put(PreparedKey, byte[])}.
+	 */
+	public CompletableFuture<Void> putAsync(final PreparedKey key, final byte[] value)
+	{
+		return runAsync(new AsyncOperation<Void>()
+		{
+			public Void run()
+			throws DBException
+			{
+				put(key, value);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Remove a prepared key from the database, without blocking the
+	 * caller.
+	 *
+	 * See {@link #getAsync(byte[])} and {@link #remove(PreparedKey)}.
+	 */
+	public CompletableFuture<byte[]> removeAsync(final PreparedKey key)
+	{
+		return runAsync(new AsyncOperation<byte[]>()
+		{
+			public byte[] run()
+			throws DBException
+			{
+				return remove(key);
+			}
+		});
+	}
+
+	/* the page of hash, as known without locking it */
+	private long findPage(int hash)
 	{
-		int mask = 0;
-		int hash = computeHash(key);
+		int mask = directory.startMask();
 		while (isSplit(mask, hash & mask))
 			mask = (mask << 1) + 1;
-		PagPage pagPage = getPagPage(hash & mask);
-		while (!pagPage.writeKey(key, value) && mask != -1)
+
+		return hash & mask;
+	}
+
+	/**
+	 * A set of insertions and removals applied together.
+	 *
+	 * The operations are kept in memory until {@link #commit()} is
+	 * called. They are then applied grouped by page, and each page
+	 * modified, including by splits, is written only once, as is each
+	 * modified page of the <code>.dir</code> file.
+	 * <p>
+	 * When a key is given several operations, only the last one is
+	 * applied. The arrays passed must not be modified until the batch is
+	 * committed. A batch is not meant to be shared between threads, but
+	 * it can be committed while other threads use the database.
+	 */
+	public class WriteBatch
+	{
+		private final Map<Datum,BatchOperation> operations;
+
+		private WriteBatch()
 		{
-			splitPage(mask, hash & mask);
-			mask = (mask << 1) + 1;
-			pagPage = getPagPage(hash & mask);
+			operations = new LinkedHashMap<Datum,BatchOperation>();
+		}
+
+		/**
+		 * Schedule the insertion of a key, value pair.
+		 *
+		 * @throws IllegalArgumentException if <code>key.length +
+		 * value.length &gt; 1018</code>, unless the value is kept in the
+		 * value log.
+		 */
+		public void put(byte[] key, byte[] value)
+		{
+			if (key.length + storedLength(value) + 6 > PAGFILE_PGSZ)
+				throw new IllegalArgumentException("Will never be able to insert: key+value too long!");
+
+			operations.put(new Datum(key), new BatchOperation(computeHash(key), key, value, null));
+		}
+
+		/**
+		 * Schedule the insertion of a value for a prepared key.
+		 *
+		 * See {@link #put(byte[], byte[])}.
+		 */
+		public void put(PreparedKey key, byte[] value)
+		{
+			if (key.key.length + storedLength(value) + 6 > PAGFILE_PGSZ)
+				throw new IllegalArgumentException("Will never be able to insert: key+value too long!");
+
+			operations.put(new Datum(key.key), new BatchOperation(key.hash, key.key, value, key));
+		}
+
+		/**
+		 * Schedule the removal of a key.
+		 */
+		public void remove(byte[] key)
+		{
+			operations.put(new Datum(key), new BatchOperation(computeHash(key), key, null, null));
+		}
+
+		/**
+		 * Schedule the removal of a prepared key.
+		 */
+		public void remove(PreparedKey key)
+		{
+			operations.put(new Datum(key.key), new BatchOperation(key.hash, key.key, null, key));
+		}
+
+		/**
+		 * Number of operations scheduled.
+		 */
+		public int size()
+		{
+			return operations.size();
+		}
+
+		/**
+		 * Apply the operations scheduled and write the modified pages.
+		 *
+		 * The batch is empty afterwards and can be reused. If an
+		 * operation fails, the operations already applied are kept and
+		 * their pages written before the exception is thrown, the
+		 * others are dropped.
+		 *
+		 * @throws CorruptedDBException if the database is corrupted or
+		 * opened with the wrong endianness.
+		 * @throws IODBException in case one of the reads or write on
+		 * either backing files produce an {@link java.io.IOException}.
+		 * @throws InsertImpossibleDBException when one of the insertions
+		 * failed for a reason inherent to the DBM format, see
+		 * {@link Dbm#put(byte[], byte[])}.
+		 */
+		public void commit()
+		throws DBException
+		{
+			List<BatchOperation> sorted = new ArrayList<BatchOperation>(operations.values());
+			for (BatchOperation operation : sorted)
+				operation.pagNum = findPage(operation.hash);
+			operations.clear();
+			Collections.sort(sorted);
+
+			PendingWrites pending = new PendingWrites();
+			beginWrite();
+			try
+			{
+				for (BatchOperation operation : sorted)
+				{
+					if (operation.value != null)
+						putKey(operation.hash, operation.key, operation.value, pending, operation.prepared);
+					else
+						removeKey(operation.hash, operation.key, pending, operation.prepared);
+				}
+			}
+			finally
+			{
+				try
+				{
+					pending.write();
+				}
+				finally
+				{
+					endWrite();
+				}
+			}
+		}
+	}
+
+	private static class BatchOperation
+	implements Comparable<BatchOperation>
+	{
+		/* set when the batch is committed */
+		private long pagNum;
+		private final int hash;
+		private final byte[] key;
+		private final byte[] value;
+		private final PreparedKey prepared;
+
+		private BatchOperation(int hash, byte[] key, byte[] value, PreparedKey prepared)
+		{
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+			this.prepared = prepared;
+		}
+
+		public int compareTo(BatchOperation otherOperation)
+		{
+			if (pagNum != otherOperation.pagNum)
+				return (pagNum < otherOperation.pagNum) ? -1 : 1;
+
+			return Integer.compare(hash, otherOperation.hash);
 		}
-		if (mask == -1)
-			throw new InsertImpossibleDBException("Cannot insert key!");
-		else
-			pagPage.writePage();
 	}
 
 	/**
-	 * Remove a key from the map.
+	 * Start a batch of insertions and removals.
 	 *
-	 * @param key Key to be removed.
-	 * @return The value associated with key if it exists.
-	 * <code>null</code> instead.
-	 * @throws CorruptedDBException if the database is corrupted or
-	 * opened with the wrong endianness.
-	 * @throws IODBException in case one of the reads or write on either
-	 * backing files produce an {@link java.io.IOException}. In particular this
-	 * happensif the database has been opened read-only.
+	 * @return An empty batch, applied to this database when committed.
 	 */
-	public byte[] remove(byte[] key)
+	public WriteBatch beginBatch()
+	{
+		return new WriteBatch();
+	}
+
+	/**
+	 * Split the pages in advance for a number of keys to be inserted.
+	 *
+	 * Inserting keys in a small database splits its pages one at a time,
+	 * each split reading, clearing and writing a page, so that the first
+	 * keys are moved many times over. Instead, every page is split down to
+	 * the depth at which the pages would be filled to about 70% by the
+	 * expected pairs. Empty pages are split by setting the bits of all the
+	 * pages below them in the <code>.dir</code> file only, without reading
+	 * any of these pages: they are holes of the <code>.pag</code> file,
+	 * read as empty pages, and written once keys are inserted in them.
+	 * The pages which already hold pairs are split as usual. The files
+	 * stay readable by any ndbm implementation.
+	 * <p>
+	 * The pages already split are left as they are, so this can be called
+	 * each time the database is opened. Further splits still occur when
+	 * the keys exceed the estimate, or when too many hash together.
+	 *
+	 * @param expectedKeys Number of keys the database will hold.
+	 * @param averageEntrySize Average combined length of a key and its
+	 * value, as stored in the pages.
+	 * @throws IllegalArgumentException if one of the arguments is
+	 * negative.
+	 * @throws IODBException in case one of the reads or writes on either
+	 * backing file produces an {@link java.io.IOException}.
+	 */
+	public void reserve(long expectedKeys, int averageEntrySize)
 	throws DBException
 	{
-		int mask = 0;
-		int hash = computeHash(key);
-		while (isSplit(mask, hash & mask))
-			mask = (mask << 1) + 1;
-		PagPage pagPage = getPagPage(hash & mask);
-		byte[] data = pagPage.removeKey(key);
-		if (data != null)
-			pagPage.writePage();
-		return data;
+		if (expectedKeys < 0 || averageEntrySize < 0)
+			throw new IllegalArgumentException("Cannot reserve a negative size!");
+
+		/* each pair also takes two offsets of the page */
+		double pages = expectedKeys * (averageEntrySize + 4.0) / ((PAGFILE_PGSZ - 2) * RESERVED_PAGE_FILL);
+		int depth = 0;
+		while (depth < MAX_RESERVED_DEPTH && (1l << depth) < pages)
+			depth++;
+
+		PendingWrites pending = new PendingWrites();
+		beginWrite();
+		try
+		{
+			/* depth-first down to the depth, skipping the subtrees of the empty pages */
+			Deque<int[]> nodes = new ArrayDeque<int[]>();
+			nodes.addFirst(new int[] { 0, 0 });
+			while (!nodes.isEmpty())
+			{
+				int[] node = nodes.removeFirst();
+				int pagNum = node[0];
+				int level = node[1];
+				if (level == depth)
+					continue;
+
+				int mask = (1 << level) - 1;
+				if (isSplit(mask, pagNum) || reservePage(level, pagNum, depth, pending))
+				{
+					nodes.addFirst(new int[] { pagNum | (1 << level), level + 1 });
+					nodes.addFirst(new int[] { pagNum, level + 1 });
+				}
+			}
+
+			if (log == null)
+				pending.write();
+			else
+			{
+				for (long dirPagNum : pending.dirPages)
+					logPages(dirPagNum);
+			}
+		}
+		finally
+		{
+			endWrite();
+		}
+	}
+
+	/*
+	 * Split a page, and the whole subtree below it down to the depth if it
+	 * is empty. Tells whether the pages below are left to be reserved.
+	 */
+	private boolean reservePage(int level, long pagNum, int depth, PendingWrites pending)
+	throws DBException
+	{
+		int mask = (1 << level) - 1;
+		long newPagNum = pagNum | ((mask + 1) & 0xffffffffl);
+		pagLocks.lockPair(pagNum, newPagNum);
+		try
+		{
+			if (isSplit(mask, pagNum))
+				return true;
+
+			if (!isEmptyPage(pagNum))
+			{
+				splitLockedPage(mask, pagNum, newPagNum, pending);
+				return true;
+			}
+
+			/*
+			 * the pages below an empty one are empty, nothing is moved.
+			 * Their bits are set from the deepest up, so that no search
+			 * reaches them before the bit of the page itself is set.
+			 */
+			long lastDirPagNum = -1;
+			for (int below = depth - 1; below > level; below--)
+			{
+				long firstBitNum = (1l << below) - 1;
+				for (long j = 0; j < 1l << (below - level); j++)
+				{
+					long dirPagNum = directory.setSplit(firstBitNum + (pagNum | (j << level)));
+					if (dirPagNum != lastDirPagNum)
+						pending.addDirPage(dirPagNum);
+					lastDirPagNum = dirPagNum;
+				}
+			}
+			markSplit(mask, pagNum, pending);
+			return false;
+		}
+		finally
+		{
+			pagLocks.unlockPair(pagNum, newPagNum);
+		}
+	}
+
+	/*
+	 * Tells whether a page holds no pair, reading only its count, and
+	 * nothing for a page past the end of the file. Its lock must be held.
+	 */
+	private boolean isEmptyPage(long pagNum)
+	throws DBException
+	{
+		PagPage cached = pagPages.peek(pagNum);
+		if (cached != null)
+			return cached.isEmpty();
+
+		try
+		{
+			if (pagNum * PAGFILE_PGSZ >= pagStorage.length())
+				return true;
+
+			ByteBuffer count = ByteBuffer.allocate(2);
+			pagStorage.read(count, pagNum * PAGFILE_PGSZ);
+			return count.getShort(0) == 0;
+		}
+		catch (IOException exception)
+		{
+			throw new IODBException(exception);
+		}
 	}
 
 	private static class HashMask
@@ -735,6 +3482,21 @@ public class Dbm
 		return new HashMask(hash, mask);
 	}
 
+	/* the page of the last key returned by nextKey() */
+	private static class TraversalHint
+	{
+		private final byte[] key;
+		private final int hash;
+		private final int mask;
+
+		private TraversalHint(byte[] key, int hash, int mask)
+		{
+			this.key = key;
+			this.hash = hash;
+			this.mask = mask;
+		}
+	}
+
 	/**
 	 * Returns the next key following the provided key passed in
 	 * parameter.
@@ -753,25 +3515,73 @@ public class Dbm
 	public byte[] nextKey(byte[] key)
 	throws DBException
 	{
-		int mask = 0;
-		int hash = (key != null) ? computeHash(key) : 0;
-		while (isSplit(mask, hash & mask))
-			mask = (mask << 1) + 1;
+		long start = System.nanoTime();
+		try
+		{
+			return findNextKey(key);
+		}
+		finally
+		{
+			metrics.record(Statistics.Operation.SCAN, start);
+		}
+	}
+
+	private byte[] findNextKey(byte[] key)
+	throws DBException
+	{
+		int mask = directory.startMask();
+		int hash = 0;
+
+		/*
+		 * in a traversal, key is the last key returned and its page is
+		 * known, unless the page has been split since
+		 */
+		TraversalHint hint = traversalHint;
+		boolean hinted = key != null && hint != null && Arrays.equals(hint.key, key);
+		if (hinted)
+		{
+			hash = hint.hash;
+			mask = hint.mask;
+		}
+		else if (key != null)
+			hash = computeHash(key);
 
-		PagPage currentPage = getPagPage(hash & mask);
 		byte[] next;
-		while ((next = currentPage.getNextKey(key)) == null)
+		while (true)
 		{
+			int lockedMask = lockPage(hash, mask, false);
+			if (hinted && lockedMask != mask)
+			{
+				unlockPage(hash, lockedMask, false);
+				hinted = false;
+				hash = computeHash(key);
+				continue;
+			}
+			hinted = false;
+			mask = lockedMask;
+
+			try
+			{
+				next = getPagPage(hash & mask).getNextKey(key);
+			}
+			finally
+			{
+				unlockPage(hash, mask, false);
+			}
+			if (next != null)
+			{
+				traversalHint = new TraversalHint(next, hash, mask);
+				return next;
+			}
+
 			HashMask hashMask = hashInc(hash, mask);
 			if (hashMask == null)
 				return null;
 
 			hash = hashMask.hash;
 			mask = hashMask.mask;
-			currentPage = getPagPage(hash & mask);
 			key = null;
 		}
-		return next;
 	}
 
 	/**
@@ -792,21 +3602,105 @@ public class Dbm
 		return nextKey(null);
 	}
 
-	private class AllKeysGetter
-	{
-		private int hash;
-		private int mask;
-		private Iterator<byte[]> pageIterator;
+	/* the part of a page returned by a traversal */
+	private interface PageReader<T>
+	{
+		List<T> read(PagPage page)
+		throws DBException;
+	}
+
+	private class PageWalker<T>
+	{
+		private final PageReader<T> reader;
+		private int hash;
+		private int mask;
+		private Iterator<T> pageIterator;
+
+		/* the pages following the current one, as planned when read ahead */
+		private final Deque<HashMask> upcoming;
+		/* number of pages left so far, the tasks reading ahead skip them */
+		private volatile long visited;
+
+		private PageWalker(PageReader<T> reader)
+		throws DBException
+		{
+			this.reader = reader;
+			mask = directory.startMask();
+			upcoming = new ArrayDeque<HashMask>();
+			visited = 0;
+			pageIterator = lockedPageItems();
+			readAhead();
+		}
+
+		/* plan the next pages, and read the ones not planned yet */
+		private void readAhead()
+		throws DBException
+		{
+			int depth = Dbm.this.readAhead;
+			HashMask last = upcoming.isEmpty() ? new HashMask(hash, mask) : upcoming.peekLast();
+			while (upcoming.size() < depth)
+			{
+				last = hashInc(last.hash, last.mask);
+				if (last == null)
+					break;
+
+				upcoming.addLast(last);
+				prefetch(last.hash & last.mask, visited + upcoming.size());
+			}
+		}
+
+		/* load a page in the cache, unless the traversal reached it first */
+		private void prefetch(final long pagNum, final long sequence)
+		{
+			try
+			{
+				getExecutor().execute(new Runnable()
+				{
+					public void run()
+					{
+						if (visited >= sequence)
+							return;
+
+						Lock lock = pagLocks.forPage(pagNum).readLock();
+						lock.lock();
+						try
+						{
+							getPagPage(pagNum);
+						}
+						catch (DBException exception)
+						{
+							/* read again, and reported, by the traversal */
+						}
+						finally
+						{
+							lock.unlock();
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException exception)
+			{
+				/* the executor was shut down, the database is being closed */
+			}
+		}
 
-		private AllKeysGetter()
+		private Iterator<T> lockedPageItems()
 		throws DBException
 		{
-			while (isSplit(mask, hash & mask))
-				mask = (mask << 1) + 1;
-			pageIterator = getPagPage(hash & mask).getAllKeys().iterator();
+			long start = System.nanoTime();
+			mask = lockPage(hash, mask, false);
+			try
+			{
+				return reader.read(getPagPage(hash & mask)).iterator();
+			}
+			finally
+			{
+				unlockPage(hash, mask, false);
+				metrics.record(Statistics.Operation.SCAN, start);
+			}
 		}
 
-		public byte[] nextKey()
+		public T next()
 		throws DBException
 		{
 			while (!pageIterator.hasNext())
@@ -817,47 +3711,54 @@ public class Dbm
 
 				hash = hashMask.hash;
 				mask = hashMask.mask;
+				visited++;
 
-				pageIterator = getPagPage(hash & mask).getAllKeys().iterator();
+				/* a page split since it was planned changes the next ones */
+				HashMask planned = upcoming.pollFirst();
+				if (planned != null && (planned.hash != hash || planned.mask != mask))
+					upcoming.clear();
+
+				pageIterator = lockedPageItems();
+				readAhead();
 			}
 			return pageIterator.next();
 		}
 	}
 
-	/**
-	 * Stateful traversal method.
-	 *
-	 * Call this method to obtain an Iterable suitable for <code>for in</code>
-	 * loops. The keys are produced in an undefined order.
-	 * <p>
-	 * The <code>iterable()</code> method and the respective methods of the returned
-	 * iterator can throw {@link java.lang.RuntimeException}, with
-	 * {@link IODBException} or {@link CorruptedDBException} as a cause.
-	 * <p>
-	 * The {@link IODBException} indicates that an
-	 * {@link java.io.IOException} was encountered while reading the underlying
-	 * files. The {@link CorruptedDBException} indicates that the database is
-	 * corrupted or that it was opened with the wrong endianness.
-	 *
-	 * @return An iterable usable in a <code>for in</code> loop.
-	 */
+	private final PageReader<Map.Entry<byte[],byte[]>> entriesReader = new PageReader<Map.Entry<byte[],byte[]>>()
+	{
+		public List<Map.Entry<byte[],byte[]>> read(PagPage page)
+		throws DBException
+		{
+			List<Map.Entry<byte[],byte[]>> entries = page.getAllEntries();
+			if (valueLog == null)
+				return entries;
+
+			List<Map.Entry<byte[],byte[]>> resolvedEntries = new ArrayList<Map.Entry<byte[],byte[]>>(entries.size());
+			for (Map.Entry<byte[],byte[]> entry : entries)
+				resolvedEntries.add(new AbstractMap.SimpleImmutableEntry<byte[],byte[]>(entry.getKey(), resolve(entry.getValue())));
+
+			return Collections.unmodifiableList(resolvedEntries);
+		}
+	};
+
 	/* returns a RuntimeException as a cause of an unchecked DBException */
-	public Iterable<byte[]> allKeys()
+	private <T> Iterable<T> walkPages(final PageReader<T> reader)
 	{
-		return new Iterable<byte[]>()
+		return new Iterable<T>()
 		{
-			public Iterator<byte[]> iterator()
+			public Iterator<T> iterator()
 			{
-				return new Iterator<byte[]>()
+				return new Iterator<T>()
 				{
-					boolean isNextKey;
-					byte[] nextKey;
-					final AllKeysGetter getter;
+					boolean isNextItem;
+					T nextItem;
+					final PageWalker<T> walker;
 
 					{
 						try
 						{
-							getter = new AllKeysGetter();
+							walker = new PageWalker<T>(reader);
 						}
 						catch (DBException exception)
 						{
@@ -867,29 +3768,29 @@ public class Dbm
 
 					public boolean hasNext()
 					{
-						if (!isNextKey)
+						if (!isNextItem)
 						{
 							try
 							{
-								nextKey = getter.nextKey();
+								nextItem = walker.next();
 							}
 							catch (DBException exception)
 							{
 								throw new RuntimeException(exception);
 							}
-							isNextKey = true;
+							isNextItem = true;
 						}
 
-						return nextKey != null;
+						return nextItem != null;
 					}
 
-					public byte[] next()
+					public T next()
 					{
-						if (!isNextKey)
+						if (!isNextItem)
 						{
 							try
 							{
-								nextKey = getter.nextKey();
+								nextItem = walker.next();
 							}
 							catch (DBException exception)
 							{
@@ -897,11 +3798,11 @@ public class Dbm
 							}
 						}
 
-						if (nextKey == null)
+						if (nextItem == null)
 							throw new NoSuchElementException();
 
-						isNextKey = false;
-						return nextKey;
+						isNextItem = false;
+						return nextItem;
 					}
 
 					public void remove()
@@ -912,4 +3813,459 @@ public class Dbm
 			}
 		};
 	}
+
+	/**
+	 * Stateful traversal method.
+	 *
+	 * Call this method to obtain an Iterable suitable for <code>for in</code>
+	 * loops. The keys are produced in an undefined order.
+	 * <p>
+	 * The <code>iterable()</code> method and the respective methods of the returned
+	 * iterator can throw {@link java.lang.RuntimeException}, with
+	 * {@link IODBException} or {@link CorruptedDBException} as a cause.
+	 * <p>
+	 * The {@link IODBException} indicates that an
+	 * {@link java.io.IOException} was encountered while reading the underlying
+	 * files. The {@link CorruptedDBException} indicates that the database is
+	 * corrupted or that it was opened with the wrong endianness.
+	 *
+	 * @return An iterable usable in a <code>for in</code> loop.
+	 */
+	public Iterable<byte[]> allKeys()
+	{
+		return walkPages(new PageReader<byte[]>()
+		{
+			public List<byte[]> read(PagPage page)
+			throws DBException
+			{
+				return page.getAllKeys();
+			}
+		});
+	}
+
+	/**
+	 * Stateful traversal of the pairs of key, value.
+	 *
+	 * This method behaves as {@link #allKeys()}, but produces the values
+	 * along with the keys. Each page is read once for all its pairs, so
+	 * dumping a database this way does not need to look every key up
+	 * again with {@link #get(byte[])}.
+	 * <p>
+	 * The keys and values are copies, which stay valid after the
+	 * database is modified.
+	 *
+	 * @return An iterable usable in a <code>for in</code> loop.
+	 */
+	public Iterable<Map.Entry<byte[],byte[]>> allEntries()
+	{
+		return walkPages(entriesReader);
+	}
+
+	/**
+	 * Take a snapshot of the database, a read-only view of it as it is
+	 * now, which later modifications do not change.
+	 *
+	 * The snapshot waits for the modifications in progress, but the
+	 * following ones proceed while it is used: before modifying a page
+	 * for the first time after a snapshot is taken, writers save a copy
+	 * of it, from which the snapshot reads. Reading a page only takes its
+	 * shared lock while it is read, as other lookups do, so that long
+	 * traversals neither wait for the writers nor make them wait.
+	 * <p>
+	 * The copies are kept until the snapshots which need them are
+	 * closed, so snapshots must be closed once they are not used anymore.
+	 *
+	 * @return A snapshot, to be closed by {@link Snapshot#close()}.
+	 */
+	public Snapshot snapshot()
+	{
+		/* between two operations, which hold the lock for reading */
+		modificationLock.writeLock().lock();
+		try
+		{
+			return new Snapshot(versions.open());
+		}
+		finally
+		{
+			modificationLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Read-only view of the database as it was when it was taken by
+	 * {@link Dbm#snapshot()}.
+	 *
+	 * A snapshot can be shared between threads. It cannot be used once
+	 * it is closed, nor once the database is closed.
+	 */
+	public class Snapshot
+	{
+		private final long number;
+		private volatile boolean isClosed;
+
+		private Snapshot(long number)
+		{
+			this.number = number;
+			isClosed = false;
+		}
+
+		/* the split bits set since the snapshot was taken are ignored */
+		private boolean isSplit(int mask, long pagNum)
+		{
+			long bitNum = (mask & 0xffffffffl) + pagNum;
+			return directory.isSplit(bitNum) && versions.wasSplit(bitNum, number);
+		}
+
+		/* the page as it was, read while holding its shared lock */
+		private <T> List<T> readPage(long pagNum, PageReader<T> reader)
+		throws DBException
+		{
+			if (isClosed)
+				throw new IllegalStateException("The snapshot is closed!");
+
+			long start = System.nanoTime();
+			Lock lock = pagLocks.forPage(pagNum).readLock();
+			lock.lock();
+			try
+			{
+				byte[] savedImage = versions.imageAt(pagNum, number);
+				if (savedImage != null)
+					return reader.read(new PagPage(pagNum, savedImage));
+
+				return reader.read(getPagPage(pagNum));
+			}
+			finally
+			{
+				lock.unlock();
+				metrics.record(Statistics.Operation.SCAN, start);
+			}
+		}
+
+		/**
+		 * Get the value associated with key when the snapshot was taken.
+		 *
+		 * See {@link Dbm#get(byte[])}.
+		 */
+		public byte[] get(final byte[] key)
+		throws DBException
+		{
+			int hash = computeHash(key);
+			if (keyFilter != null && !keyFilter.mightContain(hash))
+				return null;
+
+			int mask = 0;
+			while (isSplit(mask, hash & mask))
+				mask = (mask << 1) + 1;
+
+			return readPage(hash & mask, new PageReader<byte[]>()
+			{
+				public List<byte[]> read(PagPage page)
+				throws DBException
+				{
+					return Collections.singletonList(resolve(page.fetchKey(key)));
+				}
+			}).get(0);
+		}
+
+		/**
+		 * Tells whether key was in the database when the snapshot was
+		 * taken.
+		 */
+		public boolean containsKey(byte[] key)
+		throws DBException
+		{
+			return get(key) != null;
+		}
+
+		/**
+		 * Traversal of the keys of the snapshot, in an undefined order.
+		 *
+		 * Every key is produced exactly once, whatever the modifications
+		 * of the database meanwhile. See {@link Dbm#allKeys()} for the
+		 * exceptions thrown by the iterators.
+		 */
+		public Iterable<byte[]> allKeys()
+		{
+			return walk(new PageReader<byte[]>()
+			{
+				public List<byte[]> read(PagPage page)
+				throws DBException
+				{
+					return page.getAllKeys();
+				}
+			});
+		}
+
+		/**
+		 * Traversal of the pairs of key, value of the snapshot, which
+		 * behaves as {@link #allKeys()}.
+		 */
+		public Iterable<Map.Entry<byte[],byte[]>> allEntries()
+		{
+			return walk(entriesReader);
+		}
+
+		/* depth-first over the trie as it was, one page at a time */
+		private <T> Iterable<T> walk(final PageReader<T> reader)
+		{
+			return new Iterable<T>()
+			{
+				public Iterator<T> iterator()
+				{
+					return new Iterator<T>()
+					{
+						/* pending nodes as {prefix, depth} */
+						final Deque<int[]> nodes = new ArrayDeque<int[]>(Collections.singletonList(new int[] { 0, 0 }));
+						Iterator<T> pageIterator = Collections.<T>emptyList().iterator();
+
+						public boolean hasNext()
+						{
+							try
+							{
+								while (!pageIterator.hasNext() && !nodes.isEmpty())
+								{
+									int[] node = nodes.removeFirst();
+									int prefix = node[0];
+									int depth = node[1];
+									int mask = (depth == 32) ? -1 : (1 << depth) - 1;
+									long pagNum = (prefix & mask) & 0xffffffffl;
+
+									if (depth < 32 && isSplit(mask, pagNum))
+									{
+										nodes.addFirst(new int[] { prefix | (1 << depth), depth + 1 });
+										nodes.addFirst(new int[] { prefix, depth + 1 });
+									}
+									else
+										pageIterator = readPage(pagNum, reader).iterator();
+								}
+							}
+							catch (DBException exception)
+							{
+								throw new RuntimeException(exception);
+							}
+
+							return pageIterator.hasNext();
+						}
+
+						public T next()
+						{
+							if (!hasNext())
+								throw new NoSuchElementException();
+
+							return pageIterator.next();
+						}
+
+						public void remove()
+						{
+							throw new UnsupportedOperationException("Cannot remove a key from a snapshot!");
+						}
+					};
+				}
+			};
+		}
+
+		/**
+		 * Release the copies of the pages kept for the snapshot. Closing
+		 * a snapshot twice has no effect.
+		 *
+		 * Closing the last open snapshot schedules the collection of the
+		 * value log, which waits for the snapshots to be closed.
+		 */
+		public void close()
+		{
+			isClosed = true;
+			versions.close(number);
+			if (valueLog != null && !versions.hasOpen())
+				scheduleCollection();
+		}
+	}
+
+	/*
+	 * Read the page of a trie node, unless the node is split. Returns
+	 * null in that case.
+	 */
+	private <T> List<T> readNode(int prefix, int depth, PageReader<T> reader)
+	throws DBException
+	{
+		int mask = (depth == 32) ? -1 : (1 << depth) - 1;
+		long pagNum = (prefix & mask) & 0xffffffffl;
+
+		long start = System.nanoTime();
+		Lock lock = pagLocks.forPage(pagNum).readLock();
+		lock.lock();
+		try
+		{
+			if (depth < 32 && isSplit(mask, pagNum))
+				return null;
+
+			return reader.read(getPagPage(pagNum));
+		}
+		finally
+		{
+			lock.unlock();
+			metrics.record(Statistics.Operation.SCAN, start);
+		}
+	}
+
+	/*
+	 * Walks the subtrees of the trie in depth-first order. Splitting hands
+	 * over the shallowest pending subtree, splitting it in its two halves
+	 * when it is the only one left.
+	 *
+	 * Only the keys of a partition are produced. Above the depth of the
+	 * partition, only the child on its path is walked, and a page found
+	 * there also holds keys of other partitions, which are skipped.
+	 */
+	private class EntrySpliterator
+	implements Spliterator<Map.Entry<byte[],byte[]>>
+	{
+		private final int partitionPrefix;
+		private final int partitionDepth;
+		/* pending nodes as {prefix, depth}, deepest first */
+		private final Deque<int[]> nodes;
+		private Iterator<Map.Entry<byte[],byte[]>> pageIterator;
+		private long estimatedSize;
+
+		private EntrySpliterator(int partitionPrefix, int partitionDepth, int prefix, int depth, long estimatedSize)
+		{
+			this.partitionPrefix = partitionPrefix;
+			this.partitionDepth = partitionDepth;
+			nodes = new ArrayDeque<int[]>();
+			nodes.addFirst(new int[] { prefix, depth });
+			pageIterator = Collections.<Map.Entry<byte[],byte[]>>emptyList().iterator();
+			this.estimatedSize = estimatedSize;
+		}
+
+		private void pushChildren(int prefix, int depth)
+		{
+			if (depth < partitionDepth)
+			{
+				nodes.addFirst(new int[] { prefix | (partitionPrefix & (1 << depth)), depth + 1 });
+				return;
+			}
+
+			nodes.addFirst(new int[] { prefix | (1 << depth), depth + 1 });
+			nodes.addFirst(new int[] { prefix, depth + 1 });
+		}
+
+		/* the entries of a page above the partition which belong to it */
+		private List<Map.Entry<byte[],byte[]>> inPartition(List<Map.Entry<byte[],byte[]>> entries)
+		{
+			int mask = (partitionDepth == 32) ? -1 : (1 << partitionDepth) - 1;
+			List<Map.Entry<byte[],byte[]>> kept = new ArrayList<Map.Entry<byte[],byte[]>>();
+			for (Map.Entry<byte[],byte[]> entry : entries)
+			{
+				if ((computeHash(entry.getKey()) & mask) == partitionPrefix)
+					kept.add(entry);
+			}
+
+			return kept;
+		}
+
+		public boolean tryAdvance(Consumer<? super Map.Entry<byte[],byte[]>> action)
+		{
+			while (!pageIterator.hasNext())
+			{
+				int[] node = nodes.pollFirst();
+				if (node == null)
+					return false;
+
+				List<Map.Entry<byte[],byte[]>> entries;
+				try
+				{
+					entries = readNode(node[0], node[1], entriesReader);
+				}
+				catch (DBException exception)
+				{
+					throw new RuntimeException(exception);
+				}
+
+				if (entries == null)
+					pushChildren(node[0], node[1]);
+				else if (node[1] < partitionDepth)
+					pageIterator = inPartition(entries).iterator();
+				else
+					pageIterator = entries.iterator();
+			}
+
+			action.accept(pageIterator.next());
+			return true;
+		}
+
+		public Spliterator<Map.Entry<byte[],byte[]>> trySplit()
+		{
+			/* down the path to the partition, then to its first split node */
+			while (nodes.size() == 1)
+			{
+				int[] node = nodes.peekFirst();
+				if (node[1] == 32 || !isSplit((1 << node[1]) - 1, node[0]))
+					return null;
+
+				nodes.pollFirst();
+				pushChildren(node[0], node[1]);
+			}
+			if (nodes.size() < 2)
+				return null;
+
+			int[] node = nodes.pollLast();
+			estimatedSize >>>= 1;
+			return new EntrySpliterator(partitionPrefix, partitionDepth, node[0], node[1], estimatedSize);
+		}
+
+		public long estimateSize()
+		{
+			return estimatedSize;
+		}
+
+		public int characteristics()
+		{
+			return DISTINCT | NONNULL;
+		}
+	}
+
+	/**
+	 * Stream of all the pairs of key, value.
+	 *
+	 * The pairs are produced in an undefined order, as copies, like by
+	 * {@link #allEntries()}. The stream can be made parallel: it is then
+	 * divided by prefix of the hashes of the keys, each part covering
+	 * distinct pages of the database.
+	 * <p>
+	 * The operations of the stream can throw
+	 * {@link java.lang.RuntimeException}, with {@link IODBException} or
+	 * {@link CorruptedDBException} as a cause.
+	 */
+	public Stream<Map.Entry<byte[],byte[]>> entries()
+	{
+		return entries(0, 0);
+	}
+
+	/**
+	 * Stream of the pairs of key, value of one partition of the database.
+	 *
+	 * A partition holds the keys whose <code>depth</code> lowest hash bits
+	 * are <code>prefix</code>. The <code>2^depth</code> partitions of a
+	 * given depth are disjoint and cover the whole database, so they can
+	 * be read by different processes. Each is read from its own pages
+	 * where the trie is at least <code>depth</code> deep, and elsewhere
+	 * from the page it shares with other partitions, skipping their keys.
+	 * Apart from that, the stream behaves as the one of
+	 * {@link #entries()}.
+	 *
+	 * @param prefix The hash bits of the partition, less than
+	 * <code>2^depth</code>.
+	 * @param depth The number of hash bits selecting the partition, from
+	 * 0 to 32.
+	 * @throws IllegalArgumentException if <code>prefix</code> has bits set
+	 * above <code>depth</code>.
+	 */
+	public Stream<Map.Entry<byte[],byte[]>> entries(int prefix, int depth)
+	{
+		if (depth < 0 || depth > 32)
+			throw new IllegalArgumentException("Depth " + depth + " out of range!");
+		if (depth < 32 && (prefix >>> depth) != 0)
+			throw new IllegalArgumentException("Prefix " + prefix + " longer than " + depth + " bits!");
+
+		return StreamSupport.stream(new EntrySpliterator(prefix, depth, 0, 0, Long.MAX_VALUE), false);
+	}
 }
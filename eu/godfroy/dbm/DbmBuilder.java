@@ -0,0 +1,408 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Builds a new database from a stream of pairs of key, value, without
+ * inserting them one by one.
+ *
+ * The pairs are given in any order to {@link #add(byte[], byte[])}, and
+ * the files are written by {@link #build()}. The pairs are first sorted
+ * by their hash, bits read from the lowest, which is the order of the
+ * pages in the trie of the <code>.dir</code> file. Walking them in this
+ * order, the depth of each page is chosen so that it is as shallow as
+ * possible while holding all its pairs, which only requires looking ahead
+ * by one page. The pairs are then sorted by page number, and the
+ * <code>.pag</code> file is written from its start to its end. Both sorts
+ * spill to temporary files once they exceed the memory limit, so the
+ * time taken only depends on the amount of data to write and not on the
+ * number of pages.
+ * <p>
+ * The files produced are read and modified by {@link Dbm} like any other
+ * database. No page is split more than needed, so they are usually
+ * smaller than the ones obtained by inserting the pairs one by one. When
+ * a key is added several times, the last value added is kept.
+ * <p>
+ * This class is not safe to use from several threads.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+public class DbmBuilder
+{
+	private static final long DEFAULT_MEMORY_LIMIT = 64l << 20;
+
+	private final String database;
+	private final ByteOrder endianness;
+
+	private long memoryLimit;
+	private File temporaryDirectory;
+
+	/* created on the first insertion, ordered by the reversed hash */
+	private ExternalSorter byHash;
+
+	/* bits of the .dir file set while laying out the pages */
+	private long[] dirBits;
+	private long lastDirBit;
+
+	/**
+	 * Prepare the building of a database of the specified endianness.
+	 *
+	 * No file is opened before {@link #build()}.
+	 *
+	 * @param database The files <code>database + ".pag"</code> and
+	 * <code>database + ".dir"</code> will be created, or overwritten.
+	 * @param endianness Either {@link Dbm.Endianness#LITTLE_ENDIAN}
+	 * or {@link Dbm.Endianness#BIG_ENDIAN}.
+	 */
+	public DbmBuilder(String database, Dbm.Endianness endianness)
+	{
+		this.database = database;
+		this.endianness = endianness.getEndianness();
+
+		memoryLimit = DEFAULT_MEMORY_LIMIT;
+		temporaryDirectory = null;
+		byHash = null;
+	}
+
+	/**
+	 * Prepare the building of a little endian database.
+	 *
+	 * See {@link #DbmBuilder(String, Dbm.Endianness)}.
+	 */
+	public DbmBuilder(String database)
+	{
+		this(database, Dbm.Endianness.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Set the memory used to sort the pairs before spilling them to
+	 * temporary files. The default is 64MB.
+	 *
+	 * This must be called before the first pair is added.
+	 *
+	 * @param bytes Approximate memory used by each of the two sorts.
+	 */
+	public void setMemoryLimit(long bytes)
+	{
+		if (byHash != null)
+			throw new IllegalStateException("Pairs have already been added!");
+		if (bytes < 1)
+			throw new IllegalArgumentException("The memory limit must be positive!");
+
+		memoryLimit = bytes;
+	}
+
+	/**
+	 * Set the directory where the temporary files are created. The
+	 * default is the temporary directory of the system.
+	 *
+	 * This must be called before the first pair is added.
+	 */
+	public void setTemporaryDirectory(File directory)
+	{
+		if (byHash != null)
+			throw new IllegalStateException("Pairs have already been added!");
+
+		temporaryDirectory = directory;
+	}
+
+	/**
+	 * Add a pair of key, value to the database to build.
+	 *
+	 * @throws IllegalArgumentException if the pair can never fit in a page.
+	 * @throws IODBException if a temporary file cannot be written.
+	 */
+	public void add(byte[] key, byte[] value)
+	throws DBException
+	{
+		if (key.length + value.length + 6 > Dbm.PAGFILE_PGSZ)
+			throw new IllegalArgumentException("Will never be able to insert: key+value too long!");
+
+		if (byHash == null)
+			byHash = new ExternalSorter(temporaryDirectory, memoryLimit);
+
+		int hash = Dbm.computeHash(key);
+		try
+		{
+			byHash.add(Integer.reverse(hash) & 0xffffffffl, hash, key, value);
+		}
+		catch (IOException exception)
+		{
+			byHash.close();
+			byHash = null;
+			throw new IODBException(exception);
+		}
+	}
+
+	/**
+	 * Write the database, replacing any previous files.
+	 *
+	 * The temporary files are deleted, and the builder must not be used
+	 * anymore afterwards.
+	 *
+	 * @throws InsertImpossibleDBException if too many keys share the same hash.
+	 * @throws IODBException in case one of the files cannot be written.
+	 */
+	public void build()
+	throws DBException
+	{
+		if (byHash == null)
+			byHash = new ExternalSorter(temporaryDirectory, memoryLimit);
+
+		ExternalSorter byPage = new ExternalSorter(temporaryDirectory, memoryLimit);
+		try
+		{
+			/* the key filter saved and the logs of the previous files, if any */
+			new File(database + Dbm.FILTER_EXT).delete();
+			new File(database + Dbm.LOG_EXT).delete();
+			for (File segmentFile : ValueLog.segmentFiles(database).values())
+				segmentFile.delete();
+
+			RandomAccessFile pagFile = new RandomAccessFile(database + Dbm.PAG_EXT, "rw");
+			try
+			{
+				RandomAccessFile dirFile = new RandomAccessFile(database + Dbm.DIR_EXT, "rw");
+				try
+				{
+					dirBits = new long[Directory.DIRFILE_PGSZ / 8];
+					lastDirBit = -1;
+					layout(new Lookahead(byHash.sorted()), byPage, 0, 0);
+					writeDir(dirFile);
+
+					writePag(pagFile, byPage.sorted());
+				}
+				finally
+				{
+					dirFile.close();
+				}
+			}
+			finally
+			{
+				pagFile.close();
+			}
+		}
+		catch (IOException exception)
+		{
+			throw new IODBException(exception);
+		}
+		finally
+		{
+			byPage.close();
+			byHash.close();
+			dirBits = null;
+		}
+	}
+
+	/*
+	 * The pairs sorted by reversed hash, duplicated keys removed, with the
+	 * ability to look at the pairs ahead.
+	 */
+	private static class Lookahead
+	{
+		private final ExternalSorter.RecordReader reader;
+		/* records read ahead are the ones of buffer from first on */
+		private final List<ExternalSorter.Record> buffer;
+		private int first;
+		private ExternalSorter.Record following;
+
+		private Lookahead(ExternalSorter.RecordReader reader)
+		throws IOException
+		{
+			this.reader = reader;
+			buffer = new ArrayList<ExternalSorter.Record>();
+			first = 0;
+			following = reader.next();
+		}
+
+		/* the last record of each key, as they follow each other */
+		private ExternalSorter.Record nextKey()
+		throws IOException
+		{
+			ExternalSorter.Record record = following;
+			if (record == null)
+				return null;
+
+			following = reader.next();
+			while (following != null && following.sameKey(record))
+			{
+				record = following;
+				following = reader.next();
+			}
+
+			return record;
+		}
+
+		private ExternalSorter.Record peek(int index)
+		throws IOException
+		{
+			while (buffer.size() <= first + index)
+			{
+				ExternalSorter.Record record = nextKey();
+				if (record == null)
+					return null;
+				buffer.add(record);
+			}
+
+			return buffer.get(first + index);
+		}
+
+		private ExternalSorter.Record take()
+		{
+			ExternalSorter.Record record = buffer.get(first++);
+			if (first == buffer.size())
+			{
+				buffer.clear();
+				first = 0;
+			}
+
+			return record;
+		}
+	}
+
+	/*
+	 * Lay out the pairs of the trie node of the given depth. All the pairs
+	 * of the nodes before have already been taken, so the pairs of the
+	 * node are the next ones.
+	 */
+	private void layout(Lookahead pairs, ExternalSorter byPage, int depth, int prefix)
+	throws IOException,
+	       DBException
+	{
+		int mask = (depth == 32) ? -1 : (1 << depth) - 1;
+
+		int count = 0;
+		int totalSize = 2;
+		ExternalSorter.Record record;
+		while (totalSize <= Dbm.PAGFILE_PGSZ && (record = pairs.peek(count)) != null && (record.hash & mask) == prefix)
+		{
+			totalSize += 4 + record.key.length + record.value.length;
+			count++;
+		}
+
+		if (totalSize <= Dbm.PAGFILE_PGSZ)
+		{
+			long pagNum = prefix & mask;
+			for (int i = 0; i < count; i++)
+			{
+				record = pairs.take();
+				byPage.add(pagNum, record.hash, record.key, record.value);
+			}
+			return;
+		}
+
+		if (mask == -1)
+			throw new InsertImpossibleDBException("Cannot split anymore!");
+
+		setDirBit((mask & 0xffffffffl) + prefix);
+		layout(pairs, byPage, depth + 1, prefix);
+		layout(pairs, byPage, depth + 1, prefix | (1 << depth));
+	}
+
+	private void setDirBit(long bitNum)
+	{
+		int word = (int) (bitNum >>> 6);
+		if (word >= dirBits.length)
+			dirBits = Arrays.copyOf(dirBits, Math.max(2 * dirBits.length, word + 1));
+
+		dirBits[word] |= 1l << bitNum;
+		lastDirBit = Math.max(lastDirBit, bitNum);
+	}
+
+	/*
+	 * whole blocks, up to the one holding the last bit set. Blocks
+	 * without any bit set are left as holes, as when they are never
+	 * written by Dbm.
+	 */
+	private void writeDir(RandomAccessFile dirFile)
+	throws IOException
+	{
+		dirFile.setLength(0);
+		if (lastDirBit < 0)
+			return;
+
+		int wordsPerPage = Directory.DIRFILE_PGSZ / 8;
+		long dirPages = lastDirBit / (8 * Directory.DIRFILE_PGSZ) + 1;
+		byte[] content = new byte[Directory.DIRFILE_PGSZ];
+		for (long dirPagNum = 0; dirPagNum < dirPages; dirPagNum++)
+		{
+			int firstWord = (int) (dirPagNum * wordsPerPage);
+			boolean isEmpty = true;
+			for (int word = firstWord; word < firstWord + wordsPerPage && word < dirBits.length; word++)
+			{
+				if (dirBits[word] != 0)
+					isEmpty = false;
+			}
+			if (isEmpty)
+				continue;
+
+			for (int i = 0; i < Directory.DIRFILE_PGSZ; i++)
+			{
+				int word = firstWord + i / 8;
+				long dirWord = (word < dirBits.length) ? dirBits[word] : 0;
+				content[i] = (byte) (dirWord >>> (8 * (i % 8)));
+			}
+			dirFile.seek(dirPagNum * Directory.DIRFILE_PGSZ);
+			dirFile.write(content);
+		}
+	}
+
+	/*
+	 * The pages are assembled in the order of their numbers, and written
+	 * by runs of consecutive pages. Empty pages are left as holes.
+	 */
+	private void writePag(RandomAccessFile pagFile, ExternalSorter.RecordReader pairs)
+	throws IOException
+	{
+		final int runPages = 64;
+		byte[] run = new byte[runPages * Dbm.PAGFILE_PGSZ];
+		long runStart = -1;
+		int runLength = 0;
+
+		pagFile.setLength(0);
+
+		ExternalSorter.Record record = pairs.next();
+		while (record != null)
+		{
+			long pagNum = record.order;
+			if (runLength > 0 && (pagNum != runStart + runLength || runLength == runPages))
+			{
+				pagFile.seek(runStart * Dbm.PAGFILE_PGSZ);
+				pagFile.write(run, 0, runLength * Dbm.PAGFILE_PGSZ);
+				runLength = 0;
+			}
+			if (runLength == 0)
+				runStart = pagNum;
+
+			ByteBuffer contentBuf = ByteBuffer.wrap(run, runLength * Dbm.PAGFILE_PGSZ, Dbm.PAGFILE_PGSZ).slice();
+			contentBuf.order(endianness);
+			int entries = 0;
+			int lastPosition = Dbm.PAGFILE_PGSZ;
+			while (record != null && record.order == pagNum)
+			{
+				for (int i = 0; i < 2; i++)
+				{
+					byte[] data = (i % 2 == 0) ? record.key : record.value;
+					int nextPosition = lastPosition - data.length;
+					contentBuf.position(nextPosition);
+					contentBuf.put(data);
+					contentBuf.putShort(2 + 2 * entries, (short) nextPosition);
+
+					entries++;
+					lastPosition = nextPosition;
+				}
+				record = pairs.next();
+			}
+			contentBuf.putShort(0, (short) entries);
+			Arrays.fill(run, runLength * Dbm.PAGFILE_PGSZ + 2 + 2 * entries, runLength * Dbm.PAGFILE_PGSZ + lastPosition, (byte) 0);
+			runLength++;
+		}
+
+		if (runLength > 0)
+		{
+			pagFile.seek(runStart * Dbm.PAGFILE_PGSZ);
+			pagFile.write(run, 0, runLength * Dbm.PAGFILE_PGSZ);
+		}
+	}
+}
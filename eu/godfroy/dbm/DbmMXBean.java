@@ -0,0 +1,54 @@
+package eu.godfroy.dbm;
+
+import java.util.*;
+
+/**
+ * Management interface of a database, registered by
+ * {@link Dbm#registerMBean(String)}.
+ *
+ * The attributes are read from {@link Dbm#getStatistics()} each time
+ * they are requested. Latencies are in nanoseconds, by name of
+ * {@link Statistics.Operation}.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+public interface DbmMXBean
+{
+	long getPagReads();
+
+	long getPagBytesRead();
+
+	long getPagWrites();
+
+	long getPagBytesWritten();
+
+	long getDirReads();
+
+	long getDirBytesRead();
+
+	long getDirWrites();
+
+	long getDirBytesWritten();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	long getCacheEvictions();
+
+	int getCacheSize();
+
+	int getCacheCapacity();
+
+	long getSplits();
+
+	int getMaxDepth();
+
+	long getInsertsImpossible();
+
+	Map<String,Long> getOperationCounts();
+
+	Map<String,Long> getMedianLatencies();
+
+	Map<String,Long> getPercentile99Latencies();
+}
@@ -0,0 +1,129 @@
+package eu.godfroy.dbm;
+
+import java.util.*;
+
+/**
+ * The MXBean of a database, reading its statistics on demand.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class DbmMonitor
+implements DbmMXBean
+{
+	private final Dbm dbm;
+
+	DbmMonitor(Dbm dbm)
+	{
+		this.dbm = dbm;
+	}
+
+	public long getPagReads()
+	{
+		return dbm.getStatistics().getPagReads();
+	}
+
+	public long getPagBytesRead()
+	{
+		return dbm.getStatistics().getPagBytesRead();
+	}
+
+	public long getPagWrites()
+	{
+		return dbm.getStatistics().getPagWrites();
+	}
+
+	public long getPagBytesWritten()
+	{
+		return dbm.getStatistics().getPagBytesWritten();
+	}
+
+	public long getDirReads()
+	{
+		return dbm.getStatistics().getDirReads();
+	}
+
+	public long getDirBytesRead()
+	{
+		return dbm.getStatistics().getDirBytesRead();
+	}
+
+	public long getDirWrites()
+	{
+		return dbm.getStatistics().getDirWrites();
+	}
+
+	public long getDirBytesWritten()
+	{
+		return dbm.getStatistics().getDirBytesWritten();
+	}
+
+	public long getCacheHits()
+	{
+		return dbm.getCacheStatistics().getHits();
+	}
+
+	public long getCacheMisses()
+	{
+		return dbm.getCacheStatistics().getMisses();
+	}
+
+	public long getCacheEvictions()
+	{
+		return dbm.getCacheStatistics().getEvictions();
+	}
+
+	public int getCacheSize()
+	{
+		return dbm.getCacheStatistics().getSize();
+	}
+
+	public int getCacheCapacity()
+	{
+		return dbm.getCacheStatistics().getCapacity();
+	}
+
+	public long getSplits()
+	{
+		return dbm.getStatistics().getSplits();
+	}
+
+	public int getMaxDepth()
+	{
+		return dbm.getStatistics().getMaxDepth();
+	}
+
+	public long getInsertsImpossible()
+	{
+		return dbm.getStatistics().getInsertsImpossible();
+	}
+
+	public Map<String,Long> getOperationCounts()
+	{
+		Statistics statistics = dbm.getStatistics();
+		Map<String,Long> counts = new TreeMap<String,Long>();
+		for (Statistics.Operation operation : Statistics.Operation.values())
+			counts.put(operation.name(), statistics.getLatency(operation).getCount());
+
+		return counts;
+	}
+
+	public Map<String,Long> getMedianLatencies()
+	{
+		return getPercentiles(0.5);
+	}
+
+	public Map<String,Long> getPercentile99Latencies()
+	{
+		return getPercentiles(0.99);
+	}
+
+	private Map<String,Long> getPercentiles(double fraction)
+	{
+		Statistics statistics = dbm.getStatistics();
+		Map<String,Long> percentiles = new TreeMap<String,Long>();
+		for (Statistics.Operation operation : Statistics.Operation.values())
+			percentiles.put(operation.name(), statistics.getLatency(operation).getPercentile(fraction));
+
+		return percentiles;
+	}
+}
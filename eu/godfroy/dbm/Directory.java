@@ -0,0 +1,283 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * In-memory copy of the <code>.dir</code> file of a database.
+ *
+ * The whole bitmap is loaded when the database is opened. Since the file
+ * stores the lowest bits of each octet first, bit <code>n</code> of the
+ * file is bit <code>n % 64</code> of word <code>n / 64</code>.
+ * <p>
+ * The bit of a page at depth <code>d</code> lies in the range
+ * <code>[2^d - 1, 2^(d+1) - 1)</code>. Counting the bits set in each of
+ * these ranges gives the depth down to which every page is split, where
+ * the search for the page of a hash can start.
+ * <p>
+ * Bits are only ever set, while holding the lock of the page being split.
+ * Readers do not lock: they may miss a bit being set, but see it at the
+ * latest once they take the lock of that page.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class Directory
+{
+	static final int DIRFILE_PGSZ = 4096;
+
+	private static final int WORDS_PER_PAGE = DIRFILE_PGSZ / 8;
+
+	private final PageStorage dirStorage;
+	private final Metrics metrics;
+	/* guards the modifications and the writes, never the reads */
+	private final Lock lock;
+
+	private volatile long[] bits;
+	/* bits set at each depth, guarded by lock */
+	private final long[] depthCounts;
+	/* every page of depth less than fullDepth is split */
+	private volatile int fullDepth;
+	/* depth of the deepest page, guarded by lock for writing */
+	private volatile int maxDepth;
+	/* pages modified but not written, when they are logged instead, guarded by lock */
+	private final Set<Long> dirtyPages;
+
+	Directory(PageStorage dirStorage, Metrics metrics)
+	throws IOException
+	{
+		this.dirStorage = dirStorage;
+		this.metrics = metrics;
+		lock = new ReentrantLock();
+		dirtyPages = new TreeSet<Long>();
+
+		long length = dirStorage.length();
+		if (length > Integer.MAX_VALUE - DIRFILE_PGSZ)
+			throw new IOException("Directory file too big!");
+
+		byte[] content = new byte[(int) length];
+		if (dirStorage.read(ByteBuffer.wrap(content), 0) < content.length)
+			throw new EOFException("Directory file truncated while reading it!");
+		if (content.length > 0)
+			metrics.dirRead(content.length);
+
+		/* whole directory pages, to be able to write them back */
+		int pages = Math.max((content.length + DIRFILE_PGSZ - 1) / DIRFILE_PGSZ, 1);
+		long[] loadedBits = new long[pages * WORDS_PER_PAGE];
+		for (int i = 0; i < content.length; i++)
+			loadedBits[i / 8] |= (content[i] & 0xffl) << (8 * (i % 8));
+
+		depthCounts = new long[64];
+		for (int word = 0; word < loadedBits.length; word++)
+		{
+			long remaining = loadedBits[word];
+			while (remaining != 0)
+			{
+				long bitNum = (long) word * 64 + Long.numberOfTrailingZeros(remaining);
+				depthCounts[depthOf(bitNum)]++;
+				maxDepth = Math.max(maxDepth, depthOf(bitNum) + 1);
+				remaining &= remaining - 1;
+			}
+		}
+
+		bits = loadedBits;
+		updateFullDepth();
+	}
+
+	private static int depthOf(long bitNum)
+	{
+		return 63 - Long.numberOfLeadingZeros(bitNum + 1);
+	}
+
+	private void updateFullDepth()
+	{
+		int depth = fullDepth;
+		while (depth < 32 && depthCounts[depth] == 1l << depth)
+			depth++;
+		fullDepth = depth;
+	}
+
+	boolean isSplit(long bitNum)
+	{
+		long[] currentBits = bits;
+		int word = (int) (bitNum >>> 6);
+		if (word >= currentBits.length)
+			return false;
+
+		return (currentBits[word] & (1l << bitNum)) != 0;
+	}
+
+	/**
+	 * Mask of the depth at which the search for the page of a hash can
+	 * start, all the pages above being split.
+	 */
+	int startMask()
+	{
+		int depth = fullDepth;
+		return (depth >= 32) ? -1 : (1 << depth) - 1;
+	}
+
+	/**
+	 * Depth of the deepest page, 0 when no page is split.
+	 */
+	int maxDepth()
+	{
+		return maxDepth;
+	}
+
+	/**
+	 * Set a bit and write the directory page which contains it.
+	 */
+	void markSplit(long bitNum)
+	throws DBException
+	{
+		writePage(setSplit(bitNum));
+	}
+
+	/**
+	 * Set a bit, without writing it.
+	 *
+	 * @return The number of the directory page to write back.
+	 */
+	long setSplit(long bitNum)
+	{
+		lock.lock();
+		try
+		{
+			long[] currentBits = bits;
+			int word = (int) (bitNum >>> 6);
+			if (word >= currentBits.length)
+			{
+				int newLength = Math.max(currentBits.length * 2, (word / WORDS_PER_PAGE + 1) * WORDS_PER_PAGE);
+				long[] newBits = new long[newLength];
+				System.arraycopy(currentBits, 0, newBits, 0, currentBits.length);
+				currentBits = newBits;
+			}
+
+			if ((currentBits[word] & (1l << bitNum)) == 0)
+			{
+				currentBits[word] |= 1l << bitNum;
+				depthCounts[depthOf(bitNum)]++;
+				maxDepth = Math.max(maxDepth, depthOf(bitNum) + 1);
+			}
+			/* publishes the new bit as well as a grown array */
+			bits = currentBits;
+			updateFullDepth();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return bitNum / (8 * DIRFILE_PGSZ);
+	}
+
+	/**
+	 * The content of a directory page, as written to the file.
+	 */
+	byte[] pageImage(long dirPagNum)
+	{
+		lock.lock();
+		try
+		{
+			long[] currentBits = bits;
+			byte[] content = new byte[DIRFILE_PGSZ];
+			for (int i = 0; i < DIRFILE_PGSZ; i++)
+			{
+				long pageWord = currentBits[(int) (dirPagNum * WORDS_PER_PAGE + i / 8)];
+				content[i] = (byte) (pageWord >>> (8 * (i % 8)));
+			}
+
+			return content;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Numbers of the directory pages with at least one bit set, in
+	 * increasing order. The others need not be written to a copy of the
+	 * file, which reads zeroes in its holes.
+	 */
+	long[] usedPages()
+	{
+		long[] currentBits = bits;
+		long[] used = new long[currentBits.length / WORDS_PER_PAGE];
+		int usedCount = 0;
+		for (int page = 0; page < used.length; page++)
+		{
+			for (int word = page * WORDS_PER_PAGE; word < (page + 1) * WORDS_PER_PAGE; word++)
+			{
+				if (currentBits[word] != 0)
+				{
+					used[usedCount++] = page;
+					break;
+				}
+			}
+		}
+
+		return Arrays.copyOf(used, usedCount);
+	}
+
+	/**
+	 * Remember a page modified and logged, to write it on the next
+	 * {@link #writeDirtyPages()}.
+	 */
+	void markDirty(long dirPagNum)
+	{
+		lock.lock();
+		try
+		{
+			dirtyPages.add(dirPagNum);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	void writeDirtyPages()
+	throws DBException
+	{
+		lock.lock();
+		try
+		{
+			for (long dirPagNum : dirtyPages)
+				writePage(dirPagNum);
+			dirtyPages.clear();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Write a directory page.
+	 *
+	 * The page is rebuilt and written while holding the lock, so that
+	 * the last page written always contains all the bits set before.
+	 */
+	void writePage(long dirPagNum)
+	throws DBException
+	{
+		lock.lock();
+		try
+		{
+			byte[] content = pageImage(dirPagNum);
+			dirStorage.write(ByteBuffer.wrap(content), dirPagNum * DIRFILE_PGSZ);
+			metrics.dirWritten(content.length);
+		}
+		catch (IOException exception)
+		{
+			throw new IODBException(exception);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Sorts key, value records too numerous to be held in memory.
+ *
+ * Records are accumulated in memory up to a limit, then sorted and
+ * spilled to a temporary file as a run. Once all the records are added,
+ * the runs are merged. When no run was spilled, no file is used at all.
+ * <p>
+ * The records are sorted by <code>order</code>, then by key and by
+ * insertion sequence, so that several records of a same key follow each
+ * other, the last inserted one coming last.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class ExternalSorter
+{
+	/* estimate of the memory taken by a record besides its key and value */
+	private static final int RECORD_OVERHEAD = 80;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	static class Record
+	implements Comparable<Record>
+	{
+		final long order;
+		final int hash;
+		final byte[] key;
+		final byte[] value;
+		private final long sequence;
+
+		Record(long order, int hash, byte[] key, byte[] value, long sequence)
+		{
+			this.order = order;
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+			this.sequence = sequence;
+		}
+
+		boolean sameKey(Record otherRecord)
+		{
+			return hash == otherRecord.hash && Arrays.equals(key, otherRecord.key);
+		}
+
+		public int compareTo(Record otherRecord)
+		{
+			if (order != otherRecord.order)
+				return (order < otherRecord.order) ? -1 : 1;
+
+			if (key.length != otherRecord.key.length)
+				return key.length - otherRecord.key.length;
+
+			for (int i = 0; i < key.length; i++)
+			{
+				if (key[i] != otherRecord.key[i])
+					return key[i] - otherRecord.key[i];
+			}
+
+			return Long.compare(sequence, otherRecord.sequence);
+		}
+	}
+
+	/**
+	 * Source of sorted records.
+	 */
+	interface RecordReader
+	{
+		/**
+		 * @return The next record, <code>null</code> at the end.
+		 */
+		Record next()
+		throws IOException;
+	}
+
+	private final File temporaryDirectory;
+	private final long memoryLimit;
+
+	private final List<Record> records;
+	private long memoryUsed;
+	private long sequence;
+	private final List<File> runs;
+	private final List<RunReader> runReaders;
+
+	ExternalSorter(File temporaryDirectory, long memoryLimit)
+	{
+		this.temporaryDirectory = temporaryDirectory;
+		this.memoryLimit = memoryLimit;
+
+		records = new ArrayList<Record>();
+		memoryUsed = 0;
+		sequence = 0;
+		runs = new ArrayList<File>();
+		runReaders = new ArrayList<RunReader>();
+	}
+
+	void add(long order, int hash, byte[] key, byte[] value)
+	throws IOException
+	{
+		records.add(new Record(order, hash, key, value, sequence++));
+		memoryUsed += RECORD_OVERHEAD + key.length + value.length;
+		if (memoryUsed >= memoryLimit)
+			spill();
+	}
+
+	private void spill()
+	throws IOException
+	{
+		Collections.sort(records);
+
+		File run = File.createTempFile("dbm", ".run", temporaryDirectory);
+		runs.add(run);
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+		try
+		{
+			for (Record record : records)
+			{
+				output.writeLong(record.order);
+				output.writeInt(record.hash);
+				output.writeLong(record.sequence);
+				output.writeShort(record.key.length);
+				output.writeShort(record.value.length);
+				output.write(record.key);
+				output.write(record.value);
+			}
+		}
+		finally
+		{
+			output.close();
+		}
+
+		records.clear();
+		memoryUsed = 0;
+	}
+
+	private static class RunReader
+	implements RecordReader
+	{
+		private final DataInputStream input;
+
+		private RunReader(File run)
+		throws IOException
+		{
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+		}
+
+		private void close()
+		{
+			try
+			{
+				input.close();
+			}
+			catch (IOException exception)
+			{
+				;
+			}
+		}
+
+		public Record next()
+		throws IOException
+		{
+			long order;
+			try
+			{
+				order = input.readLong();
+			}
+			catch (EOFException exception)
+			{
+				return null;
+			}
+
+			int hash = input.readInt();
+			long sequence = input.readLong();
+			byte[] key = new byte[input.readUnsignedShort()];
+			byte[] value = new byte[input.readUnsignedShort()];
+			input.readFully(key);
+			input.readFully(value);
+
+			return new Record(order, hash, key, value, sequence);
+		}
+	}
+
+	private static class ListReader
+	implements RecordReader
+	{
+		private final Iterator<Record> iterator;
+
+		private ListReader(List<Record> records)
+		{
+			iterator = records.iterator();
+		}
+
+		public Record next()
+		{
+			return iterator.hasNext() ? iterator.next() : null;
+		}
+	}
+
+	private static class Head
+	implements Comparable<Head>
+	{
+		private final Record record;
+		private final RecordReader reader;
+
+		private Head(Record record, RecordReader reader)
+		{
+			this.record = record;
+			this.reader = reader;
+		}
+
+		public int compareTo(Head otherHead)
+		{
+			return record.compareTo(otherHead.record);
+		}
+	}
+
+	/**
+	 * Obtain all the records added, sorted.
+	 *
+	 * No record must be added afterwards.
+	 */
+	RecordReader sorted()
+	throws IOException
+	{
+		Collections.sort(records);
+		if (runs.isEmpty())
+			return new ListReader(records);
+
+		final PriorityQueue<Head> heads = new PriorityQueue<Head>();
+		List<RecordReader> readers = new ArrayList<RecordReader>();
+		readers.add(new ListReader(records));
+		for (File run : runs)
+		{
+			RunReader runReader = new RunReader(run);
+			runReaders.add(runReader);
+			readers.add(runReader);
+		}
+
+		for (RecordReader reader : readers)
+		{
+			Record record = reader.next();
+			if (record != null)
+				heads.add(new Head(record, reader));
+		}
+
+		return new RecordReader()
+		{
+			public Record next()
+			throws IOException
+			{
+				Head head = heads.poll();
+				if (head == null)
+					return null;
+
+				Record following = head.reader.next();
+				if (following != null)
+					heads.add(new Head(following, head.reader));
+
+				return head.record;
+			}
+		};
+	}
+
+	/**
+	 * Delete the temporary files.
+	 */
+	void close()
+	{
+		for (RunReader runReader : runReaders)
+			runReader.close();
+		runReaders.clear();
+		for (File run : runs)
+			run.delete();
+		runs.clear();
+		records.clear();
+	}
+}
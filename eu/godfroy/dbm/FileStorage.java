@@ -0,0 +1,99 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Storage in a file, accessed by positional reads and writes of its
+ * {@link FileChannel}.
+ *
+ * Each read or write is a single <code>pread</code> or
+ * <code>pwrite</code> in the common case, and concurrent ones proceed in
+ * parallel.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class FileStorage
+implements PageStorage
+{
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	FileStorage(RandomAccessFile file)
+	{
+		this.file = file;
+		channel = file.getChannel();
+	}
+
+	/* a page partly past the end of the file is empty */
+	public ByteBuffer readPage(long pagNum, int pageSize, Metrics metrics)
+	throws IOException
+	{
+		byte[] content = new byte[pageSize];
+		int read = read(ByteBuffer.wrap(content), pagNum * pageSize);
+		if (read > 0)
+			metrics.pagRead(read);
+		if (read < pageSize)
+			Arrays.fill(content, (byte) 0);
+
+		return ByteBuffer.wrap(content);
+	}
+
+	public int read(ByteBuffer buffer, long position)
+	throws IOException
+	{
+		int read = 0;
+		while (buffer.hasRemaining())
+		{
+			int count = channel.read(buffer, position + read);
+			if (count < 0)
+				break;
+			read += count;
+		}
+
+		return read;
+	}
+
+	public void write(ByteBuffer buffer, long position)
+	throws IOException
+	{
+		int written = 0;
+		while (buffer.hasRemaining())
+			written += channel.write(buffer, position + written);
+	}
+
+	public long transferTo(long position, long count, WritableByteChannel target)
+	throws IOException
+	{
+		long transferred = 0;
+		while (transferred < count)
+		{
+			long transferCount = channel.transferTo(position + transferred, count - transferred, target);
+			if (transferCount <= 0)
+				break;
+			transferred += transferCount;
+		}
+
+		return transferred;
+	}
+
+	public long length()
+	throws IOException
+	{
+		return channel.size();
+	}
+
+	public void sync()
+	throws IOException
+	{
+		channel.force(false);
+	}
+
+	public void close()
+	throws IOException
+	{
+		file.close();
+	}
+}
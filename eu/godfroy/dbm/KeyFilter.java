@@ -0,0 +1,281 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Bloom filter of the hashes of the keys of a database, telling without
+ * reading any page that a key is not in the database.
+ *
+ * The filter is keyed by the DBM hash of the keys rather than by the
+ * keys, so that it does not depend on the page holding a key, and is not
+ * affected when pages are split. Keys are added on insertion but never
+ * removed: a removed key only makes its lookups read its page, as
+ * without filter.
+ * <p>
+ * The filter grows without having to be rebuilt, as a list of stages.
+ * Once the last stage holds as many hashes as it was sized for, a stage
+ * twice as big is added, with one more hash function so that the false
+ * positive rates of all the stages add up to at most twice the one of
+ * the first stage, which is about 1%.
+ * <p>
+ * Bits are only ever set, atomically, before the key they stand for is
+ * inserted in its page. Readers do not lock.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class KeyFilter
+{
+	private static final int MAGIC = 0x44424d46;
+	private static final int VERSION = 1;
+
+	private static final long MIN_CAPACITY = 1l << 14;
+	private static final int FIRST_HASHES = 7;
+	/* the number of bits of a stage is limited by the length of an AtomicLongArray */
+	private static final long MAX_BITS = (long) Integer.MAX_VALUE * 64;
+
+	private static class Stage
+	{
+		private final long capacity;
+		private final int hashes;
+		private final long bits;
+		private final AtomicLongArray words;
+		/* hashes which set at least one bit */
+		private final AtomicLong count;
+
+		private Stage(long capacity, int hashes)
+		{
+			this.capacity = capacity;
+			this.hashes = hashes;
+			long wanted = (long) Math.ceil(capacity * hashes / Math.log(2));
+			bits = Math.min((wanted + 63) & ~63l, MAX_BITS);
+			words = new AtomicLongArray((int) (bits / 64));
+			count = new AtomicLong();
+		}
+
+		private Stage(long capacity, int hashes, long count, long[] words)
+		{
+			this.capacity = capacity;
+			this.hashes = hashes;
+			bits = (long) words.length * 64;
+			this.words = new AtomicLongArray(words);
+			this.count = new AtomicLong(count);
+		}
+
+		/* returns whether a bit was set */
+		private boolean add(long mixed)
+		{
+			boolean changed = false;
+			for (int i = 0; i < hashes; i++)
+			{
+				long bit = bitOf(mixed, i);
+				int word = (int) (bit >>> 6);
+				long wordMask = 1l << bit;
+				while (true)
+				{
+					long current = words.get(word);
+					if ((current & wordMask) != 0)
+						break;
+					if (words.compareAndSet(word, current, current | wordMask))
+					{
+						changed = true;
+						break;
+					}
+				}
+			}
+
+			return changed;
+		}
+
+		private boolean mightContain(long mixed)
+		{
+			for (int i = 0; i < hashes; i++)
+			{
+				long bit = bitOf(mixed, i);
+				if ((words.get((int) (bit >>> 6)) & (1l << bit)) == 0)
+					return false;
+			}
+
+			return true;
+		}
+
+		/* double hashing on the two halves of the mixed hash */
+		private long bitOf(long mixed, int i)
+		{
+			long combined = (mixed >>> 32) + i * ((mixed & 0xffffffffl) | 1);
+			return combined % bits;
+		}
+	}
+
+	/* replaced as a whole when a stage is added, guarded by lock for writing */
+	private volatile Stage[] stages;
+	private final Lock lock;
+
+	/**
+	 * Create an empty filter.
+	 *
+	 * @param expectedKeys Number of keys for which the first stage is
+	 * sized.
+	 */
+	KeyFilter(long expectedKeys)
+	{
+		stages = new Stage[] { new Stage(Math.max(expectedKeys, MIN_CAPACITY), FIRST_HASHES) };
+		lock = new ReentrantLock();
+	}
+
+	private KeyFilter(Stage[] stages)
+	{
+		this.stages = stages;
+		lock = new ReentrantLock();
+	}
+
+	/* spreads the 32 bits of the DBM hash over 64, since it is not uniform */
+	private static long mix(int hash)
+	{
+		long mixed = hash * 0x9e3779b97f4a7c15l;
+		mixed ^= mixed >>> 33;
+		mixed *= 0xff51afd7ed558ccdl;
+		mixed ^= mixed >>> 33;
+		mixed *= 0xc4ceb9fe1a85ec53l;
+		mixed ^= mixed >>> 33;
+		return mixed;
+	}
+
+	void add(int hash)
+	{
+		long mixed = mix(hash);
+		Stage[] currentStages = stages;
+		for (Stage stage : currentStages)
+		{
+			/* already there, for instance when a value is replaced */
+			if (stage.mightContain(mixed))
+				return;
+		}
+
+		Stage last = currentStages[currentStages.length - 1];
+		if (last.add(mixed) && last.count.incrementAndGet() > last.capacity)
+			grow(last);
+	}
+
+	private void grow(Stage full)
+	{
+		lock.lock();
+		try
+		{
+			Stage[] currentStages = stages;
+			if (currentStages[currentStages.length - 1] != full || full.bits == MAX_BITS)
+				return;
+
+			Stage[] newStages = new Stage[currentStages.length + 1];
+			System.arraycopy(currentStages, 0, newStages, 0, currentStages.length);
+			newStages[currentStages.length] = new Stage(2 * full.capacity, full.hashes + 1);
+			stages = newStages;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return false if no key of this hash was ever added.
+	 */
+	boolean mightContain(int hash)
+	{
+		long mixed = mix(hash);
+		for (Stage stage : stages)
+		{
+			if (stage.mightContain(mixed))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Number of octets taken by the bits of the filter.
+	 */
+	long size()
+	{
+		long size = 0;
+		for (Stage stage : stages)
+			size += stage.bits / 8;
+
+		return size;
+	}
+
+	/**
+	 * Write the filter, preceded by the given stamp of the files it was
+	 * built from.
+	 *
+	 * Keys must not be added meanwhile.
+	 */
+	void writeTo(DataOutput output, long[] stamp)
+	throws IOException
+	{
+		output.writeInt(MAGIC);
+		output.writeInt(VERSION);
+		output.writeInt(stamp.length);
+		for (long value : stamp)
+			output.writeLong(value);
+
+		Stage[] currentStages = stages;
+		output.writeInt(currentStages.length);
+		for (Stage stage : currentStages)
+		{
+			output.writeLong(stage.capacity);
+			output.writeInt(stage.hashes);
+			output.writeLong(stage.count.get());
+			output.writeInt(stage.words.length());
+			for (int i = 0; i < stage.words.length(); i++)
+				output.writeLong(stage.words.get(i));
+		}
+	}
+
+	/**
+	 * Read a filter written by {@link #writeTo(DataOutput, long[])}.
+	 *
+	 * @return The filter, or <code>null</code> if it was written with
+	 * another stamp, in which case it is not read further.
+	 * @throws IOException if the filter is truncated or not a filter.
+	 */
+	static KeyFilter readFrom(DataInput input, long[] stamp)
+	throws IOException
+	{
+		if (input.readInt() != MAGIC || input.readInt() != VERSION)
+			throw new IOException("Not a key filter!");
+
+		if (input.readInt() != stamp.length)
+			return null;
+		boolean isCurrent = true;
+		for (long value : stamp)
+		{
+			if (input.readLong() != value)
+				isCurrent = false;
+		}
+		if (!isCurrent)
+			return null;
+
+		int stageCount = input.readInt();
+		if (stageCount < 1)
+			throw new IOException("Not a key filter!");
+		Stage[] stages = new Stage[stageCount];
+		for (int i = 0; i < stageCount; i++)
+		{
+			long capacity = input.readLong();
+			int hashes = input.readInt();
+			long count = input.readLong();
+			int length = input.readInt();
+			if (capacity < 1 || hashes < 1 || length < 1)
+				throw new IOException("Not a key filter!");
+
+			long[] words = new long[length];
+			for (int j = 0; j < length; j++)
+				words[j] = input.readLong();
+			stages[i] = new Stage(capacity, hashes, count, words);
+		}
+
+		return new KeyFilter(stages);
+	}
+}
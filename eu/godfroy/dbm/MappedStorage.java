@@ -0,0 +1,135 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Read-only memory mapping of one of the files of a database.
+ *
+ * A single {@link java.nio.MappedByteBuffer} cannot address more than 2GB,
+ * so bigger files are mapped as several consecutive chunks. The chunk size
+ * is a multiple of every page size used by {@link Dbm}, hence a page never
+ * spans two chunks.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class MappedStorage
+implements PageStorage
+{
+	private static final int CHUNK_SIZE = 1 << 30;
+
+	private final RandomAccessFile file;
+	private final long length;
+	private final ByteBuffer[] chunks;
+
+	MappedStorage(RandomAccessFile file)
+	throws IOException
+	{
+		FileChannel channel = file.getChannel();
+
+		this.file = file;
+		length = channel.size();
+		chunks = new ByteBuffer[(int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+		for (int i = 0; i < chunks.length; i++)
+		{
+			long position = (long) i * CHUNK_SIZE;
+			long size = Math.min(CHUNK_SIZE, length - position);
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		}
+	}
+
+	/**
+	 * Obtain a read-only view of a page.
+	 *
+	 * When the page lies entirely within the file, the returned buffer
+	 * shares its content with the mapping. Otherwise the part of the page
+	 * past the end of the file is read as zeroes, as are the holes of the
+	 * sparse file. Only the octets copied that way are recorded as read.
+	 */
+	public ByteBuffer readPage(long pagNum, int pageSize, Metrics metrics)
+	{
+		long position = pagNum * pageSize;
+
+		if (position + pageSize <= length)
+		{
+			ByteBuffer chunk = chunks[(int) (position / CHUNK_SIZE)].duplicate();
+			int offset = (int) (position % CHUNK_SIZE);
+			chunk.limit(offset + pageSize);
+			chunk.position(offset);
+			return chunk.slice();
+		}
+
+		byte[] content = new byte[pageSize];
+		int read = read(ByteBuffer.wrap(content), position);
+		if (read > 0)
+			metrics.pagRead(read);
+		return ByteBuffer.wrap(content).asReadOnlyBuffer();
+	}
+
+	public int read(ByteBuffer buffer, long position)
+	{
+		int toRead = (int) Math.max(Math.min(buffer.remaining(), length - position), 0);
+		int read = 0;
+		while (read < toRead)
+		{
+			ByteBuffer chunk = chunks[(int) ((position + read) / CHUNK_SIZE)].duplicate();
+			int offset = (int) ((position + read) % CHUNK_SIZE);
+			int count = Math.min(CHUNK_SIZE - offset, toRead - read);
+			chunk.limit(offset + count);
+			chunk.position(offset);
+			buffer.put(chunk);
+			read += count;
+		}
+
+		return read;
+	}
+
+	public void write(ByteBuffer buffer, long position)
+	throws IOException
+	{
+		throw new IOException("Memory mapped databases are read-only!");
+	}
+
+	/* straight from the mapping, a chunk at a time */
+	public long transferTo(long position, long count, WritableByteChannel target)
+	throws IOException
+	{
+		long toTransfer = Math.max(Math.min(count, length - position), 0);
+		long transferred = 0;
+		while (transferred < toTransfer)
+		{
+			ByteBuffer chunk = chunks[(int) ((position + transferred) / CHUNK_SIZE)].duplicate();
+			int offset = (int) ((position + transferred) % CHUNK_SIZE);
+			int transferCount = (int) Math.min(CHUNK_SIZE - offset, toTransfer - transferred);
+			chunk.limit(offset + transferCount);
+			chunk.position(offset);
+			while (chunk.hasRemaining())
+				target.write(chunk);
+			transferred += transferCount;
+		}
+
+		return transferred;
+	}
+
+	/**
+	 * Size of the file at the time it was mapped.
+	 */
+	public long length()
+	{
+		return length;
+	}
+
+	/* nothing is ever written */
+	public void sync()
+	{
+		;
+	}
+
+	/* the mapping stays valid until it is garbage collected */
+	public void close()
+	throws IOException
+	{
+		file.close();
+	}
+}
@@ -0,0 +1,130 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Storage held in memory, lost when it is closed.
+ *
+ * The content is kept in blocks allocated on their first write, so that
+ * sparse content, as the one of a <code>.pag</code> file, only takes the
+ * memory of the pages actually written.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class MemoryStorage
+implements PageStorage
+{
+	private static final int BLOCK_SIZE = 4096;
+
+	private final ConcurrentMap<Long,byte[]> blocks;
+	private final AtomicLong length;
+
+	MemoryStorage()
+	{
+		blocks = new ConcurrentHashMap<Long,byte[]>();
+		length = new AtomicLong(0);
+	}
+
+	public ByteBuffer readPage(long pagNum, int pageSize, Metrics metrics)
+	throws IOException
+	{
+		byte[] content = new byte[pageSize];
+		int read = read(ByteBuffer.wrap(content), pagNum * pageSize);
+		if (read > 0)
+			metrics.pagRead(read);
+
+		return ByteBuffer.wrap(content);
+	}
+
+	public int read(ByteBuffer buffer, long position)
+	throws IOException
+	{
+		int toRead = (int) Math.max(Math.min(buffer.remaining(), length.get() - position), 0);
+		int read = 0;
+		while (read < toRead)
+		{
+			long blockNum = (position + read) / BLOCK_SIZE;
+			int offset = (int) ((position + read) % BLOCK_SIZE);
+			int count = Math.min(BLOCK_SIZE - offset, toRead - read);
+
+			byte[] block = blocks.get(blockNum);
+			if (block != null)
+				buffer.put(block, offset, count);
+			else
+				buffer.put(new byte[count]);
+			read += count;
+		}
+
+		return read;
+	}
+
+	public void write(ByteBuffer buffer, long position)
+	throws IOException
+	{
+		int toWrite = buffer.remaining();
+		int written = 0;
+		while (written < toWrite)
+		{
+			long blockNum = (position + written) / BLOCK_SIZE;
+			int offset = (int) ((position + written) % BLOCK_SIZE);
+			int count = Math.min(BLOCK_SIZE - offset, toWrite - written);
+
+			byte[] block = blocks.get(blockNum);
+			if (block == null)
+			{
+				byte[] newBlock = new byte[BLOCK_SIZE];
+				block = blocks.putIfAbsent(blockNum, newBlock);
+				if (block == null)
+					block = newBlock;
+			}
+			buffer.get(block, offset, count);
+			written += count;
+		}
+
+		long end = position + toWrite;
+		long currentLength;
+		do
+			currentLength = length.get();
+		while (end > currentLength && !length.compareAndSet(currentLength, end));
+	}
+
+	public long transferTo(long position, long count, WritableByteChannel target)
+	throws IOException
+	{
+		long toTransfer = Math.max(Math.min(count, length.get() - position), 0);
+		long transferred = 0;
+		while (transferred < toTransfer)
+		{
+			long blockNum = (position + transferred) / BLOCK_SIZE;
+			int offset = (int) ((position + transferred) % BLOCK_SIZE);
+			int transferCount = (int) Math.min(BLOCK_SIZE - offset, toTransfer - transferred);
+
+			byte[] block = blocks.get(blockNum);
+			ByteBuffer buffer = (block != null) ? ByteBuffer.wrap(block, offset, transferCount) : ByteBuffer.allocate(transferCount);
+			while (buffer.hasRemaining())
+				target.write(buffer);
+			transferred += transferCount;
+		}
+
+		return transferred;
+	}
+
+	public long length()
+	{
+		return length.get();
+	}
+
+	public void sync()
+	{
+		;
+	}
+
+	public void close()
+	{
+		blocks.clear();
+	}
+}
@@ -0,0 +1,103 @@
+package eu.godfroy.dbm;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counters and latency histograms of a database, updated on every
+ * operation.
+ *
+ * Every counter is a {@link LongAdder}, so that threads updating them
+ * concurrently do not contend. Latencies are counted in buckets of
+ * powers of two nanoseconds, which only needs a bit count to find the
+ * bucket.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class Metrics
+{
+	/* bucket i counts the latencies in [2^(i-1), 2^i) nanoseconds, bucket 0 the null ones */
+	static final int LATENCY_BUCKETS = 64;
+
+	private final LongAdder pagReads = new LongAdder();
+	private final LongAdder pagBytesRead = new LongAdder();
+	private final LongAdder pagWrites = new LongAdder();
+	private final LongAdder pagBytesWritten = new LongAdder();
+	private final LongAdder dirReads = new LongAdder();
+	private final LongAdder dirBytesRead = new LongAdder();
+	private final LongAdder dirWrites = new LongAdder();
+	private final LongAdder dirBytesWritten = new LongAdder();
+	private final LongAdder splits = new LongAdder();
+	private final LongAdder insertsImpossible = new LongAdder();
+
+	private final LongAdder[][] latencies;
+
+	Metrics()
+	{
+		Statistics.Operation[] operations = Statistics.Operation.values();
+		latencies = new LongAdder[operations.length][LATENCY_BUCKETS];
+		for (int i = 0; i < operations.length; i++)
+		{
+			for (int j = 0; j < LATENCY_BUCKETS; j++)
+				latencies[i][j] = new LongAdder();
+		}
+	}
+
+	void pagRead(int bytes)
+	{
+		pagReads.increment();
+		pagBytesRead.add(bytes);
+	}
+
+	void pagWritten(int bytes)
+	{
+		pagWrites.increment();
+		pagBytesWritten.add(bytes);
+	}
+
+	void dirRead(int bytes)
+	{
+		dirReads.increment();
+		dirBytesRead.add(bytes);
+	}
+
+	void dirWritten(int bytes)
+	{
+		dirWrites.increment();
+		dirBytesWritten.add(bytes);
+	}
+
+	void split()
+	{
+		splits.increment();
+	}
+
+	void insertImpossible()
+	{
+		insertsImpossible.increment();
+	}
+
+	/**
+	 * Count an operation which started at <code>start</code>, as given
+	 * by {@link System#nanoTime()}.
+	 */
+	void record(Statistics.Operation operation, long start)
+	{
+		long elapsed = System.nanoTime() - start;
+		int bucket = (elapsed <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(elapsed);
+		latencies[operation.ordinal()][Math.min(bucket, LATENCY_BUCKETS - 1)].increment();
+	}
+
+	Statistics getStatistics(Dbm.CacheStatistics cacheStatistics, int maxDepth)
+	{
+		long[][] latencyCounts = new long[latencies.length][LATENCY_BUCKETS];
+		for (int i = 0; i < latencies.length; i++)
+		{
+			for (int j = 0; j < LATENCY_BUCKETS; j++)
+				latencyCounts[i][j] = latencies[i][j].sum();
+		}
+
+		return new Statistics(pagReads.sum(), pagBytesRead.sum(), pagWrites.sum(), pagBytesWritten.sum(),
+		                      dirReads.sum(), dirBytesRead.sum(), dirWrites.sum(), dirBytesWritten.sum(),
+		                      cacheStatistics, splits.sum(), maxDepth, insertsImpossible.sum(), latencyCounts);
+	}
+}
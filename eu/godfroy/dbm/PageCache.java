@@ -0,0 +1,507 @@
+package eu.godfroy.dbm;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Bounded cache of the pages of one of the files of a database.
+ *
+ * The pages are replaced following the CLOCK algorithm: every page kept
+ * in memory has a reference bit which is set on each access. When room
+ * is needed, a hand sweeps the pages, clearing the set bits, and evicts
+ * the first page found with its bit cleared. Dirty pages are written back
+ * when they are evicted, and on {@link #flush()}.
+ * <p>
+ * The callers must hold the lock of a page, as given by the
+ * {@link PageLocks} of the cache, while getting and using it. Hits do not
+ * take any other lock. A page is only evicted if its lock can be taken
+ * without waiting, so that pages in use are never dropped. When all the
+ * pages are in use, the cache grows past its capacity, and shrinks back
+ * on the next misses. Hence there is never more than one copy of a page
+ * in memory.
+ * <p>
+ * The victims are chosen while holding the lock of the clock, and their
+ * own lock is taken then. Clean victims are dropped at once, while dirty
+ * ones are written back once the lock of the clock is released, so that
+ * the other misses do not wait for the writes, and only then dropped.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class PageCache<P extends PageCache.Page>
+{
+	/**
+	 * A page which can be held by the cache.
+	 */
+	interface Page
+	{
+		/**
+		 * Write the page back to its file if it has been modified.
+		 */
+		void writePage()
+		throws DBException;
+
+		/**
+		 * Tells whether the page has been modified since it was written.
+		 */
+		boolean isDirty();
+	}
+
+	/**
+	 * Reads a page which is not in the cache.
+	 */
+	interface Loader<P>
+	{
+		P load(long pagNum)
+		throws DBException;
+	}
+
+	private static class Frame<P>
+	{
+		private final long pagNum;
+		private final P page;
+		private volatile boolean referenced;
+		/* index of the frame in the clock, guarded by clockLock */
+		private int slot;
+
+		private Frame(long pagNum, P page)
+		{
+			this.pagNum = pagNum;
+			this.page = page;
+			referenced = true;
+			slot = -1;
+		}
+	}
+
+	/*
+	 * The frames of the cached pages, indexed by page number. This is an
+	 * open addressing table rather than a ConcurrentMap, so that hits
+	 * neither box the page number nor allocate anything. It is only
+	 * modified while holding clockLock, and read without any lock: a
+	 * reader holding the lock of a page sees the frame of that page, as it
+	 * was inserted or removed while holding the page lock as well.
+	 */
+	private static class FrameTable<P>
+	{
+		private static final Frame<?> REMOVED = new Frame<Object>(-1, null);
+
+		/* replaced as a whole when growing, so that readers see all of it */
+		private volatile AtomicReferenceArray<Frame<P>> slots;
+		private int used;
+
+		private FrameTable()
+		{
+			slots = new AtomicReferenceArray<Frame<P>>(16);
+			used = 0;
+		}
+
+		private static int slotOf(long pagNum, int length)
+		{
+			long mixed = pagNum * 0x9e3779b97f4a7c15l;
+			return (int) (mixed >>> 32) & (length - 1);
+		}
+
+		private Frame<P> get(long pagNum)
+		{
+			AtomicReferenceArray<Frame<P>> currentSlots = slots;
+			int length = currentSlots.length();
+			int slot = slotOf(pagNum, length);
+			for (int i = 0; i < length; i++)
+			{
+				Frame<P> frame = currentSlots.get(slot);
+				if (frame == null)
+					return null;
+				if (frame != REMOVED && frame.pagNum == pagNum)
+					return frame;
+				slot = (slot + 1) & (length - 1);
+			}
+
+			return null;
+		}
+
+		/* the page must not be in the table already */
+		private void put(Frame<P> frame, int live)
+		{
+			AtomicReferenceArray<Frame<P>> currentSlots = slots;
+			if (2 * (used + 1) > currentSlots.length())
+			{
+				int length = 16;
+				while (4 * (live + 1) > length)
+					length *= 2;
+
+				AtomicReferenceArray<Frame<P>> newSlots = new AtomicReferenceArray<Frame<P>>(length);
+				for (int i = 0; i < currentSlots.length(); i++)
+				{
+					Frame<P> moved = currentSlots.get(i);
+					if (moved != null && moved != REMOVED)
+						insert(newSlots, moved);
+				}
+				used = live;
+				currentSlots = newSlots;
+				slots = newSlots;
+			}
+
+			if (insert(currentSlots, frame))
+				used++;
+		}
+
+		/* returns whether a free slot, rather than a removed one, was taken */
+		private static <P> boolean insert(AtomicReferenceArray<Frame<P>> slots, Frame<P> frame)
+		{
+			int length = slots.length();
+			int slot = slotOf(frame.pagNum, length);
+			while (true)
+			{
+				Frame<P> current = slots.get(slot);
+				if (current == null || current == REMOVED)
+				{
+					slots.set(slot, frame);
+					return current == null;
+				}
+				slot = (slot + 1) & (length - 1);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void remove(long pagNum)
+		{
+			AtomicReferenceArray<Frame<P>> currentSlots = slots;
+			int length = currentSlots.length();
+			int slot = slotOf(pagNum, length);
+			for (int i = 0; i < length; i++)
+			{
+				Frame<P> frame = currentSlots.get(slot);
+				if (frame == null)
+					return;
+				if (frame != REMOVED && frame.pagNum == pagNum)
+				{
+					currentSlots.set(slot, (Frame<P>) REMOVED);
+					return;
+				}
+				slot = (slot + 1) & (length - 1);
+			}
+		}
+	}
+
+	private final Loader<P> loader;
+	private final PageLocks locks;
+	private final FrameTable<P> frames;
+
+	/* the first count frames of the clock are in use, guarded by clockLock */
+	private final Lock clockLock;
+	private Frame<P>[] clock;
+	private int count;
+	private int hand;
+	private int capacity;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+
+	PageCache(Loader<P> loader, PageLocks locks, int capacity)
+	{
+		if (capacity < 1)
+			throw new IllegalArgumentException("A cache must hold at least one page!");
+
+		this.loader = loader;
+		this.locks = locks;
+		frames = new FrameTable<P>();
+		clockLock = new ReentrantLock();
+		clock = newClock(capacity);
+		count = 0;
+		hand = 0;
+		this.capacity = capacity;
+
+		hits = new LongAdder();
+		misses = new LongAdder();
+		evictions = new LongAdder();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <P> Frame<P>[] newClock(int capacity)
+	{
+		return (Frame<P>[]) new Frame<?>[capacity];
+	}
+
+	/**
+	 * Obtain a page, reading it if it is not in the cache.
+	 */
+	P get(long pagNum)
+	throws DBException
+	{
+		Frame<P> frame = frames.get(pagNum);
+		if (frame != null)
+		{
+			hits.increment();
+			frame.referenced = true;
+			return frame.page;
+		}
+
+		misses.increment();
+		P page = loader.load(pagNum);
+
+		List<Frame<P>> dirtyVictims;
+		clockLock.lock();
+		try
+		{
+			/* another reader of the page might have loaded it meanwhile */
+			frame = frames.get(pagNum);
+			if (frame != null)
+			{
+				frame.referenced = true;
+				return frame.page;
+			}
+
+			/*
+			 * added past the capacity, then the cache shrinks back. The
+			 * new page is locked by the caller, so it is not evicted.
+			 */
+			frame = new Frame<P>(pagNum, page);
+			frame.slot = append();
+			clock[frame.slot] = frame;
+			frames.put(frame, count);
+
+			dirtyVictims = evict(count - capacity);
+		}
+		finally
+		{
+			clockLock.unlock();
+		}
+
+		writeBack(dirtyVictims);
+		return page;
+	}
+
+	/**
+	 * Obtain a page only if it is in the cache, without reading it
+	 * otherwise.
+	 */
+	P peek(long pagNum)
+	{
+		Frame<P> frame = frames.get(pagNum);
+		return (frame == null) ? null : frame.page;
+	}
+
+	/*
+	 * Evict up to excess pages, as many as can be. The clean ones are
+	 * dropped, and the dirty ones returned, still locked and in the clock,
+	 * to be given to writeBack(). clockLock must be held.
+	 */
+	private List<Frame<P>> evict(int excess)
+	{
+		List<Frame<P>> dirtyVictims = Collections.emptyList();
+		while (excess > 0)
+		{
+			Frame<P> victim = chooseVictim();
+			if (victim == null)
+				break;
+
+			if (victim.page.isDirty())
+			{
+				if (dirtyVictims.isEmpty())
+					dirtyVictims = new ArrayList<Frame<P>>();
+				dirtyVictims.add(victim);
+			}
+			else
+			{
+				drop(victim);
+				locks.unlockForEviction(victim.pagNum);
+			}
+			excess--;
+		}
+
+		return dirtyVictims;
+	}
+
+	/*
+	 * the victim with its lock taken, or null if none could be evicted.
+	 * The victims already chosen are locked, hence skipped.
+	 */
+	private Frame<P> chooseVictim()
+	{
+		for (int i = 0; i < 2 * count; i++)
+		{
+			Frame<P> victim = clock[hand];
+			hand = (hand + 1) % count;
+
+			if (victim.referenced)
+			{
+				victim.referenced = false;
+				continue;
+			}
+
+			if (locks.tryLockForEviction(victim.pagNum))
+				return victim;
+		}
+
+		return null;
+	}
+
+	/*
+	 * Write back dirty victims without holding clockLock, then drop them
+	 * and release their locks. A victim which cannot be written stays in
+	 * the cache.
+	 */
+	private void writeBack(List<Frame<P>> dirtyVictims)
+	throws DBException
+	{
+		if (dirtyVictims.isEmpty())
+			return;
+
+		DBException failure = null;
+		List<Frame<P>> written = new ArrayList<Frame<P>>(dirtyVictims.size());
+		try
+		{
+			for (Frame<P> victim : dirtyVictims)
+			{
+				try
+				{
+					victim.page.writePage();
+					written.add(victim);
+				}
+				catch (DBException exception)
+				{
+					if (failure == null)
+						failure = exception;
+				}
+			}
+
+			clockLock.lock();
+			try
+			{
+				for (Frame<P> victim : written)
+					drop(victim);
+			}
+			finally
+			{
+				clockLock.unlock();
+			}
+		}
+		finally
+		{
+			for (Frame<P> victim : dirtyVictims)
+				locks.unlockForEviction(victim.pagNum);
+		}
+
+		if (failure != null)
+			throw failure;
+	}
+
+	/* remove a victim, whose lock is held, from the clock. clockLock must be held */
+	private void drop(Frame<P> victim)
+	{
+		frames.remove(victim.pagNum);
+		removeSlot(victim.slot);
+		evictions.increment();
+	}
+
+	private int append()
+	{
+		if (count == clock.length)
+		{
+			Frame<P>[] newClock = newClock(2 * clock.length);
+			System.arraycopy(clock, 0, newClock, 0, count);
+			clock = newClock;
+		}
+
+		return count++;
+	}
+
+	/* frees a slot by moving the last frame into it */
+	private void removeSlot(int freedSlot)
+	{
+		count--;
+		clock[freedSlot] = clock[count];
+		if (freedSlot < count)
+			clock[freedSlot].slot = freedSlot;
+		clock[count] = null;
+		if (hand >= count)
+			hand = 0;
+	}
+
+	/**
+	 * Write back all the modified pages, keeping them in the cache.
+	 */
+	void flush()
+	throws DBException
+	{
+		List<Frame<P>> toFlush;
+		clockLock.lock();
+		try
+		{
+			toFlush = new ArrayList<Frame<P>>(count);
+			for (int i = 0; i < count; i++)
+				toFlush.add(clock[i]);
+		}
+		finally
+		{
+			clockLock.unlock();
+		}
+
+		for (Frame<P> frame : toFlush)
+		{
+			Lock lock = locks.forPage(frame.pagNum).writeLock();
+			lock.lock();
+			try
+			{
+				frame.page.writePage();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Change the number of pages held, evicting pages if needed.
+	 *
+	 * If pages in use prevent the cache from shrinking, it stays bigger
+	 * than requested.
+	 */
+	void setCapacity(int capacity)
+	throws DBException
+	{
+		if (capacity < 1)
+			throw new IllegalArgumentException("A cache must hold at least one page!");
+
+		List<Frame<P>> dirtyVictims;
+		clockLock.lock();
+		try
+		{
+			this.capacity = capacity;
+			dirtyVictims = evict(count - capacity);
+		}
+		finally
+		{
+			clockLock.unlock();
+		}
+
+		writeBack(dirtyVictims);
+
+		clockLock.lock();
+		try
+		{
+			Frame<P>[] newClock = newClock(Math.max(this.capacity, count));
+			System.arraycopy(clock, 0, newClock, 0, count);
+			clock = newClock;
+		}
+		finally
+		{
+			clockLock.unlock();
+		}
+	}
+
+	Dbm.CacheStatistics getStatistics()
+	{
+		clockLock.lock();
+		try
+		{
+			return new Dbm.CacheStatistics(hits.sum(), misses.sum(), evictions.sum(), count, capacity);
+		}
+		finally
+		{
+			clockLock.unlock();
+		}
+	}
+}
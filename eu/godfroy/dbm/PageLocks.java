@@ -0,0 +1,101 @@
+package eu.godfroy.dbm;
+
+import java.util.concurrent.locks.*;
+
+/**
+ * Striped read-write locks protecting the pages of one of the files of a
+ * database.
+ *
+ * A page is only read, modified, loaded into or evicted from the cache
+ * while holding the lock of its stripe. Pages are spread over the stripes
+ * by a multiplicative hash of their number, so that the two pages taking
+ * part in a split usually fall in different stripes.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class PageLocks
+{
+	private final ReentrantReadWriteLock[] stripes;
+	private final int shift;
+
+	/**
+	 * @param stripeBits The number of stripes is <code>1 &lt;&lt; stripeBits</code>.
+	 */
+	PageLocks(int stripeBits)
+	{
+		stripes = new ReentrantReadWriteLock[1 << stripeBits];
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i] = new ReentrantReadWriteLock();
+		shift = 64 - stripeBits;
+	}
+
+	private int stripeIndex(long pagNum)
+	{
+		if (shift == 64)
+			return 0;
+
+		return (int) ((pagNum * 0x9e3779b97f4a7c15l) >>> shift);
+	}
+
+	ReadWriteLock forPage(long pagNum)
+	{
+		return stripes[stripeIndex(pagNum)];
+	}
+
+	/**
+	 * Acquire the write locks of two pages, always in the same order to
+	 * avoid deadlocks.
+	 */
+	void lockPair(long pagNum, long otherPagNum)
+	{
+		int first = stripeIndex(pagNum);
+		int second = stripeIndex(otherPagNum);
+
+		if (first > second)
+		{
+			int swap = first;
+			first = second;
+			second = swap;
+		}
+
+		stripes[first].writeLock().lock();
+		if (second != first)
+			stripes[second].writeLock().lock();
+	}
+
+	void unlockPair(long pagNum, long otherPagNum)
+	{
+		int first = stripeIndex(pagNum);
+		int second = stripeIndex(otherPagNum);
+
+		if (second != first)
+			stripes[second].writeLock().unlock();
+		stripes[first].writeLock().unlock();
+	}
+
+	/**
+	 * Try to get exclusive access to a page in order to evict it.
+	 *
+	 * This never blocks, and fails if the page stripe is locked by anyone,
+	 * including the current thread, since the page might then be in use.
+	 */
+	boolean tryLockForEviction(long pagNum)
+	{
+		ReentrantReadWriteLock stripe = stripes[stripeIndex(pagNum)];
+		if (!stripe.writeLock().tryLock())
+			return false;
+
+		if (stripe.getWriteHoldCount() > 1)
+		{
+			stripe.writeLock().unlock();
+			return false;
+		}
+
+		return true;
+	}
+
+	void unlockForEviction(long pagNum)
+	{
+		stripes[stripeIndex(pagNum)].writeLock().unlock();
+	}
+}
@@ -0,0 +1,65 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Backing store of one of the files of a database.
+ *
+ * All the accesses are positional: they do not depend on any shared file
+ * pointer, so that threads can read and write different pages at the
+ * same time without any lock. Accesses past the end read zeroes, as do
+ * the holes of sparse files.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+interface PageStorage
+{
+	/**
+	 * Obtain the content of a page.
+	 *
+	 * The buffer returned may share its content with the storage, and
+	 * must not be modified. It is in big endian order, whatever the order
+	 * of the database. The octets copied from the storage, if any, are
+	 * recorded as a read of the <code>.pag</code> file.
+	 */
+	ByteBuffer readPage(long pagNum, int pageSize, Metrics metrics)
+	throws IOException;
+
+	/**
+	 * Fill a buffer from a position, stopping at the end of the storage.
+	 *
+	 * @return The number of octets read.
+	 */
+	int read(ByteBuffer buffer, long position)
+	throws IOException;
+
+	/**
+	 * Write the remaining content of a buffer at a position.
+	 */
+	void write(ByteBuffer buffer, long position)
+	throws IOException;
+
+	/**
+	 * Copy the content from a position to a channel, at the position of
+	 * the channel, stopping at the end of the storage. Files are copied
+	 * by the operating system, without going through the heap.
+	 *
+	 * @return The number of octets copied.
+	 */
+	long transferTo(long position, long count, WritableByteChannel target)
+	throws IOException;
+
+	long length()
+	throws IOException;
+
+	/**
+	 * Wait until the content written is on stable storage.
+	 */
+	void sync()
+	throws IOException;
+
+	void close()
+	throws IOException;
+}
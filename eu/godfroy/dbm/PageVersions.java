@@ -0,0 +1,224 @@
+package eu.godfroy.dbm;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Former versions of the pages and of the directory, kept for the
+ * snapshots of a database.
+ *
+ * Snapshots are numbered in the order they are taken. Before a page is
+ * modified for the first time since the last snapshot was taken, its
+ * image is saved, tagged with the number of that snapshot. The content
+ * of a page for snapshot <code>s</code> is then the first image saved
+ * with a tag of at least <code>s</code>, or the current page if there is
+ * none. In the same way, the bits of the directory set while snapshots
+ * are open are tagged, and a bit tagged with at least <code>s</code> was
+ * not set yet for snapshot <code>s</code>.
+ * <p>
+ * Nothing is saved while no snapshot is open. The images and bits only
+ * needed by snapshots closed since are dropped when a snapshot is
+ * closed.
+ * <p>
+ * Images and bits are saved while holding the exclusive lock of the page
+ * being modified, and read while holding its shared lock, or before
+ * reading the directory bit.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class PageVersions
+{
+	private static class Version
+	{
+		private final long tag;
+		private final byte[] image;
+
+		private Version(long tag, byte[] image)
+		{
+			this.tag = tag;
+			this.image = image;
+		}
+	}
+
+	/* guards the modifications, never the reads */
+	private final Lock lock;
+	/* number of the last snapshot taken, guarded by lock */
+	private long taken;
+	/* numbers of the open snapshots, guarded by lock */
+	private final SortedSet<Long> open;
+	/* number of the last open snapshot, 0 if none */
+	private volatile long lastOpen;
+
+	/* versions of each page by increasing tags, replaced as a whole */
+	private final ConcurrentMap<Long,Version[]> pages;
+	private final ConcurrentMap<Long,Long> splitBits;
+
+	PageVersions()
+	{
+		lock = new ReentrantLock();
+		taken = 0;
+		open = new TreeSet<Long>();
+		lastOpen = 0;
+		pages = new ConcurrentHashMap<Long,Version[]>();
+		splitBits = new ConcurrentHashMap<Long,Long>();
+	}
+
+	/**
+	 * Take a snapshot. No page must be modified meanwhile.
+	 *
+	 * @return The number of the snapshot.
+	 */
+	long open()
+	{
+		lock.lock();
+		try
+		{
+			taken++;
+			open.add(taken);
+			lastOpen = taken;
+			return taken;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	void close(long snapshot)
+	{
+		lock.lock();
+		try
+		{
+			if (!open.remove(snapshot))
+				return;
+
+			if (open.isEmpty())
+			{
+				lastOpen = 0;
+				pages.clear();
+				splitBits.clear();
+				return;
+			}
+
+			lastOpen = open.last();
+			long oldest = open.first();
+			for (Map.Entry<Long,Version[]> page : pages.entrySet())
+			{
+				Version[] versions = page.getValue();
+				int dropped = 0;
+				while (dropped < versions.length && versions[dropped].tag < oldest)
+					dropped++;
+				if (dropped == versions.length)
+					pages.remove(page.getKey());
+				else if (dropped > 0)
+					page.setValue(Arrays.copyOfRange(versions, dropped, versions.length));
+			}
+			for (Iterator<Long> tags = splitBits.values().iterator(); tags.hasNext();)
+			{
+				if (tags.next() < oldest)
+					tags.remove();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	boolean hasOpen()
+	{
+		return lastOpen != 0;
+	}
+
+	/**
+	 * Tells whether a page about to be modified must be saved first,
+	 * which is when a snapshot was taken since it was last saved.
+	 */
+	boolean mustSave(long pagNum)
+	{
+		long last = lastOpen;
+		if (last == 0)
+			return false;
+
+		Version[] versions = pages.get(pagNum);
+		return versions == null || versions[versions.length - 1].tag < last;
+	}
+
+	/**
+	 * Save the image of a page before it is modified.
+	 */
+	void save(long pagNum, byte[] image)
+	{
+		lock.lock();
+		try
+		{
+			if (open.isEmpty())
+				return;
+
+			Version[] versions = pages.get(pagNum);
+			Version version = new Version(taken, image);
+			if (versions == null)
+				pages.put(pagNum, new Version[] { version });
+			else if (versions[versions.length - 1].tag < taken)
+			{
+				Version[] newVersions = Arrays.copyOf(versions, versions.length + 1);
+				newVersions[versions.length] = version;
+				pages.put(pagNum, newVersions);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The image of a page for a snapshot, or <code>null</code> if the
+	 * page was not modified since it was taken.
+	 */
+	byte[] imageAt(long pagNum, long snapshot)
+	{
+		Version[] versions = pages.get(pagNum);
+		if (versions == null)
+			return null;
+
+		for (Version version : versions)
+		{
+			if (version.tag >= snapshot)
+				return version.image;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Tag a bit of the directory about to be set.
+	 */
+	void setSplit(long bitNum)
+	{
+		if (lastOpen == 0)
+			return;
+
+		lock.lock();
+		try
+		{
+			if (!open.isEmpty() && !splitBits.containsKey(bitNum))
+				splitBits.put(bitNum, taken);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Tells whether a bit set in the directory was already set when a
+	 * snapshot was taken.
+	 */
+	boolean wasSplit(long bitNum, long snapshot)
+	{
+		Long tag = splitBits.get(bitNum);
+		return tag == null || tag < snapshot;
+	}
+}
@@ -0,0 +1,56 @@
+package eu.godfroy.dbm;
+
+import java.nio.*;
+
+/**
+ * A key whose hash is computed once, for a sequence of operations on it.
+ *
+ * Prepared keys are obtained by {@link Dbm#prepare(byte[])}, and can be
+ * given instead of the key to the operations on a single key. Besides
+ * the hash, a prepared key remembers the depth of the page where its
+ * last operation found it, from which the next operation starts looking
+ * for its page. Since pages are only ever split, that page is either
+ * still the right one, or the right one is one of its descendants.
+ * <p>
+ * The key is not copied, so the array passed must not be modified
+ * afterwards. Prepared keys can be shared between threads. They can be
+ * used with another database than the one which prepared them, but then
+ * only their hash is reused.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+public final class PreparedKey
+{
+	final Dbm owner;
+	final byte[] key;
+	/* the key, read by absolute gets only so that it can be shared */
+	final ByteBuffer buffer;
+	final int hash;
+	/* mask of the page last found for the key in owner */
+	volatile int mask;
+
+	PreparedKey(Dbm owner, byte[] key, int hash)
+	{
+		this.owner = owner;
+		this.key = key;
+		buffer = ByteBuffer.wrap(key);
+		this.hash = hash;
+		mask = 0;
+	}
+
+	/**
+	 * The key prepared. It must not be modified.
+	 */
+	public byte[] getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * The DBM hash of the key.
+	 */
+	public int getHash()
+	{
+		return hash;
+	}
+}
@@ -0,0 +1,609 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * A database split across several independent databases, the shards.
+ *
+ * Each key is kept in the shard selected by the highest bits of its hash,
+ * once mixed, the lowest ones selecting its page within the shard, so
+ * that the pages of every shard stay evenly filled. Each shard is a plain database, which
+ * can be opened by {@link Dbm} or by any ndbm implementation, and which
+ * can lie in its own directory or on its own disk.
+ * <p>
+ * Modifications of different shards never contend, and the asynchronous
+ * ones are run by a writer thread per shard, in the order they are
+ * submitted. Multiple lookups and traversals read the shards in parallel.
+ * <p>
+ * The shards must always be opened in the same number and order, or
+ * the keys would be looked up in the wrong shard. An instance can be
+ * shared between threads.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+public class ShardedDbm
+{
+	private final Dbm[] shards;
+	/* one thread per shard, so that its writes are run in order */
+	private final ExecutorService[] writers;
+	/* reads the shards in parallel */
+	private final ExecutorService readers;
+
+	/**
+	 * Connect to the shards with the specified file options, endianness
+	 * and open options, each as {@link Dbm#Dbm(String, String,
+	 * Dbm.Endianness, Dbm.OpenOption...)} would.
+	 *
+	 * @param databases The names of the shards, see
+	 * {@link #shardNames(String, int)}.
+	 * @throws IllegalArgumentException if there is no shard.
+	 */
+	public ShardedDbm(String[] databases, String fileOptions, Dbm.Endianness endianness, Dbm.OpenOption... options)
+	throws IOException
+	{
+		if (databases.length == 0)
+			throw new IllegalArgumentException("No shard!");
+
+		shards = new Dbm[databases.length];
+		try
+		{
+			for (int i = 0; i < databases.length; i++)
+				shards[i] = new Dbm(databases[i], fileOptions, endianness, options);
+		}
+		catch (IOException exception)
+		{
+			closeShards();
+			throw exception;
+		}
+		catch (RuntimeException exception)
+		{
+			closeShards();
+			throw exception;
+		}
+
+		writers = new ExecutorService[shards.length];
+		for (int i = 0; i < shards.length; i++)
+			writers[i] = Executors.newSingleThreadExecutor(threadFactory("dbm-shard-" + i));
+		readers = Executors.newFixedThreadPool(shards.length, threadFactory("dbm-shard-reader"));
+	}
+
+	/**
+	 * Connect to little endian shards with the specified file options.
+	 *
+	 * See {@link #ShardedDbm(String[], String, Dbm.Endianness,
+	 * Dbm.OpenOption...)}.
+	 */
+	public ShardedDbm(String[] databases, String fileOptions)
+	throws IOException
+	{
+		this(databases, fileOptions, Dbm.Endianness.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Names of the shards of a database kept in a single directory,
+	 * <code>database + "." + i</code> for shard <code>i</code>.
+	 */
+	public static String[] shardNames(String database, int count)
+	{
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++)
+			names[i] = database + "." + i;
+
+		return names;
+	}
+
+	private static ThreadFactory threadFactory(final String name)
+	{
+		return new ThreadFactory()
+		{
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/* the shards opened so far, when the others cannot be */
+	private void closeShards()
+	{
+		for (Dbm shard : shards)
+		{
+			try
+			{
+				if (shard != null)
+					shard.close();
+			}
+			catch (DBException exception)
+			{
+				/* the first failure is the one reported */
+			}
+		}
+	}
+
+	public int getShardCount()
+	{
+		return shards.length;
+	}
+
+	/**
+	 * The database of a shard, to tune or monitor it. Keys must not be
+	 * inserted directly in a shard other than the one of their hash.
+	 */
+	public Dbm getShard(int shard)
+	{
+		return shards[shard];
+	}
+
+	/**
+	 * The shard of a key, selected by the highest bits of its hash once
+	 * mixed.
+	 *
+	 * The highest bits of the hash are only well spread for long keys,
+	 * the hash being a sum which rarely carries into them otherwise. The
+	 * hash is first mixed by a bijection whose every output bit depends
+	 * on every input bit, so that the keys of a shard are still evenly
+	 * spread by the lowest bits of their hash across its pages.
+	 */
+	public int shardOf(byte[] key)
+	{
+		int hash = Dbm.computeHash(key);
+		/* finalizer of MurmurHash3 */
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+
+		/* the mixed hash taken as a fraction of the number of shards */
+		return (int) (((hash & 0xffffffffl) * shards.length) >>> 32);
+	}
+
+	private Dbm shardFor(byte[] key)
+	{
+		return shards[shardOf(key)];
+	}
+
+	/**
+	 * Get the value associated with key.
+	 *
+	 * See {@link Dbm#get(byte[])}.
+	 */
+	public byte[] get(byte[] key)
+	throws DBException
+	{
+		return shardFor(key).get(key);
+	}
+
+	/**
+	 * Tells whether key is in the database.
+	 *
+	 * See {@link Dbm#containsKey(byte[])}.
+	 */
+	public boolean containsKey(byte[] key)
+	throws DBException
+	{
+		return shardFor(key).containsKey(key);
+	}
+
+	/**
+	 * Insert a pair of key, value, replacing the former value of key.
+	 *
+	 * See {@link Dbm#put(byte[], byte[])}.
+	 */
+	public void put(byte[] key, byte[] value)
+	throws DBException
+	{
+		shardFor(key).put(key, value);
+	}
+
+	/**
+	 * Remove key from the database.
+	 *
+	 * See {@link Dbm#remove(byte[])}.
+	 */
+	public byte[] remove(byte[] key)
+	throws DBException
+	{
+		return shardFor(key).remove(key);
+	}
+
+	/**
+	 * Get the values associated with several keys, the shards being read
+	 * in parallel.
+	 *
+	 * @return The values, in the order of the keys, <code>null</code> for
+	 * the keys not in the database.
+	 * @throws DBException the first exception thrown by a shard, once all
+	 * the shards are read.
+	 */
+	public List<byte[]> getAll(final List<byte[]> keys)
+	throws DBException
+	{
+		final byte[][] values = new byte[keys.size()][];
+
+		/* positions of the keys of each shard */
+		List<List<Integer>> positions = new ArrayList<List<Integer>>();
+		for (int i = 0; i < shards.length; i++)
+			positions.add(new ArrayList<Integer>());
+		for (int i = 0; i < keys.size(); i++)
+			positions.get(shardOf(keys.get(i))).add(i);
+
+		List<Callable<Void>> lookups = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < shards.length; i++)
+		{
+			final Dbm shard = shards[i];
+			final List<Integer> shardPositions = positions.get(i);
+			if (shardPositions.isEmpty())
+				continue;
+
+			lookups.add(new Callable<Void>()
+			{
+				public Void call()
+				throws DBException
+				{
+					for (int position : shardPositions)
+						values[position] = shard.get(keys.get(position));
+					return null;
+				}
+			});
+		}
+
+		/* a single shard is read by the caller */
+		if (lookups.size() == 1)
+		{
+			try
+			{
+				lookups.get(0).call();
+			}
+			catch (DBException exception)
+			{
+				throw exception;
+			}
+			catch (RuntimeException exception)
+			{
+				throw exception;
+			}
+			catch (Exception exception)
+			{
+				throw new IllegalStateException(exception);
+			}
+		}
+		else if (lookups.size() > 1)
+			waitFor(readers, lookups);
+
+		return Arrays.asList(values);
+	}
+
+	/* run tasks in parallel, and rethrow the first failure */
+	private static void waitFor(ExecutorService executor, List<Callable<Void>> tasks)
+	throws DBException
+	{
+		List<Future<Void>> futures;
+		try
+		{
+			futures = executor.invokeAll(tasks);
+		}
+		catch (InterruptedException exception)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while reading the shards!", exception);
+		}
+
+		for (Future<Void> future : futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (InterruptedException exception)
+			{
+				/* every task is done */
+				throw new IllegalStateException(exception);
+			}
+			catch (ExecutionException exception)
+			{
+				Throwable cause = exception.getCause();
+				if (cause instanceof DBException)
+					throw (DBException) cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new IllegalStateException(cause);
+			}
+		}
+	}
+
+	private <T> CompletableFuture<T> runWrite(byte[] key, final Callable<T> operation)
+	{
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try
+		{
+			writers[shardOf(key)].execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						future.complete(operation.call());
+					}
+					catch (Throwable exception)
+					{
+						future.completeExceptionally(exception);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException exception)
+		{
+			future.completeExceptionally(exception);
+		}
+
+		return future;
+	}
+
+	/**
+	 * Insert a pair of key, value without blocking the caller.
+	 *
+	 * The insertion is run by the writer thread of the shard of key,
+	 * after the modifications of that shard submitted before.
+	 *
+	 * @return A future completed once the pair is inserted, or completed
+	 * exceptionally with the {@link DBException} thrown.
+	 */
+	public CompletableFuture<Void> putAsync(final byte[] key, final byte[] value)
+	{
+		return runWrite(key, new Callable<Void>()
+		{
+			public Void call()
+			throws DBException
+			{
+				shardFor(key).put(key, value);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Remove key without blocking the caller.
+	 *
+	 * See {@link #putAsync(byte[], byte[])}.
+	 *
+	 * @return A future completed with the former value of key.
+	 */
+	public CompletableFuture<byte[]> removeAsync(final byte[] key)
+	{
+		return runWrite(key, new Callable<byte[]>()
+		{
+			public byte[] call()
+			throws DBException
+			{
+				return shardFor(key).remove(key);
+			}
+		});
+	}
+
+	/**
+	 * Stateful traversal of the keys of all the shards, one shard after
+	 * the other.
+	 *
+	 * See {@link Dbm#allKeys()}.
+	 */
+	public Iterable<byte[]> allKeys()
+	{
+		return new Iterable<byte[]>()
+		{
+			public Iterator<byte[]> iterator()
+			{
+				return entries().map(new Function<Map.Entry<byte[],byte[]>,byte[]>()
+				{
+					public byte[] apply(Map.Entry<byte[],byte[]> entry)
+					{
+						return entry.getKey();
+					}
+				}).iterator();
+			}
+		};
+	}
+
+	/**
+	 * Stateful traversal of the pairs of key, value of all the shards, one
+	 * shard after the other.
+	 *
+	 * See {@link Dbm#allEntries()}.
+	 */
+	public Iterable<Map.Entry<byte[],byte[]>> allEntries()
+	{
+		return new Iterable<Map.Entry<byte[],byte[]>>()
+		{
+			public Iterator<Map.Entry<byte[],byte[]>> iterator()
+			{
+				return entries().iterator();
+			}
+		};
+	}
+
+	/**
+	 * Stream of the pairs of key, value of all the shards.
+	 *
+	 * When the stream is made parallel, it is first divided by shard, and
+	 * then within each shard as {@link Dbm#entries()} is.
+	 */
+	public Stream<Map.Entry<byte[],byte[]>> entries()
+	{
+		return StreamSupport.stream(new ShardSpliterator(0, shards.length), false);
+	}
+
+	/**
+	 * Call an action on every pair of key, value, the shards being read in
+	 * parallel. The action is called from several threads at once.
+	 *
+	 * @throws DBException the first exception thrown while reading a
+	 * shard, once all the shards are read.
+	 */
+	public void forEachEntry(final BiConsumer<byte[],byte[]> action)
+	throws DBException
+	{
+		List<Callable<Void>> scans = new ArrayList<Callable<Void>>();
+		for (final Dbm shard : shards)
+		{
+			scans.add(new Callable<Void>()
+			{
+				public Void call()
+				throws DBException
+				{
+					try
+					{
+						for (Map.Entry<byte[],byte[]> entry : shard.allEntries())
+							action.accept(entry.getKey(), entry.getValue());
+					}
+					catch (RuntimeException exception)
+					{
+						if (exception.getCause() instanceof DBException)
+							throw (DBException) exception.getCause();
+						throw exception;
+					}
+					return null;
+				}
+			});
+		}
+
+		waitFor(readers, scans);
+	}
+
+	/* the shards in [first, end), each divided by its own spliterator */
+	private class ShardSpliterator implements Spliterator<Map.Entry<byte[],byte[]>>
+	{
+		private int first;
+		private final int end;
+		private Spliterator<Map.Entry<byte[],byte[]>> current;
+
+		private ShardSpliterator(int first, int end)
+		{
+			this.first = first;
+			this.end = end;
+			current = null;
+		}
+
+		public boolean tryAdvance(Consumer<? super Map.Entry<byte[],byte[]>> action)
+		{
+			while (true)
+			{
+				if (current == null)
+				{
+					if (first == end)
+						return false;
+					current = shards[first++].entries().spliterator();
+				}
+				if (current.tryAdvance(action))
+					return true;
+				current = null;
+			}
+		}
+
+		public Spliterator<Map.Entry<byte[],byte[]>> trySplit()
+		{
+			/* whole shards first, then the last one by its pages */
+			if (end - first > 1 || (current != null && end - first == 1))
+			{
+				int middle = (end - first > 1) ? (first + end) >>> 1 : end;
+				ShardSpliterator prefix = new ShardSpliterator(first, middle);
+				first = middle;
+				return prefix;
+			}
+			if (current == null && first < end)
+				current = shards[first++].entries().spliterator();
+
+			return (current == null) ? null : current.trySplit();
+		}
+
+		public long estimateSize()
+		{
+			return Long.MAX_VALUE;
+		}
+
+		public int characteristics()
+		{
+			return DISTINCT | NONNULL;
+		}
+	}
+
+	/**
+	 * Write back the modified pages of every shard.
+	 *
+	 * See {@link Dbm#flush()}.
+	 *
+	 * @throws DBException the first exception thrown by a shard, once all
+	 * the shards are flushed.
+	 */
+	public void flush()
+	throws DBException
+	{
+		List<Callable<Void>> flushes = new ArrayList<Callable<Void>>();
+		for (final Dbm shard : shards)
+		{
+			flushes.add(new Callable<Void>()
+			{
+				public Void call()
+				throws DBException
+				{
+					shard.flush();
+					return null;
+				}
+			});
+		}
+
+		waitFor(readers, flushes);
+	}
+
+	/**
+	 * Run the asynchronous modifications already submitted, then close
+	 * every shard.
+	 *
+	 * The database must not be used anymore after this call.
+	 *
+	 * @throws DBException the first exception thrown while closing a
+	 * shard, once all the shards are closed.
+	 */
+	public void close()
+	throws DBException
+	{
+		for (ExecutorService writer : writers)
+			writer.shutdown();
+		try
+		{
+			for (ExecutorService writer : writers)
+			{
+				while (!writer.awaitTermination(1, TimeUnit.MINUTES))
+					continue;
+			}
+		}
+		catch (InterruptedException exception)
+		{
+			Thread.currentThread().interrupt();
+		}
+		readers.shutdown();
+
+		DBException failure = null;
+		for (Dbm shard : shards)
+		{
+			try
+			{
+				shard.close();
+			}
+			catch (DBException exception)
+			{
+				if (failure == null)
+					failure = exception;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+}
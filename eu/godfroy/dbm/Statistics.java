@@ -0,0 +1,245 @@
+package eu.godfroy.dbm;
+
+/**
+ * Counters and latencies of a database.
+ *
+ * The values are the ones since the database was opened, at the time
+ * this object was obtained by {@link Dbm#getStatistics()}.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+public class Statistics
+{
+	/**
+	 * The operations whose latencies are recorded.
+	 */
+	public static enum Operation
+	{
+		/** {@link Dbm#get(byte[])}. */
+		GET,
+		/** {@link Dbm#put(byte[], byte[])}. */
+		PUT,
+		/** {@link Dbm#remove(byte[])}. */
+		REMOVE,
+		/**
+		 * One step of a traversal: a call to {@link Dbm#nextKey(byte[])},
+		 * or the reading of one page by the iterators and streams.
+		 */
+		SCAN
+	}
+
+	/**
+	 * Histogram of the latencies of an operation.
+	 *
+	 * The latencies are counted in buckets of powers of two nanoseconds,
+	 * so the values obtained are accurate within a factor of two.
+	 */
+	public static class Latency
+	{
+		private final long[] buckets;
+		private final long count;
+
+		Latency(long[] buckets)
+		{
+			this.buckets = buckets;
+			long total = 0;
+			for (long bucketCount : buckets)
+				total += bucketCount;
+			count = total;
+		}
+
+		/**
+		 * Number of operations recorded.
+		 */
+		public long getCount()
+		{
+			return count;
+		}
+
+		/**
+		 * Counts of the operations by latency: element <code>i</code>
+		 * counts the ones which took from <code>2^(i-1)</code> up to
+		 * <code>2^i</code> nanoseconds.
+		 */
+		public long[] getBuckets()
+		{
+			return buckets.clone();
+		}
+
+		/**
+		 * Latency under which a fraction of the operations completed.
+		 *
+		 * @param fraction From 0 to 1, for instance 0.99 for the 99th
+		 * percentile.
+		 * @return The upper bound, in nanoseconds, of the bucket holding
+		 * the percentile, or 0 if no operation was recorded.
+		 */
+		public long getPercentile(double fraction)
+		{
+			if (count == 0)
+				return 0;
+
+			long rank = (long) Math.ceil(fraction * count);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++)
+			{
+				seen += buckets[i];
+				if (seen >= rank && seen > 0)
+					return (i == 0) ? 0 : (i >= 63) ? Long.MAX_VALUE : 1l << i;
+			}
+
+			return Long.MAX_VALUE;
+		}
+
+		public String toString()
+		{
+			return "count=" + count + " p50=" + getPercentile(0.5) + "ns p99=" + getPercentile(0.99) + "ns";
+		}
+	}
+
+	private final long pagReads;
+	private final long pagBytesRead;
+	private final long pagWrites;
+	private final long pagBytesWritten;
+	private final long dirReads;
+	private final long dirBytesRead;
+	private final long dirWrites;
+	private final long dirBytesWritten;
+	private final Dbm.CacheStatistics cacheStatistics;
+	private final long splits;
+	private final int maxDepth;
+	private final long insertsImpossible;
+	private final Latency[] latencies;
+
+	Statistics(long pagReads, long pagBytesRead, long pagWrites, long pagBytesWritten,
+	           long dirReads, long dirBytesRead, long dirWrites, long dirBytesWritten,
+	           Dbm.CacheStatistics cacheStatistics, long splits, int maxDepth, long insertsImpossible,
+	           long[][] latencyCounts)
+	{
+		this.pagReads = pagReads;
+		this.pagBytesRead = pagBytesRead;
+		this.pagWrites = pagWrites;
+		this.pagBytesWritten = pagBytesWritten;
+		this.dirReads = dirReads;
+		this.dirBytesRead = dirBytesRead;
+		this.dirWrites = dirWrites;
+		this.dirBytesWritten = dirBytesWritten;
+		this.cacheStatistics = cacheStatistics;
+		this.splits = splits;
+		this.maxDepth = maxDepth;
+		this.insertsImpossible = insertsImpossible;
+
+		latencies = new Latency[latencyCounts.length];
+		for (int i = 0; i < latencyCounts.length; i++)
+			latencies[i] = new Latency(latencyCounts[i]);
+	}
+
+	/**
+	 * Number of pages read from the <code>.pag</code> file. The pages
+	 * past the end of the file are not read, and neither are the ones of
+	 * a mapped file, used where they are mapped.
+	 */
+	public long getPagReads()
+	{
+		return pagReads;
+	}
+
+	public long getPagBytesRead()
+	{
+		return pagBytesRead;
+	}
+
+	/**
+	 * Number of pages written to the <code>.pag</code> file.
+	 */
+	public long getPagWrites()
+	{
+		return pagWrites;
+	}
+
+	public long getPagBytesWritten()
+	{
+		return pagBytesWritten;
+	}
+
+	/**
+	 * Number of reads of the <code>.dir</code> file. It is read whole
+	 * when the database is opened.
+	 */
+	public long getDirReads()
+	{
+		return dirReads;
+	}
+
+	public long getDirBytesRead()
+	{
+		return dirBytesRead;
+	}
+
+	/**
+	 * Number of pages written to the <code>.dir</code> file.
+	 */
+	public long getDirWrites()
+	{
+		return dirWrites;
+	}
+
+	public long getDirBytesWritten()
+	{
+		return dirBytesWritten;
+	}
+
+	/**
+	 * Counters of the page cache.
+	 */
+	public Dbm.CacheStatistics getCacheStatistics()
+	{
+		return cacheStatistics;
+	}
+
+	/**
+	 * Number of pages split.
+	 */
+	public long getSplits()
+	{
+		return splits;
+	}
+
+	/**
+	 * Depth of the deepest page, that is the number of hash bits
+	 * needed to find it. 0 if no page was ever split.
+	 */
+	public int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	/**
+	 * Number of {@link InsertImpossibleDBException} thrown.
+	 */
+	public long getInsertsImpossible()
+	{
+		return insertsImpossible;
+	}
+
+	public Latency getLatency(Operation operation)
+	{
+		return latencies[operation.ordinal()];
+	}
+
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append("pag reads=").append(pagReads).append(" (").append(pagBytesRead).append("B)");
+		builder.append(" writes=").append(pagWrites).append(" (").append(pagBytesWritten).append("B)");
+		builder.append(", dir reads=").append(dirReads).append(" (").append(dirBytesRead).append("B)");
+		builder.append(" writes=").append(dirWrites).append(" (").append(dirBytesWritten).append("B)");
+		builder.append(", cache ").append(cacheStatistics);
+		builder.append(", splits=").append(splits).append(" maxDepth=").append(maxDepth);
+		builder.append(" insertsImpossible=").append(insertsImpossible);
+		for (Operation operation : Operation.values())
+			builder.append(", ").append(operation).append(' ').append(getLatency(operation));
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,506 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+/**
+ * Append-only log of the values too big to be kept in the pages, in the
+ * files <code>database + ".vlg." + n</code>, called segments.
+ *
+ * Each record holds the lengths of its key and value, then the key and
+ * the value. The page keeps a pointer of {@link #POINTER_LENGTH} octets
+ * instead of the value, giving the segment and position of the value,
+ * its length and its CRC32. The key is kept in the log for the garbage
+ * collection, to find the page pointing to a record.
+ * <p>
+ * Values are appended to the last segment, until it is bigger than the
+ * segment size. The other segments are sealed, and only ever read, until
+ * they are collected: their live records are appended again, and the
+ * segment deleted. The octets of the records replaced or removed are
+ * counted for each segment, to collect first the ones holding the most
+ * garbage. These counts are not saved, and start from zero each time the
+ * database is opened.
+ * <p>
+ * A new segment is started each time the log is opened, so that a
+ * record left half written by a crash is never followed by other ones.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class ValueLog
+{
+	static final String SEGMENT_EXT = ".vlg.";
+
+	static final int POINTER_LENGTH = 20;
+
+	/* "VLOG", values this long beginning with it are always logged */
+	private static final int POINTER_MAGIC = 0x564c4f47;
+	/* lengths of the key and of the value */
+	private static final int RECORD_HEADER = 8;
+
+	private static class Segment
+	{
+		private final int number;
+		private final File file;
+		private final RandomAccessFile randomAccessFile;
+		private final FileChannel channel;
+		/* octets appended, guarded by appendLock while the segment is the last */
+		private volatile long size;
+		private final AtomicLong garbage;
+
+		private Segment(int number, File file, String fileOptions)
+		throws IOException
+		{
+			this.number = number;
+			this.file = file;
+			randomAccessFile = new RandomAccessFile(file, fileOptions);
+			channel = randomAccessFile.getChannel();
+			size = channel.size();
+			garbage = new AtomicLong();
+		}
+	}
+
+	/**
+	 * A record read back from a segment, along with the pointer which
+	 * stands for it in its page.
+	 */
+	static class Record
+	{
+		final byte[] key;
+		final byte[] value;
+		final byte[] pointer;
+		/* position of the next record in the segment */
+		final long next;
+
+		private Record(byte[] key, byte[] value, byte[] pointer, long next)
+		{
+			this.key = key;
+			this.value = value;
+			this.pointer = pointer;
+			this.next = next;
+		}
+	}
+
+	private final String prefix;
+	private final boolean writable;
+	private final ConcurrentNavigableMap<Integer,Segment> segments;
+
+	private final Lock appendLock;
+	/* the segment appended to, guarded by appendLock for writing */
+	private volatile Segment last;
+	/* segments appended to since the last sync, guarded by appendLock */
+	private final Set<Segment> unsynced;
+	private volatile long segmentSize;
+
+	/**
+	 * Open the segments of a database, and start a new one if it is
+	 * opened for writing.
+	 */
+	ValueLog(String database, String fileOptions, long segmentSize)
+	throws IOException
+	{
+		prefix = database + SEGMENT_EXT;
+		writable = !fileOptions.equals("r");
+		segments = new ConcurrentSkipListMap<Integer,Segment>();
+		appendLock = new ReentrantLock();
+		unsynced = new HashSet<Segment>();
+		this.segmentSize = segmentSize;
+
+		try
+		{
+			for (Map.Entry<Integer,File> segmentFile : segmentFiles(database).entrySet())
+			{
+				/* a segment left empty by a previous opening */
+				if (writable && segmentFile.getValue().length() == 0)
+				{
+					if (!segmentFile.getValue().delete())
+						throw new IOException("Cannot delete " + segmentFile.getValue() + "!");
+					continue;
+				}
+				segments.put(segmentFile.getKey(), new Segment(segmentFile.getKey(), segmentFile.getValue(), fileOptions));
+			}
+
+			last = writable ? newSegment() : null;
+		}
+		catch (IOException exception)
+		{
+			close();
+			throw exception;
+		}
+	}
+
+	/**
+	 * The segment files of a database, by number.
+	 */
+	static SortedMap<Integer,File> segmentFiles(String database)
+	{
+		File prefixFile = new File(database + SEGMENT_EXT);
+		File directory = prefixFile.getAbsoluteFile().getParentFile();
+		String prefixName = prefixFile.getName();
+
+		SortedMap<Integer,File> files = new TreeMap<Integer,File>();
+		String[] names = (directory != null) ? directory.list() : null;
+		if (names == null)
+			return files;
+		for (String name : names)
+		{
+			if (!name.startsWith(prefixName) || name.length() == prefixName.length())
+				continue;
+			try
+			{
+				int number = Integer.parseInt(name.substring(prefixName.length()));
+				if (number >= 0)
+					files.put(number, new File(directory, name));
+			}
+			catch (NumberFormatException exception)
+			{
+				/* not a segment */
+				continue;
+			}
+		}
+
+		return files;
+	}
+
+	/* appendLock must be held, or the log being opened */
+	private Segment newSegment()
+	throws IOException
+	{
+		int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		Segment segment = new Segment(number, new File(prefix + number), "rw");
+		segments.put(number, segment);
+		return segment;
+	}
+
+	void setSegmentSize(long segmentSize)
+	{
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Tells whether a value read from a page is a pointer to the log.
+	 */
+	static boolean isPointer(byte[] stored)
+	{
+		return stored.length == POINTER_LENGTH && ByteBuffer.wrap(stored).getInt(0) == POINTER_MAGIC;
+	}
+
+	/**
+	 * Append a record, without syncing it.
+	 *
+	 * @return The pointer to the value, to be stored in the page.
+	 */
+	byte[] append(byte[] key, byte[] value)
+	throws IOException
+	{
+		if (!writable)
+			throw new IOException("The value log is read-only!");
+
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + key.length + value.length);
+		record.putInt(key.length);
+		record.putInt(value.length);
+		record.put(key);
+		record.put(value);
+		record.flip();
+
+		CRC32 crc = new CRC32();
+		crc.update(value, 0, value.length);
+
+		appendLock.lock();
+		try
+		{
+			if (last.size >= segmentSize || last.size + record.remaining() > Integer.MAX_VALUE)
+			{
+				/* sealed segments are synced once, when they are sealed */
+				last.channel.force(false);
+				unsynced.remove(last);
+				last = newSegment();
+			}
+
+			long position = last.size;
+			int written = 0;
+			while (record.hasRemaining())
+				written += last.channel.write(record, position + written);
+			last.size = position + written;
+			unsynced.add(last);
+
+			ByteBuffer pointer = ByteBuffer.allocate(POINTER_LENGTH);
+			pointer.putInt(POINTER_MAGIC);
+			pointer.putInt(last.number);
+			pointer.putInt((int) (position + RECORD_HEADER + key.length));
+			pointer.putInt(value.length);
+			pointer.putInt((int) crc.getValue());
+			return pointer.array();
+		}
+		finally
+		{
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Read the value a pointer stands for.
+	 *
+	 * @throws IOException if the segment of the value was collected, or
+	 * the value does not match its checksum.
+	 */
+	byte[] read(byte[] pointer)
+	throws IOException
+	{
+		ByteBuffer pointerBuf = ByteBuffer.wrap(pointer);
+		Segment segment = segments.get(pointerBuf.getInt(4));
+		if (segment == null)
+			throw new IOException("Segment " + pointerBuf.getInt(4) + " of the value log is missing!");
+
+		byte[] value = new byte[pointerBuf.getInt(12)];
+		ByteBuffer valueBuf = ByteBuffer.wrap(value);
+		long position = pointerBuf.getInt(8) & 0xffffffffl;
+		while (valueBuf.hasRemaining())
+		{
+			if (segment.channel.read(valueBuf, position + valueBuf.position()) < 0)
+				throw new EOFException("Value log segment " + segment.number + " truncated!");
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(value, 0, value.length);
+		if ((int) crc.getValue() != pointerBuf.getInt(16))
+			throw new IOException("Value in segment " + segment.number + " does not match its checksum!");
+
+		return value;
+	}
+
+	/**
+	 * Count the record of a pointer as garbage, once it is replaced or
+	 * removed from its page.
+	 *
+	 * @return The number of the segment of the record, if it now holds
+	 * at least <code>ratio</code> of garbage and is sealed, else -1.
+	 */
+	int release(byte[] pointer, double ratio)
+	{
+		ByteBuffer pointerBuf = ByteBuffer.wrap(pointer);
+		Segment segment = segments.get(pointerBuf.getInt(4));
+		if (segment == null)
+			return -1;
+
+		/* the key and header are not known, the count is a bit short */
+		long garbage = segment.garbage.addAndGet(RECORD_HEADER + pointerBuf.getInt(12));
+		if (segment == last || garbage < ratio * segment.size)
+			return -1;
+
+		return segment.number;
+	}
+
+	/**
+	 * The sealed segment with the greatest share of garbage, if it holds
+	 * at least <code>ratio</code> of garbage, else -1.
+	 */
+	int mostGarbage(double ratio)
+	{
+		Segment chosen = null;
+		double chosenRatio = ratio;
+		for (Segment segment : segmentsToCollect())
+		{
+			double segmentRatio = (double) segment.garbage.get() / Math.max(segment.size, 1);
+			if (segmentRatio >= chosenRatio)
+			{
+				chosen = segment;
+				chosenRatio = segmentRatio;
+			}
+		}
+
+		return (chosen != null) ? chosen.number : -1;
+	}
+
+	/**
+	 * Numbers of the sealed segments, in the order they were written.
+	 */
+	List<Integer> sealedSegments()
+	{
+		List<Integer> numbers = new ArrayList<Integer>();
+		for (Segment segment : segmentsToCollect())
+			numbers.add(segment.number);
+
+		return numbers;
+	}
+
+	private List<Segment> segmentsToCollect()
+	{
+		Segment lastSegment = last;
+		List<Segment> sealed = new ArrayList<Segment>();
+		for (Segment segment : segments.values())
+		{
+			if (segment != lastSegment)
+				sealed.add(segment);
+		}
+
+		return sealed;
+	}
+
+	/**
+	 * Length of a segment, 0 if it does not exist.
+	 */
+	long segmentLength(int number)
+	{
+		Segment segment = segments.get(number);
+		return (segment != null) ? segment.size : 0;
+	}
+
+	/**
+	 * Numbers of all the segments, in the order they were written.
+	 */
+	List<Integer> segments()
+	{
+		return new ArrayList<Integer>(segments.keySet());
+	}
+
+	/**
+	 * Copy the beginning of a segment to a channel, at the position of
+	 * the channel.
+	 *
+	 * @return The number of octets copied.
+	 */
+	long transferTo(int number, long count, WritableByteChannel target)
+	throws IOException
+	{
+		Segment segment = segments.get(number);
+		if (segment == null)
+			return 0;
+
+		long transferred = 0;
+		while (transferred < count)
+		{
+			long transferCount = segment.channel.transferTo(transferred, count - transferred, target);
+			if (transferCount <= 0)
+				break;
+			transferred += transferCount;
+		}
+
+		return transferred;
+	}
+
+	/**
+	 * Read the record at a position of a sealed segment.
+	 *
+	 * @return The record, or <code>null</code> past the last record,
+	 * including one left incomplete by a crash.
+	 */
+	Record readRecord(int number, long position)
+	throws IOException
+	{
+		Segment segment = segments.get(number);
+		if (segment == null || position + RECORD_HEADER > segment.size)
+			return null;
+
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+		while (header.hasRemaining())
+		{
+			if (segment.channel.read(header, position + header.position()) < 0)
+				return null;
+		}
+		int keyLength = header.getInt(0);
+		int valueLength = header.getInt(4);
+		if (keyLength < 0 || valueLength < 0 || position + RECORD_HEADER + keyLength + valueLength > segment.size)
+			return null;
+
+		ByteBuffer content = ByteBuffer.allocate(keyLength + valueLength);
+		while (content.hasRemaining())
+		{
+			if (segment.channel.read(content, position + RECORD_HEADER + content.position()) < 0)
+				return null;
+		}
+		byte[] key = Arrays.copyOfRange(content.array(), 0, keyLength);
+		byte[] value = Arrays.copyOfRange(content.array(), keyLength, keyLength + valueLength);
+
+		CRC32 crc = new CRC32();
+		crc.update(value, 0, value.length);
+		ByteBuffer pointer = ByteBuffer.allocate(POINTER_LENGTH);
+		pointer.putInt(POINTER_MAGIC);
+		pointer.putInt(number);
+		pointer.putInt((int) (position + RECORD_HEADER + keyLength));
+		pointer.putInt(valueLength);
+		pointer.putInt((int) crc.getValue());
+
+		return new Record(key, value, pointer.array(), position + RECORD_HEADER + keyLength + valueLength);
+	}
+
+	/**
+	 * Delete a sealed segment, once no page points to it anymore.
+	 */
+	void drop(int number)
+	throws IOException
+	{
+		Segment segment = segments.remove(number);
+		if (segment == null)
+			return;
+
+		segment.randomAccessFile.close();
+		if (!segment.file.delete())
+			throw new IOException("Cannot delete " + segment.file + "!");
+	}
+
+	/**
+	 * Wait until the records appended are on stable storage.
+	 */
+	void sync()
+	throws IOException
+	{
+		appendLock.lock();
+		try
+		{
+			for (Segment segment : unsynced)
+				segment.channel.force(false);
+			unsynced.clear();
+		}
+		finally
+		{
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Number of octets of all the segments.
+	 */
+	long size()
+	{
+		long size = 0;
+		for (Segment segment : segments.values())
+			size += segment.size;
+
+		return size;
+	}
+
+	/**
+	 * Sync and close the segments. The last one is deleted if it is
+	 * empty.
+	 */
+	void close()
+	throws IOException
+	{
+		IOException failure = null;
+		for (Segment segment : segments.values())
+		{
+			try
+			{
+				if (segment == last)
+					segment.channel.force(false);
+				segment.randomAccessFile.close();
+				if (segment == last && segment.size == 0 && !segment.file.delete())
+					throw new IOException("Cannot delete " + segment.file + "!");
+			}
+			catch (IOException exception)
+			{
+				failure = exception;
+			}
+		}
+		segments.clear();
+
+		if (failure != null)
+			throw failure;
+	}
+}
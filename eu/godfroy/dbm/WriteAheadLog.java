@@ -0,0 +1,384 @@
+package eu.godfroy.dbm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+/**
+ * Redo log of the pages modified in a database, kept in the file
+ * <code>database + ".wal"</code>.
+ *
+ * Every step modifying pages, such as an insertion or a split, appends
+ * the images of the pages it leaves as one frame, protected by a
+ * checksum. A frame is either replayed whole or not at all, so the files
+ * never see half of a split. Pages are then written to their files
+ * lazily, once the frames holding them are on stable storage, and the
+ * log is emptied by a checkpoint, once all the pages modified are
+ * written and synced.
+ * <p>
+ * Frames are appended to a buffer in memory, and written and synced by
+ * {@link #sync(long)}. A single thread at a time writes and syncs all
+ * the frames appended so far, while the others wait for it, so that the
+ * frames of concurrent operations share a sync.
+ * <p>
+ * Positions in the log are counted from the opening of the database and
+ * keep growing across checkpoints, so that a position obtained before a
+ * checkpoint is still known to be synced after it.
+ *
+ * @author Quentin Godfroy <quentin@godfroy.eu>
+ */
+class WriteAheadLog
+{
+	/* length and CRC32 of the payload */
+	private static final int FRAME_HEADER = 12;
+
+	private static final byte PAG_IMAGE = 0;
+	private static final byte DIR_IMAGE = 1;
+
+	/**
+	 * Page images to be appended together.
+	 */
+	static class Frame
+	{
+		private final ByteArrayOutputStream payload;
+		private final DataOutputStream output;
+		private int images;
+
+		Frame()
+		{
+			payload = new ByteArrayOutputStream();
+			output = new DataOutputStream(payload);
+			images = 0;
+		}
+
+		void addPagImage(long position, byte[] image)
+		{
+			add(PAG_IMAGE, position, image);
+		}
+
+		/*
+		 * directory images are merged into the file rather than written
+		 * over it, bits being only ever set, so that the images of a
+		 * directory page need not be logged in the order they are taken
+		 */
+		void addDirImage(long position, byte[] image)
+		{
+			add(DIR_IMAGE, position, image);
+		}
+
+		private void add(byte kind, long position, byte[] image)
+		{
+			try
+			{
+				output.writeByte(kind);
+				output.writeLong(position);
+				output.writeInt(image.length);
+				output.write(image);
+			}
+			catch (IOException exception)
+			{
+				/* written in memory */
+				throw new IllegalStateException(exception);
+			}
+			images++;
+		}
+
+		private byte[] toBytes()
+		{
+			byte[] content = payload.toByteArray();
+			ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + 4 + content.length);
+			frame.position(FRAME_HEADER);
+			frame.putInt(images);
+			frame.put(content);
+
+			CRC32 crc = new CRC32();
+			crc.update(frame.array(), FRAME_HEADER, 4 + content.length);
+			frame.putInt(0, 4 + content.length);
+			frame.putLong(4, crc.getValue());
+			return frame.array();
+		}
+	}
+
+	private final File logFile;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	/* frames appended and not yet written, guarded by appendLock */
+	private final Lock appendLock;
+	private byte[] pending;
+	private int pendingLength;
+	private long appended;
+
+	/* the thread writing and syncing holds syncLock */
+	private final Lock syncLock;
+	private byte[] writing;
+	private long filePosition;
+	/*
+	 * once a write or a sync fails, the frames swapped out are lost, and
+	 * no later frame can be known to be replayed
+	 */
+	private IOException failure;
+	private volatile long synced;
+	/* position of the last checkpoint, guarded by appendLock */
+	private long checkpointed;
+
+	WriteAheadLog(File logFile)
+	throws IOException
+	{
+		this.logFile = logFile;
+		file = new RandomAccessFile(logFile, "rw");
+		channel = file.getChannel();
+
+		appendLock = new ReentrantLock();
+		pending = new byte[1 << 16];
+		pendingLength = 0;
+		appended = 0;
+
+		syncLock = new ReentrantLock();
+		writing = new byte[1 << 16];
+		filePosition = 0;
+		failure = null;
+		checkpointed = 0;
+		synced = 0;
+	}
+
+	/**
+	 * Replay the frames of the log into the files, sync them and empty
+	 * the log. The frames after the first incomplete one, if any, were
+	 * never synced, and are dropped.
+	 *
+	 * @return The number of frames replayed.
+	 */
+	int recover(PageStorage pagStorage, PageStorage dirStorage)
+	throws IOException
+	{
+		DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 1 << 16));
+		int frames = 0;
+		long remaining = channel.size();
+		while (remaining >= FRAME_HEADER)
+		{
+			int length = input.readInt();
+			long checksum = input.readLong();
+			if (length < 4 || length > remaining - FRAME_HEADER)
+				break;
+
+			byte[] content = new byte[length];
+			input.readFully(content);
+			CRC32 crc = new CRC32();
+			crc.update(content, 0, content.length);
+			if (crc.getValue() != checksum)
+				break;
+
+			replay(ByteBuffer.wrap(content), pagStorage, dirStorage);
+			remaining -= FRAME_HEADER + length;
+			frames++;
+		}
+
+		if (channel.size() > 0)
+		{
+			pagStorage.sync();
+			dirStorage.sync();
+			channel.truncate(0);
+			channel.force(true);
+		}
+
+		return frames;
+	}
+
+	private void replay(ByteBuffer content, PageStorage pagStorage, PageStorage dirStorage)
+	throws IOException
+	{
+		int images = content.getInt();
+		for (int i = 0; i < images; i++)
+		{
+			byte kind = content.get();
+			long position = content.getLong();
+			byte[] image = new byte[content.getInt()];
+			content.get(image);
+
+			if (kind == PAG_IMAGE)
+				pagStorage.write(ByteBuffer.wrap(image), position);
+			else if (kind == DIR_IMAGE)
+			{
+				byte[] current = new byte[image.length];
+				dirStorage.read(ByteBuffer.wrap(current), position);
+				for (int j = 0; j < image.length; j++)
+					current[j] |= image[j];
+				dirStorage.write(ByteBuffer.wrap(current), position);
+			}
+			else
+				throw new IOException("Unknown image in the log!");
+		}
+	}
+
+	/**
+	 * Append a frame, without writing it.
+	 *
+	 * @return The position of the end of the frame, to be given to
+	 * {@link #sync(long)}.
+	 */
+	long append(Frame frame)
+	{
+		byte[] bytes = frame.toBytes();
+
+		appendLock.lock();
+		try
+		{
+			if (pendingLength + bytes.length > pending.length)
+				pending = Arrays.copyOf(pending, Math.max(2 * pending.length, pendingLength + bytes.length));
+			System.arraycopy(bytes, 0, pending, pendingLength, bytes.length);
+			pendingLength += bytes.length;
+			appended += bytes.length;
+			return appended;
+		}
+		finally
+		{
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until the log is on stable storage up to a position. The
+	 * frames appended meanwhile by other threads are synced as well.
+	 */
+	void sync(long position)
+	throws IOException
+	{
+		if (synced >= position)
+			return;
+
+		syncLock.lock();
+		try
+		{
+			/* the previous thread holding the lock might have synced it */
+			if (synced >= position)
+				return;
+			if (failure != null)
+				throw new IOException("The log could not be written!", failure);
+
+			byte[] toWrite;
+			int length;
+			long end;
+			appendLock.lock();
+			try
+			{
+				toWrite = pending;
+				length = pendingLength;
+				end = appended;
+				pending = writing;
+				pendingLength = 0;
+			}
+			finally
+			{
+				appendLock.unlock();
+			}
+			writing = toWrite;
+
+			try
+			{
+				ByteBuffer buffer = ByteBuffer.wrap(toWrite, 0, length);
+				while (buffer.hasRemaining())
+					filePosition += channel.write(buffer, filePosition);
+				channel.force(false);
+			}
+			catch (IOException exception)
+			{
+				failure = exception;
+				throw exception;
+			}
+			synced = end;
+		}
+		finally
+		{
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until all the frames appended so far are on stable storage.
+	 */
+	void sync()
+	throws IOException
+	{
+		long position;
+		appendLock.lock();
+		try
+		{
+			position = appended;
+		}
+		finally
+		{
+			appendLock.unlock();
+		}
+
+		sync(position);
+	}
+
+	/**
+	 * Number of octets appended since the last checkpoint.
+	 */
+	long size()
+	{
+		appendLock.lock();
+		try
+		{
+			return appended - checkpointed;
+		}
+		finally
+		{
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Empty the log, once all the pages of its frames are written to
+	 * their files and synced. No frame must be appended meanwhile.
+	 */
+	void checkpoint()
+	throws IOException
+	{
+		sync();
+
+		syncLock.lock();
+		try
+		{
+			channel.truncate(0);
+			channel.force(true);
+			filePosition = 0;
+
+			appendLock.lock();
+			try
+			{
+				checkpointed = appended;
+			}
+			finally
+			{
+				appendLock.unlock();
+			}
+		}
+		finally
+		{
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * Close and delete the log, once a checkpoint has emptied it.
+	 */
+	void discard()
+	throws IOException
+	{
+		file.close();
+		if (!logFile.delete())
+			throw new IOException("Cannot delete " + logFile + "!");
+	}
+
+	void close()
+	throws IOException
+	{
+		file.close();
+	}
+}